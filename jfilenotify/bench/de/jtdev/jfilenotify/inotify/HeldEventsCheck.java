@@ -0,0 +1,284 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * Checks the behaviour of the two structures that hold back events before
+ * they are dispatched: the ring of the {@link RenameCorrelator} and the
+ * queue of the {@link EventCoalescer}. The events are synthetic and the time
+ * is passed explicitly, so neither the native library nor an inotify
+ * instance is needed and the checks don't depend on the speed of the
+ * machine.
+ *
+ * <p>Every check prints its name. The first failed check ends the program
+ * with an exception. Run it with the {@code check} target of the build
+ * file.</p>
+ */
+public class HeldEventsCheck {
+
+	/**
+	 * The window of the checks in nanoseconds.
+	 */
+	private static final long WINDOW = 1000;
+
+	private static int checks = 0;
+
+	public static void main(String[] args) {
+		checkPairing();
+		checkUnpaired();
+		checkWindow();
+		checkFullRing();
+		checkPairedInTheMiddle();
+		checkWrapAround();
+		checkPollWatch();
+		checkPollBefore();
+		checkPollBeforeUnpaired();
+		checkMerge();
+		checkQuietWindow();
+		checkOrderOfFile();
+		checkBlockedByLaterEvent();
+		checkCoalescedRename();
+		checkForce();
+		System.out.println(checks + " checks passed");
+	}
+
+	private static void checkPairing() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		expect(r.add(from(1, 7, "a"), 0) == null, "a MOVED_FROM is held back");
+		expect(!r.isEmpty(), "the correlator holds an event");
+		INotifyEvent e = r.add(to(2, 7, "b"), 10);
+		expect(e instanceof INotifyRenameEvent, "MOVED_TO is paired with its MOVED_FROM");
+		INotifyRenameEvent rename = (INotifyRenameEvent) e;
+		expect("a".equals(rename.getOldFileName()) && "b".equals(rename.getChangedFileName()), "rename carries both names");
+		expect(rename.getOldWatchDescriptor() == 1 && rename.getWatchDescriptor() == 2, "rename carries both watches");
+		expect(r.isEmpty(), "the pair leaves the correlator");
+		expect(r.getDelay(10) == -1, "no delay without held events");
+		passed("correlator/pairing");
+	}
+
+	private static void checkUnpaired() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent to = to(1, 3, "x");
+		expect(r.add(to, 0) == to, "an unpaired MOVED_TO is returned");
+		INotifyEvent noCookie = from(1, 0, "y");
+		expect(r.add(noCookie, 0) == noCookie, "a MOVED_FROM without cookie is returned");
+		INotifyEvent create = event(1, INotifyEvent.IN_CREATE, "z");
+		expect(r.add(create, 0) == create, "other events are returned");
+		expect(r.isEmpty(), "nothing is held back");
+		passed("correlator/unpaired");
+	}
+
+	private static void checkWindow() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent from = from(1, 5, "a");
+		r.add(from, 100);
+		expect(r.getDelay(100) == WINDOW, "the delay is the window");
+		expect(r.getDelay(600) == WINDOW - 500, "the delay shrinks");
+		expect(r.poll(100 + WINDOW - 1, false) == null, "the event waits for its window");
+		expect(r.getDelay(100 + WINDOW + 5) == 0, "the delay doesn't become negative");
+		expect(r.poll(100 + WINDOW, false) == from, "the event is released after its window");
+		expect(r.poll(100 + WINDOW, true) == null, "nothing is left");
+		passed("correlator/window");
+	}
+
+	private static void checkFullRing() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 2);
+		INotifyEvent a = from(1, 1, "a");
+		INotifyEvent b = from(1, 2, "b");
+		INotifyEvent c = from(1, 3, "c");
+		expect(r.add(a, 0) == null && r.add(b, 1) == null, "the ring takes two events");
+		expect(r.add(c, 2) == a, "a full ring releases its oldest event");
+		expect(r.poll(0, true) == b && r.poll(0, true) == c, "the rest is released in order");
+		expect(r.isEmpty(), "the ring is empty");
+		passed("correlator/full ring");
+	}
+
+	private static void checkPairedInTheMiddle() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent a = from(1, 1, "a");
+		INotifyEvent c = from(1, 3, "c");
+		r.add(a, 0);
+		r.add(from(1, 2, "b"), 1);
+		r.add(c, 2);
+		expect(r.add(to(1, 2, "b2"), 3) instanceof INotifyRenameEvent, "the middle event is paired");
+		expect(r.poll(0, true) == a, "the head is released");
+		expect(r.poll(0, true) == c, "the paired slot is skipped");
+		expect(r.poll(0, true) == null && r.isEmpty(), "the ring is empty");
+		passed("correlator/paired in the middle");
+	}
+
+	private static void checkWrapAround() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 3);
+		for (int i = 1; i <= 100; i++) {
+			expect(r.add(from(1, i, "f" + i), i) == null || i > 3, "the ring holds up to three events");
+			if (i % 2 == 0)
+				expect(r.add(to(1, i, "t" + i), i) instanceof INotifyRenameEvent, "every second move is paired");
+		}
+		int count = 0;
+		int lastCookie = 0;
+		INotifyEvent e;
+		while ((e = r.poll(0, true)) != null) {
+			expect(e.getCookie() > lastCookie, "the events are released in order");
+			lastCookie = e.getCookie();
+			count++;
+		}
+		expect(count > 0 && count <= 3 && r.isEmpty(), "the ring drains after wrapping around");
+		passed("correlator/wrap around");
+	}
+
+	private static void checkPollWatch() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent x = from(1, 1, "x");
+		INotifyEvent y = from(2, 2, "y");
+		INotifyEvent z = from(1, 3, "z");
+		r.add(x, 0);
+		r.add(y, 1);
+		r.add(z, 2);
+		expect(r.pollWatch(1) == x, "the oldest event of the watch is released first");
+		expect(r.pollWatch(1) == z, "the events of other watches are skipped");
+		expect(r.pollWatch(1) == null, "no event of the watch is left");
+		expect(r.add(to(2, 2, "y2"), 3) instanceof INotifyRenameEvent, "the event of the other watch can still be paired");
+		expect(r.isEmpty(), "the ring is empty");
+		passed("correlator/poll watch");
+	}
+
+	private static void checkPollBefore() {
+		// mv x out; mv y x: the stale move of x must not follow the rename
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent x = from(1, 1, "x");
+		INotifyEvent other = from(2, 2, "o");
+		r.add(x, 0);
+		r.add(other, 1);
+		r.add(from(1, 3, "y"), 2);
+		INotifyEvent to = to(1, 3, "x");
+		expect(r.pollBefore(to) == x, "the older move of the directory is released first");
+		expect(r.pollBefore(to) == null, "the partner and other directories are kept");
+		INotifyEvent e = r.add(to, 3);
+		expect(e instanceof INotifyRenameEvent && "y".equals(((INotifyRenameEvent) e).getOldFileName()), "the rename follows");
+		expect(r.pollWatch(2) == other && r.isEmpty(), "the move of the other directory is still held back");
+
+		// a move between directories releases the older moves of both
+		r.add(from(3, 4, "a"), 4);
+		r.add(from(4, 5, "b"), 5);
+		r.add(from(3, 6, "c"), 6);
+		to = to(4, 6, "c");
+		expect("a".equals(r.pollBefore(to).getChangedFileName()), "the older move of the source directory is released");
+		expect("b".equals(r.pollBefore(to).getChangedFileName()), "the older move of the target directory is released");
+		expect(r.pollBefore(to) == null && r.add(to, 7) instanceof INotifyRenameEvent && r.isEmpty(), "the rename follows");
+		passed("correlator/poll before");
+	}
+
+	private static void checkPollBeforeUnpaired() {
+		RenameCorrelator r = new RenameCorrelator(WINDOW, 4);
+		INotifyEvent x = from(1, 1, "x");
+		r.add(x, 0);
+		INotifyEvent to = to(1, 9, "z");
+		expect(r.pollBefore(to) == x, "an unpaired move releases the held moves of its directory");
+		expect(r.pollBefore(to) == null && r.add(to, 1) == to && r.isEmpty(), "the unpaired move follows");
+		expect(r.pollBefore(from(1, 2, "w")) == null, "a MOVED_FROM releases nothing");
+		passed("correlator/poll before unpaired");
+	}
+
+	private static void checkMerge() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		INotifyEvent first = event(1, INotifyEvent.IN_MODIFY, "f");
+		c.add(first, 0);
+		c.add(event(1, INotifyEvent.IN_MODIFY, "f"), 1);
+		c.add(event(1, INotifyEvent.IN_MODIFY, "f"), 2);
+		expect(c.poll(2 + WINDOW, false) == first, "equal events are merged into the first one");
+		expect(c.poll(2 + WINDOW, true) == null && c.isEmpty(), "a single event is released");
+		passed("coalescer/merge");
+	}
+
+	private static void checkQuietWindow() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		c.add(event(1, INotifyEvent.IN_MODIFY, "f"), 0);
+		c.add(event(1, INotifyEvent.IN_MODIFY, "f"), WINDOW / 2);
+		expect(c.getDelay(WINDOW / 2) == WINDOW, "a merged event restarts the window");
+		expect(c.poll(WINDOW, false) == null, "the event waits for its quiet window");
+		expect(c.poll(WINDOW / 2 + WINDOW, false) != null, "the event is released when it is quiet");
+		expect(c.getDelay(0) == -1, "no delay without held events");
+		passed("coalescer/quiet window");
+	}
+
+	private static void checkOrderOfFile() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		INotifyEvent modify = event(1, INotifyEvent.IN_MODIFY, "f");
+		INotifyEvent attrib = event(1, INotifyEvent.IN_ATTRIB, "f");
+		INotifyEvent other = event(1, INotifyEvent.IN_MODIFY, "g");
+		c.add(modify, 0);
+		c.add(other, 1);
+		c.add(attrib, 2);
+		// the other file stays busy, the events of f must not wait for it
+		c.add(event(1, INotifyEvent.IN_MODIFY, "g"), WINDOW);
+		expect(c.poll(WINDOW + 2, false) == modify, "the oldest quiet event is released first");
+		expect(c.poll(WINDOW + 2, false) == attrib, "a quiet event passes a busy event of another file");
+		expect(c.poll(WINDOW + 2, false) == null, "the busy event waits");
+		// a different event of f after the release starts a new entry
+		c.add(event(1, INotifyEvent.IN_ATTRIB, "f"), WINDOW + 3);
+		expect(c.poll(WINDOW * 2, false) == other, "the busy event is released when it is quiet");
+		expect(c.poll(WINDOW * 2, false) == null, "the new event of f waits for its window");
+		expect(c.poll(WINDOW * 2 + 3, false) != null && c.isEmpty(), "the coalescer is empty");
+		passed("coalescer/order");
+	}
+
+	private static void checkBlockedByLaterEvent() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		c.add(from(1, 9, "a"), 0);
+		INotifyEvent modify = event(1, INotifyEvent.IN_MODIFY, "a");
+		c.add(modify, 1);
+		// the pairing is seen after the modification of a, but was read first
+		c.add(to(1, 9, "b"), WINDOW / 2);
+		expect(c.poll(WINDOW + 1, false) == null, "the quiet event waits for the earlier event of its file");
+		expect(c.getDelay(WINDOW + 1) == WINDOW / 2 - 1, "the delay is the one of the earlier event");
+		expect(c.poll(WINDOW / 2 + WINDOW, false) instanceof INotifyRenameEvent, "the rename is released first");
+		expect(c.poll(WINDOW / 2 + WINDOW, false) == modify && c.isEmpty(), "the modification follows");
+		passed("coalescer/blocked");
+	}
+
+	private static void checkCoalescedRename() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		c.add(from(1, 9, "a"), 0);
+		c.add(to(1, 9, "b"), 1);
+		INotifyEvent e = c.poll(1 + WINDOW, false);
+		expect(e instanceof INotifyRenameEvent, "a move inside of a watch is paired");
+		expect("a".equals(((INotifyRenameEvent) e).getOldFileName()) && "b".equals(e.getChangedFileName()), "the rename carries both names");
+		expect(c.isEmpty(), "the coalescer is empty");
+		c.add(event(1, INotifyEvent.IN_MODIFY, "a"), 2);
+		expect(c.poll(2, true) != null && c.isEmpty(), "the old name of a released rename is free again");
+		passed("coalescer/rename");
+	}
+
+	private static void checkForce() {
+		EventCoalescer c = new EventCoalescer(WINDOW);
+		for (int i = 0; i < 10; i++)
+			c.add(event(1, INotifyEvent.IN_CREATE, "f" + i), i);
+		for (int i = 0; i < 10; i++) {
+			INotifyEvent e = c.poll(0, true);
+			expect(e != null && ("f" + i).equals(e.getChangedFileName()), "forced events are released in order");
+		}
+		expect(c.isEmpty(), "the coalescer is empty");
+		passed("coalescer/force");
+	}
+
+	private static INotifyEvent event(long wd, int mask, String name) {
+		return new INotifyEvent(wd, 0, mask, name);
+	}
+
+	private static INotifyEvent from(long wd, int cookie, String name) {
+		return new INotifyEvent(wd, cookie, INotifyEvent.IN_MOVED_FROM, name);
+	}
+
+	private static INotifyEvent to(long wd, int cookie, String name) {
+		return new INotifyEvent(wd, cookie, INotifyEvent.IN_MOVED_TO, name);
+	}
+
+	private static void expect(boolean condition, String description) {
+		if (!condition)
+			throw new IllegalStateException("Check failed: " + description);
+	}
+
+	private static void passed(String name) {
+		checks++;
+		System.out.println("ok " + name);
+	}
+
+}
@@ -0,0 +1,391 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts load on a real inotify instance and measures how the events reach the
+ * listeners. It creates a temporary tree of directories, watches every
+ * directory with one listener and lets a number of threads create, modify,
+ * move and delete files in them at a given rate. At the end it prints the
+ * throughput of the events, the latency from the file operation to the
+ * listener, the number of overflows, the metrics of the service and the
+ * memory allocated by the reading thread and the listeners. The allocation
+ * of every thread is sampled during the run, so a thread that ends before the
+ * run is still counted with its last sample. The generating threads and the
+ * thread that runs the benchmark are not counted.
+ *
+ * <p>Every file runs through the four operations, so every operation causes
+ * one expected event. The time before an operation is stored under the kind
+ * and the name of the expected event and the listener computes the latency of
+ * the first matching event. Events that are lost in an overflow have no
+ * latency.</p>
+ *
+ * <p>The load is set with the system properties {@code load.watches},
+ * {@code load.threads}, {@code load.rate} (operations per second of all
+ * threads, 0 for no limit), {@code load.seconds}, {@code load.buffer} (size of
+ * the event buffer) and {@code load.reactor} (use a shared reactor thread).
+ * It needs the native library.</p>
+ */
+public class LoadBenchmark {
+
+	private static final int EVENT_MASK = FileNotifyConstants.SUBFILE_CREATED
+			| FileNotifyConstants.MODIFIED | FileNotifyConstants.MOVED_TO
+			| FileNotifyConstants.SUBFILE_DELETED;
+
+	/**
+	 * The maximal number of latencies that are recorded.
+	 */
+	private static final int MAX_SAMPLES = 4000000;
+
+	/**
+	 * The time between two samples of the allocated memory in milliseconds.
+	 */
+	private static final long ALLOCATION_INTERVAL = 100;
+
+	private final int watchCount = Integer.getInteger("load.watches", 64).intValue();
+	private final int threadCount = Integer.getInteger("load.threads", 2).intValue();
+	private final int rate = Integer.getInteger("load.rate", 0).intValue();
+	private final int seconds = Integer.getInteger("load.seconds", 10).intValue();
+	private final int bufferSize = Integer.getInteger("load.buffer", INotifyService.DEFAULT_EVENT_BUFFER_SIZE).intValue();
+	private final boolean useReactor = Boolean.getBoolean("load.reactor");
+
+	/**
+	 * The start times of the operations by the kind and the name of their
+	 * expected event.
+	 */
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+	private final long[] latencies = new long[MAX_SAMPLES];
+	private final AtomicInteger samples = new AtomicInteger();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicInteger overflows = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		new LoadBenchmark().run();
+	}
+
+	private void run() throws Exception {
+		File root = File.createTempFile("jfilenotify-load", "");
+		if (!root.delete() || !root.mkdir())
+			throw new IOException("Could not create " + root);
+		File[] directories = new File[watchCount];
+		for (int i = 0; i < watchCount; i++) {
+			directories[i] = new File(root, "d" + i);
+			if (!directories[i].mkdir())
+				throw new IOException("Could not create " + directories[i]);
+		}
+
+		INotifyService.Builder builder = new INotifyService.Builder().eventBufferSize(bufferSize).collectMetrics(true);
+		if (useReactor)
+			builder.reactor(INotifyReactor.getSharedReactor());
+		INotifyService service = builder.build();
+		try {
+			List<FileNotifyListener> listeners = new ArrayList<FileNotifyListener>();
+			for (int i = 0; i < watchCount; i++)
+				listeners.add(new LatencyListener(directories[i].getPath()));
+			service.addFileNotifyListeners(listeners);
+
+			System.out.println("watches=" + watchCount + " threads=" + threadCount + " rate="
+					+ (rate > 0 ? rate + "/s" : "unlimited") + " seconds=" + seconds
+					+ " buffer=" + bufferSize + " reactor=" + useReactor);
+
+			AllocationSampler allocation = new AllocationSampler();
+			allocation.exclude(Thread.currentThread());
+			allocation.sample();
+			long start = System.nanoTime();
+			Thread[] generators = new Thread[threadCount];
+			for (int i = 0; i < threadCount; i++) {
+				generators[i] = new Generator(i, directories);
+				allocation.exclude(generators[i]);
+				generators[i].start();
+			}
+			long end = start + seconds * 1000000000L;
+			while (System.nanoTime() < end) {
+				Thread.sleep(ALLOCATION_INTERVAL);
+				allocation.sample();
+			}
+			running = false;
+			for (int i = 0; i < threadCount; i++)
+				generators[i].join();
+			// give the reading thread the time to catch up
+			long received;
+			do {
+				received = this.received.get();
+				Thread.sleep(ALLOCATION_INTERVAL);
+				allocation.sample();
+				Thread.sleep(ALLOCATION_INTERVAL);
+				allocation.sample();
+			} while (received != this.received.get());
+			long elapsed = System.nanoTime() - start;
+			long allocated = allocation.getAllocatedBytes();
+
+			report(elapsed, allocated, service.getMetrics());
+		} finally {
+			service.dispose();
+			delete(root);
+		}
+	}
+
+	private void report(long elapsedNanos, long allocated, INotifyMetrics metrics) {
+		double elapsedSeconds = elapsedNanos / 1e9;
+		long ops = operations.get();
+		long events = received.get();
+		int n = Math.min(samples.get(), latencies.length);
+		long[] sorted = new long[n];
+		System.arraycopy(latencies, 0, sorted, 0, n);
+		Arrays.sort(sorted);
+
+		System.out.println(String.format("operations     %12d  %12.0f/s", ops, ops / elapsedSeconds));
+		System.out.println(String.format("events         %12d  %12.0f/s", events, events / elapsedSeconds));
+		System.out.println(String.format("missing        %12d", ops - n));
+		System.out.println(String.format("overflows      %12d", overflows.get()));
+		System.out.println(String.format("latency p50    %12.1f us", percentile(sorted, 0.50) / 1e3));
+		System.out.println(String.format("latency p99    %12.1f us", percentile(sorted, 0.99) / 1e3));
+		System.out.println(String.format("latency p999   %12.1f us", percentile(sorted, 0.999) / 1e3));
+		System.out.println(String.format("latency max    %12.1f us", n > 0 ? sorted[n - 1] / 1e3 : 0.0));
+		System.out.println(String.format("batch size     %12.1f mean  %8d p99  %8d max",
+				metrics.getBatchSizeMean(), metrics.getBatchSizeP99(), metrics.getBatchSizeMax()));
+		System.out.println(String.format("dispatch       %12.1f us p99  %8.1f us max",
+				metrics.getDispatchLatencyP99() / 1e3, metrics.getDispatchLatencyMax() / 1e3));
+		if (allocated >= 0) {
+			System.out.println(String.format("allocated      %12.1f MB/s  %8.0f bytes/event",
+					allocated / elapsedSeconds / (1 << 20), events > 0 ? (double) allocated / events : 0.0));
+		} else {
+			System.out.println("allocated      not supported by this VM");
+		}
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++)
+				delete(children[i]);
+		}
+		file.delete();
+	}
+
+	private static String key(int kind, String directory, String name) {
+		return kind + ":" + directory + "/" + name;
+	}
+
+	/**
+	 * Samples the bytes allocated by the threads of the VM, if the VM
+	 * supports it. The last sample of every thread is kept, so a thread that
+	 * ended between two samples is still counted. The method is looked up on
+	 * the interface {@code com.sun.management.ThreadMXBean} at runtime, since
+	 * it is no standard api.
+	 */
+	private static class AllocationSampler {
+
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final Method getThreadAllocatedBytes;
+
+		/**
+		 * The allocated bytes of the threads at their first and their last
+		 * sample by thread id.
+		 */
+		private final Map<Long, long[]> samples = new HashMap<Long, long[]>();
+		private final Set<Long> excluded = new HashSet<Long>();
+		private boolean supported;
+		private boolean started = false;
+
+		AllocationSampler() {
+			Method m = null;
+			try {
+				Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+				if (c.isInstance(threads))
+					m = c.getMethod("getThreadAllocatedBytes", long[].class);
+			} catch (Exception ex) {
+				m = null;
+			}
+			getThreadAllocatedBytes = m;
+			supported = m != null;
+		}
+
+		void exclude(Thread t) {
+			excluded.add(Long.valueOf(t.getId()));
+		}
+
+		void sample() {
+			if (!supported)
+				return;
+			long[] ids = threads.getAllThreadIds();
+			long[] bytes;
+			try {
+				bytes = (long[]) getThreadAllocatedBytes.invoke(threads, ids);
+			} catch (Exception ex) {
+				supported = false;
+				return;
+			}
+			for (int i = 0; i < ids.length; i++) {
+				if (bytes[i] < 0)
+					continue; // ended or not measured
+				Long id = Long.valueOf(ids[i]);
+				long[] sample = samples.get(id);
+				if (sample == null)
+					samples.put(id, new long[] { started ? 0 : bytes[i], bytes[i] });
+				else
+					sample[1] = bytes[i];
+			}
+			started = true;
+		}
+
+		/**
+		 * Returns the bytes allocated by the threads that are not excluded
+		 * since their first sample. A thread that started after the first
+		 * sample is counted from its start.
+		 *
+		 * @return the allocated bytes or -1 if not supported
+		 */
+		long getAllocatedBytes() {
+			if (!supported || !started)
+				return -1;
+			long sum = 0;
+			for (Map.Entry<Long, long[]> e : samples.entrySet()) {
+				if (excluded.contains(e.getKey()))
+					continue;
+				long[] sample = e.getValue();
+				sum += sample[1] - sample[0];
+			}
+			return sum;
+		}
+
+	}
+
+	/**
+	 * Runs the files of its directories through create, modify, move and
+	 * delete.
+	 */
+	private class Generator extends Thread {
+
+		private final int id;
+		private final File[] directories;
+
+		Generator(int id, File[] directories) {
+			super("LoadGenerator-" + id);
+			this.id = id;
+			this.directories = directories;
+		}
+
+		public void run() {
+			long interval = rate > 0 ? 1000000000L * threadCount / rate : 0;
+			long next = System.nanoTime();
+			byte[] data = new byte[64];
+			int file = 0;
+			try {
+				while (running) {
+					File dir = directories[(id + file * threadCount) % directories.length];
+					String name = "f" + id + "-" + file;
+					String moved = name + "m";
+					File f = new File(dir, name);
+					File g = new File(dir, moved);
+
+					next = pace(next, interval);
+					expect(FileNotifyConstants.SUBFILE_CREATED, dir, name);
+					FileOutputStream out = new FileOutputStream(f);
+
+					next = pace(next, interval);
+					expect(FileNotifyConstants.MODIFIED, dir, name);
+					out.write(data);
+					out.close();
+
+					next = pace(next, interval);
+					expect(FileNotifyConstants.MOVED_TO, dir, moved);
+					f.renameTo(g);
+
+					next = pace(next, interval);
+					expect(FileNotifyConstants.SUBFILE_DELETED, dir, moved);
+					g.delete();
+
+					operations.addAndGet(4);
+					file++;
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+
+		private void expect(int kind, File dir, String name) {
+			pending.put(key(kind, dir.getPath(), name), Long.valueOf(System.nanoTime()));
+		}
+
+		/**
+		 * Waits until the next operation is due.
+		 */
+		private long pace(long next, long interval) {
+			if (interval == 0)
+				return next;
+			long now = System.nanoTime();
+			if (next > now) {
+				long wait = next - now;
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return next + interval;
+		}
+
+	}
+
+	/**
+	 * Records the latency of the expected events of its directory.
+	 */
+	private class LatencyListener extends FileNotifyListener {
+
+		LatencyListener(String fileName) {
+			super(fileName, EVENT_MASK);
+		}
+
+		public void notificationRecieved(FileNotifyEvent event) {
+			long now = System.nanoTime();
+			received.incrementAndGet();
+			int mask = event.getChangeMask();
+			if ((mask & FileNotifyConstants.OVERFLOWED) != 0) {
+				overflows.incrementAndGet();
+				return;
+			}
+			int kind = mask & EVENT_MASK;
+			Long start = pending.remove(key(kind, getFileName(), event.getChangedFileName()));
+			if (start != null) {
+				int index = samples.getAndIncrement();
+				if (index < latencies.length)
+					latencies[index] = now - start.longValue();
+			}
+		}
+
+		public void discarded(FileNotifyEvent event) {
+		}
+
+	}
+
+}
@@ -0,0 +1,356 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the pure java parts of the path an event takes from the event
+ * buffer to the listeners: the decoding of the raw records, the lookup of the
+ * group of a watch descriptor, the notification of the listeners of a group
+ * and the translation of the masks. The records are synthetic, so neither the
+ * native library nor an inotify instance is needed.
+ *
+ * <p>Every benchmark is run for a number of warmup rounds, whose results are
+ * thrown away, and then for a number of measured rounds. The mean and the
+ * best time per operation of the measured rounds are printed. The benchmarks
+ * can be selected with a prefix of their names as arguments, the number of
+ * rounds and their length can be set with the system properties
+ * {@code bench.warmup}, {@code bench.rounds} and {@code bench.millis}.</p>
+ *
+ * <p>Run it with the {@code benchmark} target of the build file.</p>
+ */
+public class PipelineBenchmark {
+
+	private static final int[] WATCH_COUNTS = { 16, 1024, 65536 };
+	private static final int[] LISTENER_COUNTS = { 1, 8, 64 };
+
+	/**
+	 * The number of records in the synthetic event buffer.
+	 */
+	private static final int RECORDS = 1024;
+
+	/**
+	 * The events a listener can be interested in, as they are read from
+	 * inotify.
+	 */
+	private static final int[] EVENT_MASKS = {
+		INotifyEvent.IN_MODIFY, INotifyEvent.IN_ATTRIB, INotifyEvent.IN_CLOSE_WRITE,
+		INotifyEvent.IN_CREATE, INotifyEvent.IN_DELETE, INotifyEvent.IN_MOVED_FROM,
+		INotifyEvent.IN_MOVED_TO, INotifyEvent.IN_CREATE | INotifyEvent.IN_ISDIR
+	};
+
+	/**
+	 * Receives the results of the benchmarks, so the JIT can't remove them.
+	 */
+	static volatile long sink;
+
+	private final int warmupRounds = Integer.getInteger("bench.warmup", 5).intValue();
+	private final int measuredRounds = Integer.getInteger("bench.rounds", 10).intValue();
+	private final long roundNanos = Integer.getInteger("bench.millis", 200).intValue() * 1000000L;
+	private final String[] filters;
+
+	private PipelineBenchmark(String[] filters) {
+		this.filters = filters;
+	}
+
+	public static void main(String[] args) {
+		new PipelineBenchmark(args).runAll();
+	}
+
+	private void runAll() {
+		System.out.println("benchmark                                   mean ns/op     best ns/op");
+		for (int i = 0; i < WATCH_COUNTS.length; i++) {
+			run(new DecodeBenchmark(WATCH_COUNTS[i], false));
+			run(new DecodeBenchmark(WATCH_COUNTS[i], true));
+		}
+		for (int i = 0; i < WATCH_COUNTS.length; i++)
+			run(new LookupBenchmark(WATCH_COUNTS[i]));
+		for (int i = 0; i < LISTENER_COUNTS.length; i++) {
+			run(new FanOutBenchmark(LISTENER_COUNTS[i], false));
+			run(new FanOutBenchmark(LISTENER_COUNTS[i], true));
+		}
+		run(new MaskBenchmark(true, false));
+		run(new MaskBenchmark(true, true));
+		run(new MaskBenchmark(false, false));
+		run(new MaskBenchmark(false, true));
+	}
+
+	/**
+	 * Runs a benchmark if it is selected and prints its result.
+	 */
+	private void run(Benchmark b) {
+		if (!isSelected(b.name))
+			return;
+		for (int i = 0; i < warmupRounds; i++)
+			round(b);
+		double total = 0;
+		double best = Double.MAX_VALUE;
+		for (int i = 0; i < measuredRounds; i++) {
+			double nanos = round(b);
+			total += nanos;
+			best = Math.min(best, nanos);
+		}
+		System.out.println(String.format("%-40s %13.2f  %13.2f", b.name, total / measuredRounds, best));
+	}
+
+	/**
+	 * Repeats a benchmark for the length of one round.
+	 *
+	 * @return the time per operation in nanoseconds
+	 */
+	private double round(Benchmark b) {
+		long ops = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			result += b.run();
+			ops += b.operations;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < roundNanos);
+		sink = result;
+		return (double) elapsed / ops;
+	}
+
+	private boolean isSelected(String name) {
+		if (filters.length == 0)
+			return true;
+		for (int i = 0; i < filters.length; i++) {
+			if (name.startsWith(filters[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a buffer with synthetic {@code inotify_event} records in the
+	 * layout of the native layer. Every second record has a file name.
+	 *
+	 * @return the buffer, its limit is the number of valid bytes
+	 */
+	static ByteBuffer createRecords(int watchCount, int records, int integerSize) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(records * (integerSize + 12 + 32));
+		buffer.order(ByteOrder.nativeOrder());
+		Random random = new Random(records);
+		for (int i = 0; i < records; i++) {
+			long wd = 1 + random.nextInt(watchCount);
+			if (integerSize == 8)
+				buffer.putLong(wd);
+			else
+				buffer.putInt((int) wd);
+			int mask = EVENT_MASKS[random.nextInt(EVENT_MASKS.length)];
+			buffer.putInt(mask);
+			buffer.putInt((mask & INotifyEvent.IN_MOVE) != 0 ? i + 1 : 0);
+			if ((i & 1) == 0) {
+				buffer.putInt(0);
+			} else {
+				byte[] name = ("file-" + i + ".txt").getBytes();
+				// the kernel pads the name to a multiple of the record alignment
+				int padded = (name.length + 16) & ~15;
+				buffer.putInt(padded);
+				buffer.put(name);
+				for (int j = name.length; j < padded; j++)
+					buffer.put((byte) 0);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * A single benchmark. One run performs a fixed number of operations.
+	 */
+	private static abstract class Benchmark {
+
+		final String name;
+		final int operations;
+
+		Benchmark(String name, int operations) {
+			this.name = name;
+			this.operations = operations;
+		}
+
+		/**
+		 * Performs the operations.
+		 *
+		 * @return a value that depends on the result of the operations
+		 */
+		abstract long run();
+
+	}
+
+	/**
+	 * Decodes a buffer of records. One operation is one record.
+	 */
+	private static class DecodeBenchmark extends Benchmark {
+
+		private final EventDecoder decoder;
+		private final int length;
+
+		DecodeBenchmark(int watchCount, boolean flyweight) {
+			super("decode/" + (flyweight ? "flyweight" : "objects") + "/watches=" + watchCount, RECORDS);
+			ByteBuffer buffer = createRecords(watchCount, RECORDS, 4);
+			length = buffer.limit();
+			decoder = new EventDecoder(buffer, 4, flyweight);
+		}
+
+		long run() {
+			long result = 0;
+			decoder.reset(length);
+			INotifyEvent event;
+			while ((event = decoder.next()) != null) {
+				result += event.getWatchDescriptor() + event.getChangeMask();
+				String name = event.getChangedFileName();
+				if (name != null)
+					result += name.length();
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Looks up the groups of the watch descriptors of the records. One
+	 * operation is one lookup.
+	 */
+	private static class LookupBenchmark extends Benchmark {
+
+		private final WatchDescriptorTable table = new WatchDescriptorTable();
+		private final long[] watchDescriptors = new long[RECORDS];
+
+		LookupBenchmark(int watchCount) {
+			super("lookup/watches=" + watchCount, RECORDS);
+			for (int i = 1; i <= watchCount; i++)
+				table.put(new ListenerGroup(i));
+			Random random = new Random(watchCount);
+			for (int i = 0; i < watchDescriptors.length; i++)
+				watchDescriptors[i] = 1 + random.nextInt(watchCount);
+		}
+
+		long run() {
+			long result = 0;
+			for (int i = 0; i < watchDescriptors.length; i++)
+				result += table.get(watchDescriptors[i]).getWatchDescriptor();
+			return result;
+		}
+
+	}
+
+	/**
+	 * Notifies the listeners of a group that are called directly. Every
+	 * listener is interested in one or two kinds of events. One operation is
+	 * one event.
+	 */
+	private static class FanOutBenchmark extends Benchmark {
+
+		private static final int[] LISTENER_MASKS = {
+			FileNotifyConstants.MODIFIED, FileNotifyConstants.SUBFILE_CREATED,
+			FileNotifyConstants.SUBFILE_DELETED, FileNotifyConstants.ATTRIBUTES_CHANGED | FileNotifyConstants.MODIFIED,
+			FileNotifyConstants.MOVED_FROM | FileNotifyConstants.MOVED_TO, FileNotifyConstants.CLOSED_WRITEABLE
+		};
+
+		private final ListenerGroup group;
+		private final INotifyEvent[] events;
+		private final int[] masks;
+		private final long[] received;
+
+		FanOutBenchmark(int listenerCount, boolean rawMasks) {
+			super("fanout/" + (rawMasks ? "raw" : "translated") + "/listeners=" + listenerCount, RECORDS);
+			group = new ListenerGroup(1, null, rawMasks);
+			received = new long[1];
+			for (int i = 0; i < listenerCount; i++) {
+				int mask = LISTENER_MASKS[i % LISTENER_MASKS.length];
+				if (rawMasks)
+					mask = MaskTranslator.importMask(mask);
+				group.addListener(new CountingListener("/tmp", mask, received));
+			}
+			List<INotifyEvent> list = new ArrayList<INotifyEvent>();
+			Random random = new Random(listenerCount);
+			for (int i = 0; i < RECORDS; i++)
+				list.add(new INotifyEvent(1, 0, EVENT_MASKS[random.nextInt(EVENT_MASKS.length)], "file"));
+			events = list.toArray(new INotifyEvent[list.size()]);
+			masks = new int[events.length];
+			for (int i = 0; i < events.length; i++)
+				masks[i] = events[i].getChangeMask();
+		}
+
+		long run() {
+			for (int i = 0; i < events.length; i++) {
+				// the group translates the mask of the event in place
+				events[i].setChangeMask(masks[i]);
+				group.notifyAllListener(events[i]);
+			}
+			return received[0];
+		}
+
+	}
+
+	/**
+	 * Translates masks between the constants of this project and inotify,
+	 * either with the lookup tables or with the chain of bit tests the tables
+	 * are computed from. One operation is one mask.
+	 */
+	private static class MaskBenchmark extends Benchmark {
+
+		private final boolean importing;
+		private final boolean bitTests;
+		private final int[] masks = new int[RECORDS];
+
+		MaskBenchmark(boolean importing, boolean bitTests) {
+			super("mask/" + (importing ? "import" : "export") + "/" + (bitTests ? "bittests" : "tables"), RECORDS);
+			this.importing = importing;
+			this.bitTests = bitTests;
+			Random random = new Random(RECORDS);
+			for (int i = 0; i < masks.length; i++)
+				masks[i] = random.nextInt();
+		}
+
+		long run() {
+			long result = 0;
+			if (importing && bitTests) {
+				for (int i = 0; i < masks.length; i++)
+					result += MaskTranslator.translateImport(masks[i]);
+			} else if (importing) {
+				for (int i = 0; i < masks.length; i++)
+					result += MaskTranslator.importMask(masks[i]);
+			} else if (bitTests) {
+				for (int i = 0; i < masks.length; i++)
+					result += MaskTranslator.translateExport(masks[i]);
+			} else {
+				for (int i = 0; i < masks.length; i++)
+					result += MaskTranslator.exportMask(masks[i]);
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Counts the received events in an array that is shared by all listeners
+	 * of a benchmark.
+	 */
+	private static class CountingListener extends FileNotifyListener {
+
+		private final long[] received;
+
+		CountingListener(String fileName, int mask, long[] received) {
+			super(fileName, mask);
+			this.received = received;
+		}
+
+		public void notificationRecieved(FileNotifyEvent event) {
+			received[0]++;
+		}
+
+		public void discarded(FileNotifyEvent event) {
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.QueuePolicy;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a recursive listener with a small {@link QueuePolicy#BLOCK}
+ * queue receives the content of a large directory that is moved into its
+ * tree, if the service has no executor. The walker that reports the content
+ * fills the queue faster than the listener drains it and must wait for the
+ * listener instead of for itself.
+ *
+ * <p>The check ends the program with an exception if not all entries are
+ * reported in time. It needs the native library, run it with the
+ * {@code native-check} target of the build file.</p>
+ */
+public class TreeDeliveryCheck {
+
+	private static final int CAPACITY = 4;
+	private static final int ENTRIES = 500;
+	private static final long TIMEOUT = 20000;
+
+	public static void main(String[] args) throws Exception {
+		File base = File.createTempFile("treecheck", "");
+		if (!base.delete() || !base.mkdir())
+			throw new IOException("Directory could not be created: " + base);
+		File root = new File(base, "tree");
+		File outside = new File(base, "outside");
+		try {
+			if (!root.mkdir() || !outside.mkdir())
+				throw new IOException("Directories could not be created in " + base);
+			for (int i = 0; i < ENTRIES; i++) {
+				if (!new File(outside, "f" + i).createNewFile())
+					throw new IOException("File could not be created in " + outside);
+			}
+
+			final AtomicInteger received = new AtomicInteger();
+			FileNotifyListener listener = new FileNotifyListener(root.getPath(),
+					FileNotifyConstants.SUBFILE_CREATED | FileNotifyConstants.MOVED_TO, CAPACITY, QueuePolicy.BLOCK) {
+				public void notificationRecieved(FileNotifyEvent event) {
+					String name = event.getChangedFileName();
+					if (name != null && name.startsWith("moved" + File.separatorChar))
+						received.incrementAndGet();
+				}
+
+				public void discarded(FileNotifyEvent event) {
+				}
+			};
+
+			INotifyService service = new INotifyService();
+			try {
+				service.addRecursiveFileNotifyListener(listener);
+				if (!outside.renameTo(new File(root, "moved")))
+					throw new IOException("Directory could not be moved into " + root);
+				long end = System.currentTimeMillis() + TIMEOUT;
+				while (received.get() < ENTRIES && System.currentTimeMillis() < end)
+					Thread.sleep(10);
+			} finally {
+				service.dispose();
+			}
+			if (received.get() < ENTRIES)
+				throw new IllegalStateException("Check failed: " + received.get() + " of " + ENTRIES + " moved entries were reported");
+			System.out.println("ok tree/blocked delivery of " + ENTRIES + " entries");
+		} finally {
+			delete(base);
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+
+}
@@ -14,6 +14,7 @@ public interface FileNotifyConstants {
 	public static final int CLOSED_WRITEABLE     = 0x00000008;
 	public static final int CLOSED_NOT_WRITEABLE = 0x00000010;
 	public static final int ATTRIBUTES_CHANGED   = 0x00000020;
+	public static final int RENAMED              = 0x00000040; // see FileRenameEvent
 
 	public static final int SUBFILE_CREATED      = 0x00000100;
 	public static final int SUBFILE_DELETED      = 0x00000200;
@@ -22,8 +23,12 @@ public interface FileNotifyConstants {
 	public static final int SELF_DELETED         = 0x00001000;
 	public static final int SELF_MOVED           = 0x00002000;
 	public static final int UNMOUNTED            = 0x00004000;
+	public static final int OVERFLOWED           = 0x00008000; // events were lost
 
 	public static final int ONLY_DIRECTORY       = 0x00010000;
 //	public static final int DONT_FOLLOW          = 0x00020000;
 
+	// informational, set in events only
+	public static final int IS_DIRECTORY         = 0x00100000;
+
 }
@@ -4,10 +4,37 @@ public abstract class FileNotifyListener {
 	
 	private String fileName;
 	private int mask;
+	private int queueCapacity;
+	private QueuePolicy queuePolicy;
 	
 	public FileNotifyListener(String fileName, int mask) {
+		this(fileName, mask, 0, QueuePolicy.BLOCK);
+	}
+	
+	/**
+	 * Creates a listener with a bounded event queue. The queue is used if the
+	 * service calls its listeners asynchronously. If more events are waiting
+	 * for this listener than the queue can hold, the policy decides what 
+	 * happens to a new event.
+	 *
+	 * @param fileName
+	 *        the name of the file/directory to monitor
+	 * @param mask
+	 *        the events to monitor, see {@link FileNotifyConstants}
+	 * @param queueCapacity
+	 *        the maximal number of waiting events or 0 for an unbounded queue
+	 * @param queuePolicy
+	 *        what happens to a new event if the queue is full
+	 */
+	public FileNotifyListener(String fileName, int mask, int queueCapacity, QueuePolicy queuePolicy) {
+		if (queueCapacity < 0)
+			throw new IllegalArgumentException("Queue capacity must not be negative: " + queueCapacity);
+		if (queuePolicy == null)
+			throw new NullPointerException("queuePolicy");
 		this.fileName = fileName;
 		this.mask = mask;
+		this.queueCapacity = queueCapacity;
+		this.queuePolicy = queuePolicy;
 	}
 
 	public final String getFileName() {
@@ -17,6 +44,24 @@ public abstract class FileNotifyListener {
 	public final int getMask() {
 		return mask;
 	}
+	
+	/**
+	 * Returns the maximal number of events that can wait for this listener.
+	 *
+	 * @return the capacity of the event queue or 0 if it is unbounded
+	 */
+	public final int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	/**
+	 * Returns the policy that is applied if the event queue is full.
+	 *
+	 * @return the policy of the event queue
+	 */
+	public final QueuePolicy getQueuePolicy() {
+		return queuePolicy;
+	}
 
 	public abstract void notificationRecieved(FileNotifyEvent event);
 	
@@ -1,9 +1,25 @@
 package de.jtdev.jfilenotify;
 
+import java.util.Collection;
+
 public interface FileNotifyService {
 	
 	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException;
 	
+	/**
+	 * Adds many listeners at once. Implementations may register them faster
+	 * than one by one. Listeners that could be registered stay registered,
+	 * even if an exception is thrown for the others.
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException;
+	
+	/**
+	 * Adds a listener for the directory of the listener and all of its
+	 * subdirectories. The file names of the events are relative to that
+	 * directory. It is removed with {@link #removeFileNotifyListener(FileNotifyListener)}.
+	 */
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException;
+	
 	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException;
 	
 	public void dispose() throws FileNotifyException;
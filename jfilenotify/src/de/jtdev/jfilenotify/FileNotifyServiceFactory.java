@@ -1,10 +1,15 @@
 package de.jtdev.jfilenotify;
 
+import de.jtdev.jfilenotify.fanotify.FANotifyService;
+import de.jtdev.jfilenotify.inotify.HybridFileNotifyService;
+import de.jtdev.jfilenotify.inotify.INotifyReactor;
 import de.jtdev.jfilenotify.inotify.INotifyService;
+import de.jtdev.jfilenotify.polling.PollingService;
 
 /**
  * This factory delivers a platform specific {@link FileNotifyService} through
- * its {@link #createNotificationService()} method.
+ * its {@link #createNotificationService()} method. If the platform has no
+ * notification subsystem, the service polls the files.
  *
  * @author Tobias Oelgarte
  */
@@ -22,6 +27,10 @@ public class FileNotifyServiceFactory {
 	 * <p>Creates a new {@code FileNotifyService} instance and binding it to
 	 * the underlying notification subsystem.</p>
 	 *
+	 * <p>On Linux the service uses inotify. On other operating systems or if
+	 * the native library can't be loaded, a {@link PollingService} is
+	 * returned.</p>
+	 *
 	 * @return A system depended FileNotifyService instance, that is capable
 	 *         to monitor the filesystem.
 	 *
@@ -29,17 +38,116 @@ public class FileNotifyServiceFactory {
 	 *         <p>If the service could not be registrated for any reason. This
 	 *         can happen when an application registers to many
 	 *         {@code FileNotifyService} instances without releasing the
-	 *         resources of no longer used services, when the subsystem dont
-	 *         permit the registration of filesytem notifications or when the
-	 *         operating system is not supported.</p>
+	 *         resources of no longer used services or when the subsystem dont
+	 *         permit the registration of filesytem notifications.</p>
 	 */
 	public static FileNotifyService createNotificationService() throws FileNotifyException {
-		String osName = System.getProperty("os.name");
-		if ("Linux".equals(osName)) {
-			// TODO: use Reflection API?
+		if (isINotifyAvailable()) {
 			return new INotifyService();
 		}
-		throw new FileNotifyException("Sorry, your operating system is not supported.");
+		return createPollingService();
+	}
+	
+	/**
+	 * <p>Creates a new {@code FileNotifyService} that polls the files. It
+	 * works on every operating system and file system, also on network file
+	 * systems whose changes are not reported by the notification subsystem,
+	 * but it notices changes only after a delay.</p>
+	 *
+	 * @return A FileNotifyService that polls the files.
+	 */
+	public static FileNotifyService createPollingService() {
+		return new PollingService();
+	}
+	
+	/**
+	 * <p>Creates a new {@code FileNotifyService} that watches the files of
+	 * local file systems with the notification subsystem and polls the files
+	 * of network and FUSE file systems, whose changes by other hosts are not
+	 * reported. The file system is looked up for every listener that is
+	 * added. If the notification subsystem is not available, all files are
+	 * polled.</p>
+	 *
+	 * @return A FileNotifyService that picks the right way to monitor each
+	 *         file.
+	 *
+	 * @throws FileNotifyException
+	 *         <p>If the service could not be registrated for any reason. See
+	 *         {@link #createNotificationService()}.</p>
+	 */
+	public static FileNotifyService createHybridService() throws FileNotifyException {
+		if (isINotifyAvailable()) {
+			return new HybridFileNotifyService();
+		}
+		return createPollingService();
+	}
+	
+	/**
+	 * <p>Creates a new {@code FileNotifyService} that watches whole file
+	 * systems with fanotify instead of every directory with inotify. It
+	 * needs no watch per directory, so recursive listeners of large trees
+	 * are cheap, but it reads every change of the watched file systems. The
+	 * process needs the capability CAP_SYS_ADMIN and, for recursive
+	 * listeners, CAP_DAC_READ_SEARCH. If fanotify is not available or not
+	 * permitted, the service of {@link #createNotificationService()} is
+	 * returned.</p>
+	 *
+	 * @return A FileNotifyService that watches whole file systems if
+	 *         possible.
+	 *
+	 * @throws FileNotifyException
+	 *         <p>If the service could not be registrated for any reason. See
+	 *         {@link #createNotificationService()}.</p>
+	 */
+	public static FileNotifyService createFANotifyService() throws FileNotifyException {
+		if (isINotifyAvailable() && FANotifyService.isAvailable()) {
+			return new FANotifyService();
+		}
+		return createNotificationService();
+	}
+	
+	/**
+	 * Returns true if the operating system is Linux and the native library of
+	 * inotify can be loaded.
+	 */
+	private static boolean isINotifyAvailable() {
+		if (!"Linux".equals(System.getProperty("os.name")))
+			return false;
+		try {
+			System.loadLibrary("jfilenotify");
+			return true;
+		} catch (UnsatisfiedLinkError ex) {
+			return false;
+		} catch (SecurityException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * <p>Creates a new {@code FileNotifyService} instance like
+	 * {@link #createNotificationService()}, but lets the caller decide if
+	 * the service uses its own thread. Services that don't use an own thread
+	 * share one thread that serves all of them, so the number of threads
+	 * stays the same no matter how many services are created. A service
+	 * that polls the files always uses its own threads.</p>
+	 *
+	 * @param shareThread
+	 *        true if the service should share its thread with other services
+	 *        created by this method
+	 * @return A system depended FileNotifyService instance, that is capable
+	 *         to monitor the filesystem.
+	 *
+	 * @throws FileNotifyException
+	 *         <p>If the service could not be registrated for any reason. See
+	 *         {@link #createNotificationService()}.</p>
+	 */
+	public static FileNotifyService createNotificationService(boolean shareThread) throws FileNotifyException {
+		if (!shareThread)
+			return createNotificationService();
+		if (isINotifyAvailable()) {
+			return new INotifyService.Builder().reactor(INotifyReactor.getSharedReactor()).build();
+		}
+		return createPollingService();
 	}
 	
 }
@@ -0,0 +1,25 @@
+package de.jtdev.jfilenotify;
+
+/**
+ * An event that indicates that a file/directory was renamed or moved from one
+ * monitored directory to another. Its mask contains
+ * {@link FileNotifyConstants#RENAMED} together with
+ * {@link FileNotifyConstants#MOVED_FROM} and
+ * {@link FileNotifyConstants#MOVED_TO}.
+ *
+ * <p>{@link FileNotifyEvent#getChangedFileName() getChangedFileName()}
+ * returns the new name relative to the directory the file was moved to,
+ * {@link FileRenameEvent#getOldFileName() getOldFileName()} the old name
+ * relative to the directory the file was moved from. The listeners of both
+ * directories receive the event.</p>
+ */
+public interface FileRenameEvent extends FileNotifyEvent {
+
+	/**
+	 * Returns the name of the file/directory before it was renamed.
+	 *
+	 * @return the old relative name
+	 */
+	public String getOldFileName();
+
+}
@@ -0,0 +1,38 @@
+package de.jtdev.jfilenotify;
+
+/**
+ * Decides what happens to a new event if the bounded event queue of a
+ * {@link FileNotifyListener} is full. Queues are only used by services that
+ * call their listeners asynchronously.
+ *
+ * @see FileNotifyListener#FileNotifyListener(String, int, int, QueuePolicy)
+ */
+public enum QueuePolicy {
+
+	/**
+	 * The thread that reads the events waits until the listener has taken an
+	 * event from its queue. Other listeners of the service don't receive
+	 * events in the meantime, so the events may overflow in the kernel. If
+	 * the listener can't be scheduled on its executor, the oldest event is
+	 * dropped instead. After the service is disposed the new event is dropped.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest queued event is dropped to make room for the new event.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The new event is dropped.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * The new event is merged into a queued event for the same file, the
+	 * masks of both events are combined. If no such event is queued, the
+	 * oldest queued event is dropped.
+	 */
+	COALESCE
+
+}
@@ -0,0 +1,239 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the raw {@code fanotify_event_metadata} records and their info
+ * records that the native layer read into a direct buffer. The decoder is
+ * positioned on one record at a time, its fields are read with the getters.
+ *
+ * <p>The service requests the parent directory and the name of the changed
+ * entry (FAN_REPORT_DFID_NAME) and the changed file itself (FAN_REPORT_FID).
+ * An event of a directory itself has the name ".".</p>
+ */
+final class FANotifyDecoder {
+
+	// Events of the mask, the bits are the same as the ones of inotify.
+	static final int FAN_ACCESS        = 0x00000001;
+	static final int FAN_MODIFY        = 0x00000002;
+	static final int FAN_ATTRIB        = 0x00000004;
+	static final int FAN_CLOSE_WRITE   = 0x00000008;
+	static final int FAN_CLOSE_NOWRITE = 0x00000010;
+	static final int FAN_OPEN          = 0x00000020;
+	static final int FAN_MOVED_FROM    = 0x00000040;
+	static final int FAN_MOVED_TO      = 0x00000080;
+	static final int FAN_MOVE          = (FAN_MOVED_FROM | FAN_MOVED_TO);
+	static final int FAN_CREATE        = 0x00000100;
+	static final int FAN_DELETE        = 0x00000200;
+	static final int FAN_DELETE_SELF   = 0x00000400;
+	static final int FAN_MOVE_SELF     = 0x00000800;
+	static final int FAN_Q_OVERFLOW    = 0x00004000;
+	static final int FAN_RENAME        = 0x10000000; // Since Linux 5.17.
+	static final int FAN_ONDIR         = 0x40000000;
+
+	/**
+	 * The events that are reported for a file itself.
+	 */
+	static final int SELF_EVENTS = FAN_ACCESS | FAN_MODIFY | FAN_ATTRIB | FAN_CLOSE_WRITE | FAN_CLOSE_NOWRITE
+			| FAN_OPEN | FAN_DELETE_SELF | FAN_MOVE_SELF;
+
+	/**
+	 * The events that are reported for the entries of a directory.
+	 */
+	static final int ENTRY_EVENTS = FAN_ACCESS | FAN_MODIFY | FAN_ATTRIB | FAN_CLOSE_WRITE | FAN_CLOSE_NOWRITE
+			| FAN_OPEN | FAN_MOVE | FAN_CREATE | FAN_DELETE;
+
+	// Types of the info records.
+	private static final int INFO_FID = 1;
+	private static final int INFO_DFID_NAME = 2;
+	private static final int INFO_DFID = 3;
+	private static final int INFO_OLD_DFID_NAME = 10;
+	private static final int INFO_NEW_DFID_NAME = 12;
+
+	/**
+	 * FANOTIFY_METADATA_VERSION, records of other versions are skipped.
+	 */
+	private static final int METADATA_VERSION = 3;
+
+	/**
+	 * The name of the events of a directory itself.
+	 */
+	static final String SELF = ".";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Scratch array used to decode the file names of the events. It grows if
+	 * a longer name is read.
+	 */
+	private byte[] nameBuffer = new byte[256];
+
+	private int index = 0;
+	private int length = 0;
+
+	private int mask;
+	private FileHandle object;
+	private FileHandle directory;
+	private String name;
+	private FileHandle oldDirectory;
+	private String oldName;
+	private FileHandle newDirectory;
+	private String newName;
+
+	/**
+	 * Creates a new decoder.
+	 *
+	 * @param buffer
+	 *        the buffer that holds the records in native byte order
+	 */
+	FANotifyDecoder(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Starts to decode the records at the beginning of the buffer.
+	 *
+	 * @param length
+	 *        the number of valid bytes stored in the buffer
+	 */
+	void reset(int length) {
+		this.index = 0;
+		this.length = length;
+	}
+
+	/**
+	 * Decodes the next record.
+	 *
+	 * @return false if all records were decoded
+	 */
+	boolean next() {
+		while (index + 24 <= length) {
+			int start = index;
+			int eventLength = buffer.getInt(start);
+			if (eventLength < 24 || start + eventLength > length)
+				return false;
+			index = start + eventLength;
+			if ((buffer.get(start + 4) & 0xff) != METADATA_VERSION)
+				continue;
+
+			int metadataLength = buffer.getShort(start + 6) & 0xffff;
+			// all events fit into the lower 32 bits
+			mask = (int) buffer.getLong(start + 8);
+			object = null;
+			directory = null;
+			name = null;
+			oldDirectory = null;
+			oldName = null;
+			newDirectory = null;
+			newName = null;
+
+			int info = start + metadataLength;
+			while (info + 4 <= index) {
+				int type = buffer.get(info) & 0xff;
+				int infoLength = buffer.getShort(info + 2) & 0xffff;
+				if (infoLength < 4 || info + infoLength > index)
+					break;
+				switch (type) {
+				case INFO_FID:
+					object = FileHandle.read(buffer, info + 4);
+					break;
+				case INFO_DFID:
+					directory = FileHandle.read(buffer, info + 4);
+					break;
+				case INFO_DFID_NAME:
+					directory = FileHandle.read(buffer, info + 4);
+					name = decodeFileName(info, infoLength);
+					break;
+				case INFO_OLD_DFID_NAME:
+					oldDirectory = FileHandle.read(buffer, info + 4);
+					oldName = decodeFileName(info, infoLength);
+					break;
+				case INFO_NEW_DFID_NAME:
+					newDirectory = FileHandle.read(buffer, info + 4);
+					newName = decodeFileName(info, infoLength);
+					break;
+				default:
+					// pidfd and error records are not used
+				}
+				info += infoLength;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the events of the record.
+	 */
+	int getMask() {
+		return mask;
+	}
+
+	/**
+	 * Returns the changed file or {@code null} if the record has no FID
+	 * record, for example if an entry of a directory changed.
+	 */
+	FileHandle getObject() {
+		return object;
+	}
+
+	/**
+	 * Returns the directory of the changed entry or {@code null}.
+	 */
+	FileHandle getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the name of the changed entry inside of
+	 * {@link #getDirectory()}, {@link #SELF} if the directory changed itself.
+	 */
+	String getName() {
+		return name;
+	}
+
+	FileHandle getOldDirectory() {
+		return oldDirectory;
+	}
+
+	String getOldName() {
+		return oldName;
+	}
+
+	FileHandle getNewDirectory() {
+		return newDirectory;
+	}
+
+	String getNewName() {
+		return newName;
+	}
+
+	/**
+	 * Decodes the zero terminated file name that follows the handle of a
+	 * DFID_NAME record.
+	 *
+	 * @param info
+	 *        the position of the info record
+	 * @param infoLength
+	 *        the length of the info record
+	 * @return the decoded file name
+	 */
+	private String decodeFileName(int info, int infoLength) {
+		int from = info + 4 + 16 + buffer.getInt(info + 4 + 8);
+		int len = info + infoLength - from;
+		if (nameBuffer.length < len)
+			nameBuffer = new byte[len];
+		int strlen = 0;
+		while (strlen < len) {
+			byte b = buffer.get(from + strlen);
+			if (b == 0)
+				break;
+			nameBuffer[strlen++] = b;
+		}
+		return UTF8.decode(ByteBuffer.wrap(nameBuffer, 0, strlen)).toString();
+	}
+
+}
@@ -0,0 +1,43 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import de.jtdev.jfilenotify.FileNotifyEvent;
+
+/**
+ * An event reported by a {@link FANotifyService}. The mask uses the constants
+ * of {@link de.jtdev.jfilenotify.FileNotifyConstants}. The kernel merges
+ * events of the same file that are still queued, so a mask may contain
+ * several changes, for example a file that was created, written and closed
+ * in a short time.
+ */
+public class FANotifyEvent implements FileNotifyEvent {
+
+	private final int mask;
+	private final String fileName;
+
+	/**
+	 * Creates a new event.
+	 *
+	 * @param mask
+	 *        the changes
+	 * @param fileName
+	 *        the name of the changed entry or {@code null} if the watched
+	 *        file itself changed
+	 */
+	public FANotifyEvent(int mask, String fileName) {
+		this.mask = mask;
+		this.fileName = fileName;
+	}
+
+	public int getChangeMask() {
+		return mask;
+	}
+
+	public String getChangedFileName() {
+		return fileName;
+	}
+
+	public String toString() {
+		return "FANotifyEvent[mask=0x" + Integer.toHexString(mask) + ", name=" + fileName + "]";
+	}
+
+}
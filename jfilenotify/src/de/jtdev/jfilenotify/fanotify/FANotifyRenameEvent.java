@@ -0,0 +1,37 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import de.jtdev.jfilenotify.FileRenameEvent;
+
+/**
+ * A rename inside of a watched directory or tree, reported by the kernel as
+ * a single event with the old and the new name. No pairing of
+ * {@code MOVED_FROM} and {@code MOVED_TO} events is needed.
+ */
+public class FANotifyRenameEvent extends FANotifyEvent implements FileRenameEvent {
+
+	private final String oldFileName;
+
+	/**
+	 * Creates a new event.
+	 *
+	 * @param mask
+	 *        the changes, including {@code RENAMED}
+	 * @param oldFileName
+	 *        the name before the rename
+	 * @param fileName
+	 *        the name after the rename
+	 */
+	public FANotifyRenameEvent(int mask, String oldFileName, String fileName) {
+		super(mask, fileName);
+		this.oldFileName = oldFileName;
+	}
+
+	public String getOldFileName() {
+		return oldFileName;
+	}
+
+	public String toString() {
+		return "FANotifyRenameEvent[mask=0x" + Integer.toHexString(getChangeMask()) + ", oldname=" + oldFileName + ", name=" + getChangedFileName() + "]";
+	}
+
+}
@@ -0,0 +1,1020 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyException;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.FileNotifyService;
+import de.jtdev.jfilenotify.inotify.ErrnoException;
+import de.jtdev.jfilenotify.inotify.ErrnoMessages;
+import de.jtdev.jfilenotify.inotify.MountInfo;
+import de.jtdev.jfilenotify.inotify.MountTable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a FileNotifyService with fanotify as its backend.
+ * Instead of a watch per directory it places a single mark on every file
+ * system that holds a watched file, so the kernel reports the changes of the
+ * whole file system. A recursive listener needs no watch for the directories
+ * of its tree, it works for trees of any size and new subdirectories are
+ * watched without a delay.
+ *
+ * It uses the library "jfilenotify" to access the fanotify C interface.
+ *
+ * <p>The kernel identifies the changed files by their file handle. A
+ * listener is registered for the handle of its file, so it still receives
+ * the events of the file after the file was renamed, like a listener of
+ * inotify. The events of a recursive listener name the changed file relative
+ * to the directory of the listener. The path of a directory is looked up
+ * by its handle through the mount of the listener, which is kept open while
+ * the listener is registered, and cached. A moved or deleted directory only
+ * drops the cached paths below it. See {@link #isAvailable()}.</p>
+ *
+ * <p>The kernel merges events of the same file that are still queued, so an
+ * event may report several changes at once. A rename is reported as a
+ * single {@link FANotifyRenameEvent} on Linux 5.17 and later. The events of
+ * files that are not watched are read and dropped by the thread of the
+ * service, the mark of a file system only requests the events that at least
+ * one of its listeners needs.</p>
+ *
+ * <p>Marking a whole file system needs the capability CAP_SYS_ADMIN,
+ * looking up the directories of a recursive listener needs
+ * CAP_DAC_READ_SEARCH. Use {@link #isAvailable()} or
+ * {@link de.jtdev.jfilenotify.FileNotifyServiceFactory#createFANotifyService()}
+ * to fall back to inotify if the process does not have them.</p>
+ */
+public class FANotifyService implements FileNotifyService {
+
+	static {
+		System.loadLibrary("jfilenotify");
+	}
+
+	/**
+	 * Logs what the reading thread does at level {@code FINEST} and critical
+	 * errors at level {@code SEVERE}.
+	 */
+	private static final Logger LOG = Logger.getLogger(FANotifyService.class.getName());
+
+	/**
+	 * The default size of the buffer events are read into. It is large enough
+	 * to hold about 1000 events with short file names.
+	 */
+	public static final int DEFAULT_EVENT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Returned by {@link #waitForEvents(long, long, int)} if the fanotify
+	 * instance has events to read.
+	 */
+	private static final int EVENTS_READY = 0x1;
+
+	/**
+	 * Returned by {@link #waitForEvents(long, long, int)} if the service was
+	 * woken up.
+	 */
+	private static final int WAKEUP_READY = 0x2;
+
+	/**
+	 * The events every mark requests, so the listeners of deleted files are
+	 * discarded and the events of directories are reported.
+	 */
+	private static final int BASE_MASK = FANotifyDecoder.FAN_DELETE_SELF | FANotifyDecoder.FAN_ONDIR;
+
+	/**
+	 * The events a mark requests for recursive listeners, so the cached paths
+	 * of moved and deleted directories are dropped.
+	 */
+	private static final int TREE_MASK = FANotifyDecoder.FAN_MOVE | FANotifyDecoder.FAN_DELETE | FANotifyDecoder.FAN_MOVE_SELF;
+
+	/**
+	 * The events that change the paths of the directories below the changed
+	 * directory.
+	 */
+	private static final int PATH_EVENTS = FANotifyDecoder.FAN_MOVE | FANotifyDecoder.FAN_DELETE | FANotifyDecoder.FAN_MOVE_SELF | FANotifyDecoder.FAN_DELETE_SELF;
+
+	/**
+	 * The default number of directory paths a recursive listener caches.
+	 */
+	public static final int DEFAULT_PATH_CACHE_SIZE = 16 * 1024;
+
+	private final long fileDescriptor;
+	private final long wakeupDescriptor;
+	private final ByteBuffer eventBuffer;
+	private final FANotifyDecoder decoder;
+	private final Thread readerThread;
+	private final MountTable mountTable = new MountTable();
+
+	/**
+	 * The number of directory paths a recursive listener caches.
+	 */
+	private final int pathCacheSize;
+
+	/**
+	 * The marks by the id of their file system. All modifications of the
+	 * registered listeners are synchronized on this map.
+	 */
+	private final HashMap<Long, FileSystemMark> marks = new HashMap<Long, FileSystemMark>();
+
+	private final HashMap<FileNotifyListener, Registration> registrations = new HashMap<FileNotifyListener, Registration>();
+
+	/**
+	 * The listeners of files and directories by the handle of their file.
+	 * It is read by the thread of the service without a lock.
+	 */
+	private final ConcurrentHashMap<FileHandle, CopyOnWriteArrayList<FileNotifyListener>> watches = new ConcurrentHashMap<FileHandle, CopyOnWriteArrayList<FileNotifyListener>>();
+
+	private final CopyOnWriteArrayList<TreeWatch> trees = new CopyOnWriteArrayList<TreeWatch>();
+
+	/**
+	 * False if the kernel does not know FAN_RENAME.
+	 */
+	private volatile boolean renameSupported = true;
+
+	private volatile boolean isDisposed = false;
+
+	/**
+	 * Creates a new FANotifyService with the default buffer size and starts
+	 * its thread.
+	 *
+	 * @throws FileNotifyException
+	 *         if no fanotify instance could be allocated, for example if the
+	 *         kernel does not support fanotify or reporting by file handles
+	 *         (Linux 5.9).
+	 */
+	public FANotifyService() throws FileNotifyException {
+		this(DEFAULT_EVENT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new FANotifyService and starts its thread.
+	 *
+	 * @param eventBufferSize
+	 *        the size of the buffer events are read into in bytes
+	 * @throws FileNotifyException
+	 *         if no fanotify instance could be allocated.
+	 */
+	public FANotifyService(int eventBufferSize) throws FileNotifyException {
+		this(eventBufferSize, DEFAULT_PATH_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a new FANotifyService and starts its thread.
+	 *
+	 * @param eventBufferSize
+	 *        the size of the buffer events are read into in bytes
+	 * @param pathCacheSize
+	 *        the number of directory paths every recursive listener caches.
+	 *        It should exceed the number of directories of a tree that
+	 *        change often, every miss costs a lookup by the kernel.
+	 * @throws FileNotifyException
+	 *         if no fanotify instance could be allocated.
+	 */
+	public FANotifyService(int eventBufferSize, int pathCacheSize) throws FileNotifyException {
+		if (eventBufferSize < 4096)
+			throw new IllegalArgumentException("Event buffer is too small: " + eventBufferSize);
+		if (pathCacheSize < 1)
+			throw new IllegalArgumentException("Path cache is too small: " + pathCacheSize);
+		this.pathCacheSize = pathCacheSize;
+		fileDescriptor = createFANotifyInstance(); // native call
+		if (fileDescriptor < 0) {
+			throw ErrnoException.create("Service could not be created", (int) -fileDescriptor);
+		}
+		wakeupDescriptor = createWakeupDescriptor(); // native call
+		if (wakeupDescriptor < 0) {
+			closeDescriptor(fileDescriptor); // native call
+			throw ErrnoException.create("Service could not be created", (int) -wakeupDescriptor);
+		}
+		eventBuffer = ByteBuffer.allocateDirect(eventBufferSize);
+		eventBuffer.order(ByteOrder.nativeOrder());
+		decoder = new FANotifyDecoder(eventBuffer);
+
+		readerThread = new Thread("FANotifyService") {
+			public void run() {
+				readLoop();
+			}
+		};
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	/**
+	 * Returns true if the kernel supports fanotify with file handles and the
+	 * process may mark whole file systems and look up files by their handle,
+	 * which recursive listeners need.
+	 *
+	 * @return true if a service can be used
+	 */
+	public static boolean isAvailable() {
+		long fd = createFANotifyInstance(); // native call
+		if (fd < 0)
+			return false;
+		long ret = markFileSystem(fd, "/", BASE_MASK, false); // native call
+		closeDescriptor(fd); // native call
+		if (ret < 0)
+			return false;
+
+		byte[] key = new byte[FileHandle.MAX_SIZE];
+		int length = getFileHandle("/", key); // native call
+		if (length < 0)
+			return false;
+		long mountFd = openMount("/"); // native call
+		if (mountFd < 0)
+			return false;
+		String root = resolveHandle(mountFd, key, length); // native call
+		closeDescriptor(mountFd); // native call
+		return root != null;
+	}
+
+	/**
+	 * Adds the listener. Its file system is marked, if it is the first
+	 * listener of the file system.
+	 *
+	 * @param listener
+	 *        the listener to add
+	 * @throws FileNotifyException
+	 *         if the file does not exist or its file system could not be
+	 *         marked
+	 */
+	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		register(listener, false);
+	}
+
+	/**
+	 * Adds many listeners at once. Listeners that could be registered stay
+	 * registered, even if an exception is thrown for the others.
+	 *
+	 * @param listeners
+	 *        the listeners to add
+	 * @throws FileNotifyException
+	 *         if at least one listener could not be registered
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException {
+		int failed = 0;
+		FileNotifyException failure = null;
+		for (FileNotifyListener l : listeners) {
+			try {
+				register(l, false);
+			} catch (FileNotifyException ex) {
+				if (isDisposed)
+					throw ex;
+				if (failure == null)
+					failure = ex;
+				failed++;
+			}
+		}
+		if (failed == 1)
+			throw failure;
+		if (failed > 1)
+			throw new FileNotifyException(failed + " of " + listeners.size() + " listeners could not be registered, first: " + failure.getMessage());
+	}
+
+	/**
+	 * Adds a listener for the directory of the listener and all of its
+	 * subdirectories. No watch is needed for the subdirectories, the events
+	 * of the file system are filtered by the path of their directory. The
+	 * file names of the events are relative to the directory of the
+	 * listener.
+	 *
+	 * @param listener
+	 *        the listener that receives the events of the tree
+	 * @throws FileNotifyException
+	 *         if the file of the listener is not a directory or the process
+	 *         may not look up directories by their handle
+	 */
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		register(listener, true);
+	}
+
+	private void register(FileNotifyListener listener, boolean recursive) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		String fileName = listener.getFileName();
+		if ((recursive || (listener.getMask() & FileNotifyConstants.ONLY_DIRECTORY) != 0) && !new File(fileName).isDirectory())
+			throw new FileNotifyException("Not a directory: " + fileName);
+
+		byte[] key = new byte[FileHandle.MAX_SIZE];
+		int length = getFileHandle(fileName, key); // native call
+		if (length < 0)
+			throw ErrnoException.create("Listener could not be registered", -length);
+		byte[] trimmed = new byte[length];
+		System.arraycopy(key, 0, trimmed, 0, length);
+		FileHandle handle = new FileHandle(trimmed);
+
+		int mask = MaskTranslator.importMask(listener.getMask()) | BASE_MASK;
+		TreeWatch tree = null;
+		if (recursive) {
+			mask |= TREE_MASK;
+			tree = openTree(listener, fileName, handle);
+		}
+
+		synchronized (marks) {
+			if (isDisposed) {
+				if (tree != null)
+					tree.close();
+				throw new FileNotifyException("Can't add listener to disposed service");
+			}
+			if (registrations.containsKey(listener)) {
+				if (tree != null)
+					tree.close();
+				return;
+			}
+			Long fsid = Long.valueOf(handle.getFileSystemId());
+			FileSystemMark mark = marks.get(fsid);
+			try {
+				if (mark == null) {
+					// the mount point stays valid, even if the file is deleted
+					mark = new FileSystemMark(getMountPoint(fileName));
+					updateMark(mark, mask);
+					marks.put(fsid, mark);
+				} else {
+					updateMark(mark, mask);
+				}
+			} catch (FileNotifyException ex) {
+				if (tree != null)
+					tree.close();
+				throw ex;
+			}
+			mark.count++;
+			registrations.put(listener, new Registration(handle, mark, tree));
+			if (tree != null) {
+				trees.add(tree);
+			} else {
+				CopyOnWriteArrayList<FileNotifyListener> list = watches.get(handle);
+				if (list == null) {
+					list = new CopyOnWriteArrayList<FileNotifyListener>();
+					watches.put(handle, list);
+				}
+				list.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Opens the mount of the directory of a recursive listener and looks up
+	 * the path of the directory by its handle, so it matches the paths of the
+	 * directories of its events.
+	 */
+	private TreeWatch openTree(FileNotifyListener listener, String fileName, FileHandle handle) throws FileNotifyException {
+		long mountFd = openMount(getMountPoint(fileName)); // native call
+		if (mountFd < 0)
+			throw ErrnoException.create("Listener could not be registered", (int) -mountFd);
+		byte[] key = handle.getKey();
+		String root = resolveHandle(mountFd, key, key.length); // native call
+		if (root == null) {
+			closeDescriptor(mountFd); // native call
+			throw new FileNotifyException("Listener could not be registered (the directory can't be looked up by its handle)");
+		}
+		return new TreeWatch(listener, handle, root, mountFd, pathCacheSize);
+	}
+
+	/**
+	 * Returns the mount point of the mount that holds a file or the file
+	 * itself, if the mount is unknown. The mount point of a file on an
+	 * overlay or a nested subvolume may not be found.
+	 */
+	private String getMountPoint(String fileName) {
+		MountInfo m = mountTable.lookup(fileName);
+		return m != null && m.getMountPoint() != null ? m.getMountPoint() : fileName;
+	}
+
+	/**
+	 * Adds the events of the mask to the mark of a file system, if it does
+	 * not request them already.
+	 */
+	private void updateMark(FileSystemMark mark, int mask) throws FileNotifyException {
+		if (!renameSupported)
+			mask &= ~FANotifyDecoder.FAN_RENAME;
+		int events = mask & ~mark.mask;
+		if (events == 0)
+			return;
+		long ret = markFileSystem(fileDescriptor, mark.path, events, false); // native call
+		if (ret == -ErrnoMessages.EINVAL && (events & FANotifyDecoder.FAN_RENAME) != 0) {
+			// kernels before 5.17 report renames only as moves
+			renameSupported = false;
+			events &= ~FANotifyDecoder.FAN_RENAME;
+			ret = markFileSystem(fileDescriptor, mark.path, events, false); // native call
+		}
+		if (ret < 0)
+			throw ErrnoException.create("Listener could not be registered", (int) -ret);
+		mark.mask |= events;
+	}
+
+	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		synchronized (marks) {
+			Registration r = registrations.remove(listener);
+			if (r == null)
+				return false;
+			unregister(listener, r);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a listener whose registration was already removed. The mark of
+	 * its file system is removed with the last listener of the file system.
+	 * The caller must hold the lock of {@link #marks}.
+	 */
+	private void unregister(FileNotifyListener listener, Registration r) throws FileNotifyException {
+		if (r.tree != null) {
+			trees.remove(r.tree);
+			r.tree.close();
+		} else {
+			CopyOnWriteArrayList<FileNotifyListener> list = watches.get(r.handle);
+			if (list != null) {
+				list.remove(listener);
+				if (list.isEmpty())
+					watches.remove(r.handle);
+			}
+		}
+		if (--r.mark.count == 0) {
+			marks.remove(Long.valueOf(r.handle.getFileSystemId()));
+			long ret = markFileSystem(fileDescriptor, r.mark.path, r.mark.mask, true); // native call
+			if (ret < 0)
+				throw ErrnoException.create("Listener could not be removed", (int) -ret);
+		}
+	}
+
+	/**
+	 * Returns the number of watched files and directory trees.
+	 *
+	 * @return the number of registered listeners
+	 */
+	public int getWatchCount() {
+		synchronized (marks) {
+			return registrations.size();
+		}
+	}
+
+	/**
+	 * Returns the number of marked file systems.
+	 *
+	 * @return the number of marks
+	 */
+	public int getFileSystemCount() {
+		synchronized (marks) {
+			return marks.size();
+		}
+	}
+
+	/**
+	 * Disposes this service. It will release all allocated native resources
+	 * and removes all listeners. When this method returns, no events are read
+	 * anymore. If it is called by a listener, the events that were read
+	 * before are still dispatched.
+	 * @throws FileNotifyException
+	 *         if not all resources could be freed. This
+	 *         should never happen.
+	 */
+	public void dispose() throws FileNotifyException {
+		synchronized (marks) {
+			if (isDisposed)
+				return;
+			isDisposed = true;
+		}
+		wakeup(wakeupDescriptor); // native call
+		// wait until the thread terminates, unless a listener disposes the
+		// service while it is notified by that thread
+		if (Thread.currentThread() != readerThread) {
+			boolean interrupted = false;
+			while (readerThread.isAlive()) {
+				try {
+					readerThread.join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		synchronized (marks) {
+			for (TreeWatch t : trees)
+				t.close();
+			trees.clear();
+			watches.clear();
+			registrations.clear();
+			marks.clear();
+		}
+		closeDescriptor(wakeupDescriptor); // native call
+		// closing the instance removes all of its marks
+		long ret = closeDescriptor(fileDescriptor); // native call
+		if (ret < 0) {
+			throw ErrnoException.create("Service could not be disposed", (int) -ret);
+		}
+	}
+
+	/**
+	 * The loop of the thread of this service. It reads the events until the
+	 * service is disposed.
+	 */
+	private void readLoop() {
+		LOG.finest("Thread started");
+		while (!isDisposed) {
+			int ready = waitForEvents(fileDescriptor, wakeupDescriptor, -1); // native call
+			if (ready < 0) {
+				if (!isDisposed) {
+					LOG.log(Level.SEVERE, "Critical error while waiting for events", new FileNotifyException(ErrnoMessages.getDescription(-ready)));
+				}
+				break;
+			}
+			if ((ready & WAKEUP_READY) != 0) {
+				LOG.finest("Thread awaked");
+				clearWakeup(wakeupDescriptor); // native call
+			}
+			if ((ready & EVENTS_READY) != 0 && !isDisposed) {
+				if (!readAvailableEvents())
+					break;
+			}
+		}
+		LOG.finest("Thread stopped");
+	}
+
+	/**
+	 * Reads the pending events and passes them to the listeners.
+	 *
+	 * @return false if the events could not be read
+	 */
+	private boolean readAvailableEvents() {
+		int length = readEventBuffer(fileDescriptor, eventBuffer); // native call
+		if (length < 0) {
+			if (!isDisposed) {
+				LOG.log(Level.SEVERE, "Critical error while reading events", new FileNotifyException(ErrnoMessages.getDescription(-length)));
+			}
+			return false;
+		}
+		decoder.reset(length);
+		while (decoder.next())
+			dispatchEvent();
+		return true;
+	}
+
+	/**
+	 * Passes the current record of the decoder to the listeners of the
+	 * changed file, of its directory and of the trees that contain it.
+	 */
+	private void dispatchEvent() {
+		int mask = decoder.getMask();
+		if ((mask & FANotifyDecoder.FAN_Q_OVERFLOW) != 0) {
+			deliverOverflow();
+			return;
+		}
+		if ((mask & FANotifyDecoder.FAN_RENAME) != 0) {
+			deliverRename(mask & FANotifyDecoder.FAN_ONDIR);
+			return;
+		}
+
+		int isDirectory = mask & FANotifyDecoder.FAN_ONDIR;
+		FileHandle directory = decoder.getDirectory();
+		String name = decoder.getName();
+		boolean self = FANotifyDecoder.SELF.equals(name);
+		FileHandle object = decoder.getObject();
+		if (object == null && self)
+			object = directory;
+
+		int selfEvents = mask & FANotifyDecoder.SELF_EVENTS;
+		if (object != null && selfEvents != 0)
+			deliver(object, selfEvents | isDirectory, null);
+		int entryEvents = mask & FANotifyDecoder.ENTRY_EVENTS;
+		if (directory != null && !self && entryEvents != 0)
+			deliver(directory, entryEvents | isDirectory, name);
+
+		if (directory != null && !trees.isEmpty()) {
+			deliverToTrees(directory, self ? null : name, (self ? selfEvents : entryEvents) | isDirectory);
+			if (isDirectory != 0 && (mask & PATH_EVENTS) != 0) {
+				for (TreeWatch t : trees) {
+					if (t.handle.getFileSystemId() == directory.getFileSystemId())
+						t.invalidate(directory, self ? null : name, object);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Passes an event to the listeners of a file and discards them, if the
+	 * file was deleted.
+	 */
+	private void deliver(FileHandle handle, int events, String name) {
+		CopyOnWriteArrayList<FileNotifyListener> list = watches.get(handle);
+		if (list == null)
+			return;
+		FANotifyEvent event = new FANotifyEvent(MaskTranslator.exportMask(events), name);
+		for (FileNotifyListener l : list) {
+			if ((l.getMask() & event.getChangeMask()) != 0)
+				notifyListener(l, event);
+		}
+		if (name == null && (events & FANotifyDecoder.FAN_DELETE_SELF) != 0)
+			discard(list, event);
+	}
+
+	/**
+	 * Passes an event of a directory or one of its entries to the recursive
+	 * listeners whose tree contains the directory.
+	 *
+	 * @param name
+	 *        the name of the entry or {@code null} if the directory changed
+	 */
+	private void deliverToTrees(FileHandle directory, String name, int events) {
+		if ((events & ~FANotifyDecoder.FAN_ONDIR) == 0)
+			return;
+		int mask = MaskTranslator.exportMask(events);
+		for (TreeWatch t : trees) {
+			if (t.handle.getFileSystemId() != directory.getFileSystemId()
+					|| ((t.listener.getMask() & mask) == 0 && (events & FANotifyDecoder.FAN_DELETE_SELF) == 0))
+				continue;
+			String path = t.relativePath(directory);
+			if (path == null)
+				continue;
+			FANotifyEvent event = new FANotifyEvent(mask, name == null ? (path.length() == 0 ? null : path) : join(path, name));
+			if ((t.listener.getMask() & mask) != 0)
+				notifyListener(t.listener, event);
+			if (name == null && path.length() == 0 && (events & FANotifyDecoder.FAN_DELETE_SELF) != 0)
+				discard(t.listener, event);
+		}
+	}
+
+	/**
+	 * Passes a rename to the listeners of the directory, if the entry stayed
+	 * in it, and to the recursive listeners whose tree contains both
+	 * directories. The move is also reported as MOVED_FROM and MOVED_TO.
+	 */
+	private void deliverRename(int isDirectory) {
+		FileHandle from = decoder.getOldDirectory();
+		FileHandle to = decoder.getNewDirectory();
+		if (from == null || to == null)
+			return;
+		int mask = MaskTranslator.exportMask(FANotifyDecoder.FAN_RENAME | isDirectory);
+		if (from.equals(to)) {
+			CopyOnWriteArrayList<FileNotifyListener> list = watches.get(from);
+			if (list != null) {
+				FANotifyRenameEvent event = new FANotifyRenameEvent(mask, decoder.getOldName(), decoder.getNewName());
+				for (FileNotifyListener l : list) {
+					if ((l.getMask() & mask) != 0)
+						notifyListener(l, event);
+				}
+			}
+		}
+		for (TreeWatch t : trees) {
+			if ((t.listener.getMask() & mask) == 0 || t.handle.getFileSystemId() != from.getFileSystemId())
+				continue;
+			String oldPath = t.relativePath(from);
+			String newPath = t.relativePath(to);
+			if (oldPath != null && newPath != null)
+				notifyListener(t.listener, new FANotifyRenameEvent(mask, join(oldPath, decoder.getOldName()), join(newPath, decoder.getNewName())));
+		}
+	}
+
+	/**
+	 * Tells all listeners that events were lost.
+	 */
+	private void deliverOverflow() {
+		LOG.warning("Event queue overflowed");
+		FANotifyEvent event = new FANotifyEvent(FileNotifyConstants.OVERFLOWED, null);
+		for (CopyOnWriteArrayList<FileNotifyListener> list : watches.values()) {
+			for (FileNotifyListener l : list)
+				notifyListener(l, event);
+		}
+		for (TreeWatch t : trees) {
+			t.invalidate();
+			notifyListener(t.listener, event);
+		}
+	}
+
+	/**
+	 * Removes the listeners of a deleted file and calls their discarded()
+	 * method.
+	 */
+	private void discard(List<FileNotifyListener> listeners, FileNotifyEvent event) {
+		for (FileNotifyListener l : listeners)
+			discard(l, event);
+	}
+
+	private void discard(FileNotifyListener listener, FileNotifyEvent event) {
+		try {
+			synchronized (marks) {
+				Registration r = registrations.remove(listener);
+				if (r == null)
+					return;
+				unregister(listener, r);
+			}
+		} catch (FileNotifyException ex) {
+			LOG.log(Level.WARNING, "Mark could not be removed", ex);
+		}
+		try {
+			listener.discarded(event);
+		} catch (RuntimeException ex) {
+			LOG.log(Level.WARNING, "Listener failed", ex);
+		}
+	}
+
+	private void notifyListener(FileNotifyListener listener, FileNotifyEvent event) {
+		try {
+			listener.notificationRecieved(event);
+		} catch (RuntimeException ex) {
+			LOG.log(Level.WARNING, "Listener failed", ex);
+		}
+	}
+
+	private static String join(String path, String name) {
+		return path.length() == 0 ? name : path + File.separatorChar + name;
+	}
+
+	/**
+	 * The mark of a file system and the events it requests.
+	 */
+	private static class FileSystemMark {
+
+		/**
+		 * A file of the file system that is used to mark it.
+		 */
+		final String path;
+
+		/**
+		 * The requested events. The events are only removed with the last
+		 * listener of the file system.
+		 */
+		int mask;
+
+		/**
+		 * The number of listeners of the file system.
+		 */
+		int count;
+
+		FileSystemMark(String path) {
+			this.path = path;
+		}
+
+	}
+
+	/**
+	 * What a listener was registered for.
+	 */
+	private static class Registration {
+
+		final FileHandle handle;
+		final FileSystemMark mark;
+		final TreeWatch tree;
+
+		Registration(FileHandle handle, FileSystemMark mark, TreeWatch tree) {
+			this.handle = handle;
+			this.mark = mark;
+			this.tree = tree;
+		}
+
+	}
+
+	/**
+	 * A recursive listener and the paths of the directories it has seen. The
+	 * directories of the events are looked up by their handle through the
+	 * mount of the directory of the listener, whose descriptor is kept open
+	 * until the listener is removed.
+	 */
+	private static class TreeWatch {
+
+		final FileNotifyListener listener;
+		final FileHandle handle;
+
+		/**
+		 * The path of the directory as the kernel reports it.
+		 */
+		final String root;
+
+		/**
+		 * The descriptor of the mount of the directory, -1 after the watch
+		 * was closed.
+		 */
+		private long mountDescriptor;
+
+		private final int cacheSize;
+
+		/**
+		 * The paths of the directories by their handle, {@code null} for
+		 * directories that could not be looked up. The least recently used
+		 * path is dropped first.
+		 */
+		private final Map<FileHandle, String> paths = new LinkedHashMap<FileHandle, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<FileHandle, String> eldest) {
+				if (size() <= cacheSize)
+					return false;
+				if (eldest.getValue() != null && eldest.getKey().equals(handles.get(eldest.getValue())))
+					handles.remove(eldest.getValue());
+				return true;
+			}
+		};
+
+		/**
+		 * The directories of {@link #paths} by their path, so the paths
+		 * below a moved directory are found without a scan.
+		 */
+		private final TreeMap<String, FileHandle> handles = new TreeMap<String, FileHandle>();
+
+		TreeWatch(FileNotifyListener listener, FileHandle handle, String root, long mountDescriptor, int cacheSize) {
+			this.listener = listener;
+			this.handle = handle;
+			this.root = root;
+			this.mountDescriptor = mountDescriptor;
+			this.cacheSize = cacheSize;
+		}
+
+		/**
+		 * Returns the path of a directory relative to the root of the tree.
+		 *
+		 * @return the path, an empty string for the root or {@code null} if
+		 *         the directory is not part of the tree
+		 */
+		synchronized String relativePath(FileHandle directory) {
+			if (directory.equals(handle))
+				return "";
+			String path = lookup(directory);
+			if (path == null || !path.startsWith(root))
+				return null;
+			if (root.endsWith("/"))
+				return path.substring(root.length());
+			if (path.length() > root.length() && path.charAt(root.length()) == '/')
+				return path.substring(root.length() + 1);
+			return null;
+		}
+
+		/**
+		 * Returns the cached path of a directory or looks it up.
+		 */
+		private String lookup(FileHandle directory) {
+			if (directory.equals(handle))
+				return root;
+			if (paths.containsKey(directory))
+				return paths.get(directory);
+			if (mountDescriptor < 0)
+				return null;
+			byte[] key = directory.getKey();
+			String path = resolveHandle(mountDescriptor, key, key.length); // native call
+			paths.put(directory, path);
+			if (path != null)
+				handles.put(path, directory);
+			return path;
+		}
+
+		/**
+		 * Drops the cached paths of a moved or deleted directory and of all
+		 * directories below it. The directory is known by its handle, its
+		 * cached path may be the old one, and by its parent and name. The
+		 * path of the parent is still valid, it is looked up if it is not
+		 * cached.
+		 *
+		 * @param parent
+		 *        the parent of the directory
+		 * @param name
+		 *        the name of the directory or {@code null} if it is only known
+		 *        by its handle
+		 * @param directory
+		 *        the handle of the directory or {@code null}
+		 */
+		synchronized void invalidate(FileHandle parent, String name, FileHandle directory) {
+			String cached = directory == null ? null : paths.get(directory);
+			if (cached != null)
+				drop(cached);
+			if (name != null) {
+				String parentPath = lookup(parent);
+				if (parentPath != null) {
+					String path = parentPath.endsWith("/") ? parentPath + name : parentPath + '/' + name;
+					if (!path.equals(cached))
+						drop(path);
+				}
+			}
+		}
+
+		/**
+		 * Drops the cached paths of a directory and of all directories below
+		 * it.
+		 */
+		private void drop(String path) {
+			FileHandle h = handles.remove(path);
+			if (h != null)
+				paths.remove(h);
+			SortedMap<String, FileHandle> below = handles.subMap(path + '/', path + (char) ('/' + 1));
+			for (FileHandle b : below.values())
+				paths.remove(b);
+			below.clear();
+		}
+
+		/**
+		 * Drops all cached paths, because events were lost.
+		 */
+		synchronized void invalidate() {
+			paths.clear();
+			handles.clear();
+		}
+
+		/**
+		 * Closes the descriptor of the mount.
+		 */
+		synchronized void close() {
+			if (mountDescriptor < 0)
+				return;
+			closeDescriptor(mountDescriptor); // native call
+			mountDescriptor = -1;
+			paths.clear();
+			handles.clear();
+		}
+
+	}
+
+	/**
+	 * Creates a non blocking fanotify instance that reports the directory,
+	 * the name and the handle of changed files and returns its file
+	 * descriptor.
+	 * @return the file descriptor or a negative errno number if it fails
+	 */
+	private static native long createFANotifyInstance();
+
+	/**
+	 * Closes a file descriptor.
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	private static native long closeDescriptor(long fileDescriptor);
+
+	/**
+	 * Adds events to or removes events from the mark of the file system of
+	 * a file.
+	 *
+	 * @param fileDescriptor
+	 *        the fanotify instance
+	 * @param fileName
+	 *        a file of the file system
+	 * @param mask
+	 *        the events
+	 * @param remove
+	 *        true to remove the events
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	private static native long markFileSystem(long fileDescriptor, String fileName, int mask, boolean remove);
+
+	/**
+	 * Writes the handle of a file in the layout of {@link FileHandle}.
+	 *
+	 * @param fileName
+	 *        the file, symbolic links are followed
+	 * @param result
+	 *        receives the handle, at least {@link FileHandle#MAX_SIZE} bytes
+	 * @return the length of the handle or a negative errno number if it
+	 *         fails
+	 */
+	private static native int getFileHandle(String fileName, byte[] result);
+
+	/**
+	 * Opens a mount point, so files of its file system can be looked up by
+	 * their handle.
+	 *
+	 * @param mountPoint
+	 *        the mount point of a mount of the file system
+	 * @return the file descriptor or a negative errno number if it fails
+	 */
+	private static native long openMount(String mountPoint);
+
+	/**
+	 * Looks up the path of a file by its handle.
+	 *
+	 * @param mountDescriptor
+	 *        a descriptor returned by {@link #openMount(String)}
+	 * @param key
+	 *        the handle in the layout of {@link FileHandle}
+	 * @param length
+	 *        the length of the handle
+	 * @return the path or {@code null} if the file could not be opened
+	 */
+	private static native String resolveHandle(long mountDescriptor, byte[] key, int length);
+
+	/**
+	 * Reads the pending events into the given direct buffer without
+	 * blocking.
+	 * @return the number of bytes read or a negative errno number if it
+	 *         fails
+	 */
+	private static native int readEventBuffer(long fileDescriptor, ByteBuffer buffer);
+
+	/**
+	 * Waits until the fanotify instance has events to read or the wakeup
+	 * descriptor is readable. An interrupted wait returns 0.
+	 * @return a combination of {@link #EVENTS_READY} and
+	 *         {@link #WAKEUP_READY} or a negative errno number if it fails
+	 */
+	private static native int waitForEvents(long fileDescriptor, long wakeupDescriptor, int timeout);
+
+	private static native long createWakeupDescriptor();
+
+	private static native long wakeup(long wakeupDescriptor);
+
+	private static native long clearWakeup(long wakeupDescriptor);
+
+}
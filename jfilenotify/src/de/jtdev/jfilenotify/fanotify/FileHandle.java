@@ -0,0 +1,107 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Identifies a file independent of its name, like the kernel does in the
+ * events of fanotify. It consists of the id of the file system, the type of
+ * the handle and the bytes of the handle. The handle stays the same if the
+ * file is renamed or moved inside of its file system.
+ */
+final class FileHandle {
+
+	/**
+	 * The size of the file system id and of the handle type, which precede
+	 * the bytes of the handle.
+	 */
+	static final int HEADER_SIZE = 8 + 4;
+
+	/**
+	 * The largest size of a handle, MAX_HANDLE_SZ of the kernel, including
+	 * the header.
+	 */
+	static final int MAX_SIZE = HEADER_SIZE + 128;
+
+	private final byte[] key;
+	private final long fileSystemId;
+	private final int hash;
+
+	/**
+	 * Creates a handle of the given bytes.
+	 *
+	 * @param key
+	 *        the file system id, the handle type and the handle bytes in
+	 *        native byte order, the array is not copied
+	 */
+	FileHandle(byte[] key) {
+		this.key = key;
+		this.fileSystemId = ByteBuffer.wrap(key).order(ByteOrder.nativeOrder()).getLong(0);
+		this.hash = Arrays.hashCode(key);
+	}
+
+	/**
+	 * Reads the handle of an info record of an event.
+	 *
+	 * @param buffer
+	 *        the buffer that holds the events in native byte order
+	 * @param index
+	 *        the position of the file system id inside of the record
+	 * @return the handle
+	 */
+	static FileHandle read(ByteBuffer buffer, int index) {
+		int handleBytes = buffer.getInt(index + 8);
+		byte[] key = new byte[HEADER_SIZE + handleBytes];
+		// the fsid and the type are copied, the length of the handle is skipped
+		for (int i = 0; i < 8; i++)
+			key[i] = buffer.get(index + i);
+		for (int i = 0; i < 4; i++)
+			key[8 + i] = buffer.get(index + 12 + i);
+		for (int i = 0; i < handleBytes; i++)
+			key[HEADER_SIZE + i] = buffer.get(index + 16 + i);
+		return new FileHandle(key);
+	}
+
+	/**
+	 * Returns the id of the file system of the file, as reported by statfs.
+	 *
+	 * @return the file system id
+	 */
+	long getFileSystemId() {
+		return fileSystemId;
+	}
+
+	/**
+	 * Returns the bytes of this handle. The array must not be modified.
+	 *
+	 * @return the bytes
+	 */
+	byte[] getKey() {
+		return key;
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof FileHandle))
+			return false;
+		FileHandle other = (FileHandle) obj;
+		return hash == other.hash && Arrays.equals(key, other.key);
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public String toString() {
+		StringBuilder b = new StringBuilder("FileHandle[");
+		for (int i = 0; i < key.length; i++) {
+			if (i == 8 || i == HEADER_SIZE)
+				b.append(':');
+			b.append(Character.forDigit((key[i] >> 4) & 0xf, 16)).append(Character.forDigit(key[i] & 0xf, 16));
+		}
+		return b.append(']').toString();
+	}
+
+}
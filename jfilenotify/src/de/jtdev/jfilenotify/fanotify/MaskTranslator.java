@@ -0,0 +1,77 @@
+package de.jtdev.jfilenotify.fanotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+
+/**
+ * Translates the masks of this project into the masks of fanotify and back.
+ * The events of fanotify use the same bits as the ones of inotify, but
+ * fanotify reports the changes of a file and of the entries of a directory
+ * with different bits, so a single event may be translated differently for
+ * the listeners of the file and the listeners of its directory.
+ */
+final class MaskTranslator {
+
+	private MaskTranslator() {
+	}
+
+	/**
+	 * Converts a mask of this project to the events that fanotify has to
+	 * report for it.
+	 *
+	 * @param externalMask
+	 *        the mask of a listener
+	 * @return the mask of the file system mark
+	 */
+	static int importMask(final int externalMask) {
+		int m = 0x00000000;
+
+		if ((FileNotifyConstants.OPENED               & externalMask) != 0)  m |= FANotifyDecoder.FAN_OPEN;
+		if ((FileNotifyConstants.ACCESSED             & externalMask) != 0)  m |= FANotifyDecoder.FAN_ACCESS;
+		if ((FileNotifyConstants.MODIFIED             & externalMask) != 0)  m |= FANotifyDecoder.FAN_MODIFY;
+		if ((FileNotifyConstants.CLOSED_WRITEABLE     & externalMask) != 0)  m |= FANotifyDecoder.FAN_CLOSE_WRITE;
+		if ((FileNotifyConstants.CLOSED_NOT_WRITEABLE & externalMask) != 0)  m |= FANotifyDecoder.FAN_CLOSE_NOWRITE;
+		if ((FileNotifyConstants.ATTRIBUTES_CHANGED   & externalMask) != 0)  m |= FANotifyDecoder.FAN_ATTRIB;
+
+		if ((FileNotifyConstants.SUBFILE_CREATED & externalMask) != 0)  m |= FANotifyDecoder.FAN_CREATE;
+		if ((FileNotifyConstants.SUBFILE_DELETED & externalMask) != 0)  m |= FANotifyDecoder.FAN_DELETE;
+		if ((FileNotifyConstants.RENAMED         & externalMask) != 0)  m |= FANotifyDecoder.FAN_RENAME;
+		if ((FileNotifyConstants.MOVED_FROM      & externalMask) != 0)  m |= FANotifyDecoder.FAN_MOVED_FROM;
+		if ((FileNotifyConstants.MOVED_TO        & externalMask) != 0)  m |= FANotifyDecoder.FAN_MOVED_TO;
+		if ((FileNotifyConstants.SELF_DELETED    & externalMask) != 0)  m |= FANotifyDecoder.FAN_DELETE_SELF;
+		if ((FileNotifyConstants.SELF_MOVED      & externalMask) != 0)  m |= FANotifyDecoder.FAN_MOVE_SELF;
+
+		return m;
+	}
+
+	/**
+	 * Converts the events of fanotify to a mask of this project.
+	 *
+	 * @param internalMask
+	 *        the events of fanotify
+	 * @return the mask of the event that is passed to the listeners
+	 */
+	static int exportMask(final int internalMask) {
+		int m = 0x00000000;
+
+		if ((FANotifyDecoder.FAN_OPEN          & internalMask) != 0)  m |= FileNotifyConstants.OPENED;
+		if ((FANotifyDecoder.FAN_ACCESS        & internalMask) != 0)  m |= FileNotifyConstants.ACCESSED;
+		if ((FANotifyDecoder.FAN_MODIFY        & internalMask) != 0)  m |= FileNotifyConstants.MODIFIED;
+		if ((FANotifyDecoder.FAN_CLOSE_WRITE   & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_WRITEABLE;
+		if ((FANotifyDecoder.FAN_CLOSE_NOWRITE & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_NOT_WRITEABLE;
+		if ((FANotifyDecoder.FAN_ATTRIB        & internalMask) != 0)  m |= FileNotifyConstants.ATTRIBUTES_CHANGED;
+
+		if ((FANotifyDecoder.FAN_CREATE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_CREATED;
+		if ((FANotifyDecoder.FAN_DELETE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_DELETED;
+		if ((FANotifyDecoder.FAN_RENAME      & internalMask) != 0)  m |= FileNotifyConstants.RENAMED;
+		if ((FANotifyDecoder.FAN_MOVED_FROM  & internalMask) != 0)  m |= FileNotifyConstants.MOVED_FROM;
+		if ((FANotifyDecoder.FAN_MOVED_TO    & internalMask) != 0)  m |= FileNotifyConstants.MOVED_TO;
+		if ((FANotifyDecoder.FAN_DELETE_SELF & internalMask) != 0)  m |= FileNotifyConstants.SELF_DELETED;
+		if ((FANotifyDecoder.FAN_MOVE_SELF   & internalMask) != 0)  m |= FileNotifyConstants.SELF_MOVED;
+
+		if ((FANotifyDecoder.FAN_Q_OVERFLOW & internalMask) != 0)  m |= FileNotifyConstants.OVERFLOWED;
+		if ((FANotifyDecoder.FAN_ONDIR      & internalMask) != 0)  m |= FileNotifyConstants.IS_DIRECTORY;
+
+		return m;
+	}
+
+}
@@ -0,0 +1,34 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * Decides what an {@link INotifyService} does with a listener that needs a
+ * new watch, if the limit of watches is reached.
+ *
+ * @see INotifyService.Builder#admission(AdmissionPolicy, int)
+ */
+public enum AdmissionPolicy {
+
+	/**
+	 * The listener is not added and a {@link WatchLimitException} is thrown.
+	 */
+	REJECT,
+
+	/**
+	 * The watch that received no event for the longest time is removed to
+	 * make room. Its listeners are discarded. A directory of a recursive
+	 * listener that gets no watch although nothing is left to evict is not
+	 * watched.
+	 */
+	EVICT_LEAST_RECENTLY_ACTIVE,
+
+	/**
+	 * The file of the listener is polled instead of watched. This applies to
+	 * listeners that are added with
+	 * {@link INotifyService#addFileNotifyListener(de.jtdev.jfilenotify.FileNotifyListener)}
+	 * and
+	 * {@link INotifyService#addFileNotifyListeners(java.util.Collection)}
+	 * and to the single directories of recursive listeners.
+	 */
+	POLL
+
+}
@@ -0,0 +1,166 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A snapshot of the entries of a directory. For every entry its name, inode,
+ * modification time and size is stored. The entries are kept in parallel
+ * arrays sorted by name, so the snapshot of a large directory needs little
+ * memory and two snapshots can be compared in linear time. The names are
+ * passed to and from the native layer as UTF-8 like the names of the watches.
+ *
+ * <p>It uses the library "jfilenotify" to read the directory.</p>
+ */
+public class DirectorySnapshot {
+
+	static {
+		System.loadLibrary("jfilenotify");
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String[] names;
+	private final long[] inodes;
+	private final long[] modified;
+	private final long[] sizes;
+	private final boolean[] directories;
+
+	/**
+	 * Called by the native layer with the unsorted entries of the directory.
+	 */
+	private DirectorySnapshot(byte[][] names, long[] inodes, long[] modified, long[] sizes, boolean[] directories) {
+		this.names = new String[names.length];
+		for (int i = 0; i < names.length; i++)
+			this.names[i] = UTF8.decode(ByteBuffer.wrap(names[i])).toString();
+		this.inodes = inodes;
+		this.modified = modified;
+		this.sizes = sizes;
+		this.directories = directories;
+		sort(0, names.length - 1);
+	}
+
+	/**
+	 * Reads the entries of a directory.
+	 *
+	 * @param directoryName
+	 *        the name of the directory
+	 * @return the snapshot or {@code null} if the directory could not be read
+	 */
+	public static DirectorySnapshot create(String directoryName) {
+		byte[] path;
+		try {
+			path = INotifyService.encodeFileName(directoryName);
+		} catch (FileNotifyException ex) {
+			return null; // no such directory can exist
+		}
+		return scan(path); // native call
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Compares this snapshot with a newer snapshot of the same directory and
+	 * adds an event for every difference to the list. An entry that only
+	 * exists in the newer snapshot is reported as created, an entry that only
+	 * exists in this snapshot as deleted. An entry whose inode changed is
+	 * reported as deleted and created, an entry whose modification time or
+	 * size changed as modified.
+	 *
+	 * @param newer
+	 *        the newer snapshot
+	 * @param watchDescriptor
+	 *        the watch descriptor of the events
+	 * @param events
+	 *        the list that receives the events
+	 */
+	public void diff(DirectorySnapshot newer, long watchDescriptor, List<INotifyEvent> events) {
+		int i = 0;
+		int j = 0;
+		while (i < names.length || j < newer.names.length) {
+			int c;
+			if (i == names.length)
+				c = 1;
+			else if (j == newer.names.length)
+				c = -1;
+			else
+				c = names[i].compareTo(newer.names[j]);
+
+			if (c < 0) {
+				events.add(new INotifyEvent(watchDescriptor, 0, INotifyEvent.IN_DELETE | dirFlag(i), names[i]));
+				i++;
+			} else if (c > 0) {
+				events.add(new INotifyEvent(watchDescriptor, 0, INotifyEvent.IN_CREATE | newer.dirFlag(j), newer.names[j]));
+				j++;
+			} else {
+				if (inodes[i] != newer.inodes[j]) {
+					events.add(new INotifyEvent(watchDescriptor, 0, INotifyEvent.IN_DELETE | dirFlag(i), names[i]));
+					events.add(new INotifyEvent(watchDescriptor, 0, INotifyEvent.IN_CREATE | newer.dirFlag(j), newer.names[j]));
+				} else if (modified[i] != newer.modified[j] || sizes[i] != newer.sizes[j]) {
+					events.add(new INotifyEvent(watchDescriptor, 0, INotifyEvent.IN_MODIFY | newer.dirFlag(j), newer.names[j]));
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	private int dirFlag(int index) {
+		return directories[index] ? INotifyEvent.IN_ISDIR : 0;
+	}
+
+	/**
+	 * Sorts the parallel arrays by name.
+	 */
+	private void sort(int low, int high) {
+		while (low < high) {
+			String pivot = names[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (names[i].compareTo(pivot) < 0)
+					i++;
+				while (names[j].compareTo(pivot) > 0)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+			// recurse into the smaller part to limit the stack depth
+			if (j - low < high - i) {
+				sort(low, j);
+				low = i;
+			} else {
+				sort(i, high);
+				high = j;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		String n = names[i]; names[i] = names[j]; names[j] = n;
+		long l = inodes[i]; inodes[i] = inodes[j]; inodes[j] = l;
+		l = modified[i]; modified[i] = modified[j]; modified[j] = l;
+		l = sizes[i]; sizes[i] = sizes[j]; sizes[j] = l;
+		boolean d = directories[i]; directories[i] = directories[j]; directories[j] = d;
+	}
+
+	/**
+	 * Reads the entries of a directory without following symbolic links.
+	 *
+	 * @param directoryName
+	 *        the UTF-8 encoded name of the directory terminated by '\0'
+	 * @return the unsorted snapshot or {@code null} if the directory could not
+	 *         be read
+	 */
+	private static native DirectorySnapshot scan(byte[] directoryName);
+
+}
@@ -0,0 +1,72 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+
+/**
+ * Signals that a call of the inotify C interface failed. The errno number
+ * tells why it failed. Failures that an application may want to handle are
+ * signaled by subclasses: {@link WatchLimitException} if no more watches can
+ * be added and {@link InstanceLimitException} if no more inotify instances
+ * can be created.
+ */
+public class ErrnoException extends FileNotifyException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int errno;
+
+	/**
+	 * Constructs an {@code ErrnoException} with the specified detail message
+	 * and errno number.
+	 *
+	 * @param message
+	 *        the detail message
+	 * @param errno
+	 *        the errno number of the failed call
+	 */
+	public ErrnoException(String message, int errno) {
+		super(message);
+		this.errno = errno;
+	}
+
+	/**
+	 * Returns the errno number of the failed call.
+	 *
+	 * @return the errno number, see {@link ErrnoMessages}
+	 */
+	public int getErrno() {
+		return errno;
+	}
+
+	/**
+	 * Creates the exception for a failed call. The message is the action
+	 * followed by the description of the errno number in brackets, or by the
+	 * number itself if it has no description.
+	 *
+	 * @param action
+	 *        what could not be done, for example
+	 *        {@code "Listener could not be registered"}
+	 * @param errno
+	 *        the errno number of the failed call
+	 * @return the exception of the type that fits to the errno number
+	 */
+	public static ErrnoException create(String action, int errno) {
+		switch (errno) {
+		case ErrnoMessages.ENOSPC:
+			return new WatchLimitException(action + " (limit of " + INotifyLimits.getMaxUserWatches()
+					+ " watches reached, see " + INotifyLimits.MAX_USER_WATCHES + ")");
+		case ErrnoMessages.EMFILE:
+			return new InstanceLimitException(action + " (" + ErrnoMessages.getDescription(errno)
+					+ ", at most " + INotifyLimits.getMaxUserInstances() + " instances, see "
+					+ INotifyLimits.MAX_USER_INSTANCES + ")");
+		default:
+			return new ErrnoException(action + " (" + describe(errno) + ")", errno);
+		}
+	}
+
+	private static String describe(int errno) {
+		String description = ErrnoMessages.getDescription(errno);
+		return description != null ? description : "errno " + errno;
+	}
+
+}
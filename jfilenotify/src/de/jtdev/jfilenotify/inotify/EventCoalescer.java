@@ -0,0 +1,292 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.util.HashMap;
+
+/**
+ * The coalescer holds back events for a quiet window and merges bursts of
+ * events before they are dispatched. It is used by the reading thread of an
+ * {@link INotifyService} and is not thread safe.
+ *
+ * <p>Events are identified by their watch descriptor, file name and mask. An
+ * event that equals the latest held back event of the same file is merged
+ * into it, so a series of modifications is delivered as a single event. A
+ * held back event is released if no equal event followed for the quiet
+ * window. A {@code IN_MOVED_FROM} event followed by the {@code IN_MOVED_TO}
+ * event with the same cookie and watch descriptor is delivered as one
+ * {@link INotifyRenameEvent}.</p>
+ *
+ * <p>The events of a file are always released in the order they were read.
+ * Events of different files may be reordered.</p>
+ *
+ * <p>The held back events are kept in the order they were last seen. The
+ * quiet window is the same for all events, so the event at the head is the
+ * next one to release, unless an earlier event of its file is still held
+ * back. {@link #poll(long, boolean)} and {@link #getDelay(long)} only skip
+ * such blocked events and don't search the whole list.</p>
+ */
+public class EventCoalescer {
+
+	/**
+	 * The maximal number of held back events. If more events are held back,
+	 * the oldest one is released before its quiet window has passed.
+	 */
+	private static final int MAX_PENDING_EVENTS = 4096;
+
+	/**
+	 * The number of held back events that are searched for the
+	 * {@code IN_MOVED_FROM} event of a {@code IN_MOVED_TO} event.
+	 */
+	private static final int MAX_MOVE_SEARCH = 64;
+
+	/**
+	 * A held back event.
+	 */
+	private static final class Entry {
+		INotifyEvent event;
+		String movedFromName;
+		long lastSeen;
+		Entry previous;
+		Entry next;
+		Entry previousOfFile;
+		boolean released;
+	}
+
+	/**
+	 * Identifies a file by its watch descriptor and name.
+	 */
+	private static final class FileKey {
+		long watchDescriptor;
+		String fileName;
+
+		FileKey(long watchDescriptor, String fileName) {
+			this.watchDescriptor = watchDescriptor;
+			this.fileName = fileName;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FileKey))
+				return false;
+			FileKey k = (FileKey) obj;
+			return k.watchDescriptor == watchDescriptor
+					&& (k.fileName == null ? fileName == null : k.fileName.equals(fileName));
+		}
+
+		public int hashCode() {
+			return (int) watchDescriptor * 31 + (fileName == null ? 0 : fileName.hashCode());
+		}
+	}
+
+	private final long quietWindow;
+	private final HashMap<FileKey, Entry> latestOfFile = new HashMap<FileKey, Entry>();
+	private final FileKey searchKey = new FileKey(0, null);
+	private Entry head = null;
+	private Entry tail = null;
+	private int size = 0;
+
+	/**
+	 * Creates a new coalescer.
+	 *
+	 * @param quietWindow
+	 *        the time in nanoseconds an event is held back after the last
+	 *        equal event
+	 */
+	public EventCoalescer(long quietWindow) {
+		this.quietWindow = quietWindow;
+	}
+
+	/**
+	 * Returns true if no events are held back.
+	 *
+	 * @return true if this coalescer is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Holds back the event or merges it into a held back event.
+	 *
+	 * @param event
+	 *        the read event, it must not be changed afterwards
+	 * @param now
+	 *        the current time in nanoseconds
+	 */
+	public void add(INotifyEvent event, long now) {
+		long wd = event.getWatchDescriptor();
+		int mask = event.getChangeMask();
+		String name = event.getChangedFileName();
+
+		if ((mask & INotifyEvent.IN_MOVE) == INotifyEvent.IN_MOVED_TO && event.getCookie() != 0) {
+			Entry from = findMovedFrom(wd, event.getCookie());
+			if (from != null) {
+				from.movedFromName = from.event.getChangedFileName();
+				from.event = INotifyRenameEvent.pair(from.event, event);
+				touch(from, now);
+				latestOfFile.put(new FileKey(wd, name), from);
+				return;
+			}
+		}
+
+		searchKey.watchDescriptor = wd;
+		searchKey.fileName = name;
+		Entry latest = latestOfFile.get(searchKey);
+		searchKey.fileName = null;
+
+		if (latest != null && latest.released)
+			latest = null;
+
+		if (latest != null && latest.event.getChangeMask() == mask) {
+			touch(latest, now);
+			return;
+		}
+
+		Entry e = new Entry();
+		e.event = event;
+		e.lastSeen = now;
+		e.previousOfFile = latest;
+		append(e);
+		size++;
+		latestOfFile.put(new FileKey(wd, name), e);
+	}
+
+	/**
+	 * Moves an entry that was seen again to the tail, so the list stays
+	 * ordered by the time the entries were last seen.
+	 */
+	private void touch(Entry e, long now) {
+		e.lastSeen = now;
+		if (e == tail)
+			return;
+		unlink(e);
+		append(e);
+	}
+
+	private void append(Entry e) {
+		e.previous = tail;
+		e.next = null;
+		if (tail != null)
+			tail.next = e;
+		else
+			head = e;
+		tail = e;
+	}
+
+	private void unlink(Entry e) {
+		if (e.previous != null)
+			e.previous.next = e.next;
+		else
+			head = e.next;
+		if (e.next != null)
+			e.next.previous = e.previous;
+		else
+			tail = e.previous;
+	}
+
+	/**
+	 * Returns true if an earlier event of the file of the entry is still
+	 * held back.
+	 */
+	private static boolean isBlocked(Entry e) {
+		return e.previousOfFile != null && !e.previousOfFile.released;
+	}
+
+	/**
+	 * Searches the held back {@code IN_MOVED_FROM} event that matches a
+	 * {@code IN_MOVED_TO} event.
+	 */
+	private Entry findMovedFrom(long wd, int cookie) {
+		Entry e = tail;
+		for (int i = 0; e != null && i < MAX_MOVE_SEARCH; i++, e = e.previous) {
+			INotifyEvent evt = e.event;
+			if (evt.getCookie() == cookie && evt.getWatchDescriptor() == wd
+					&& (evt.getChangeMask() & INotifyEvent.IN_MOVE) == INotifyEvent.IN_MOVED_FROM)
+				return e;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time until the next held back event has to be released.
+	 *
+	 * @param now
+	 *        the current time in nanoseconds
+	 * @return the delay in nanoseconds, 0 if an event can be released now or
+	 *         -1 if no event is held back
+	 */
+	public long getDelay(long now) {
+		if (size == 0)
+			return -1;
+		if (size > MAX_PENDING_EVENTS)
+			return 0;
+		for (Entry e = head; e != null; e = e.next) {
+			if (isBlocked(e))
+				continue; // the earlier event of its file is seen later
+			long delay = e.lastSeen + quietWindow - now;
+			return delay < 0 ? 0 : delay;
+		}
+		return 0;
+	}
+
+	/**
+	 * Removes and returns the next event that can be released. An event can
+	 * be released if its quiet window has passed and all earlier events of
+	 * the same file are released.
+	 *
+	 * @param now
+	 *        the current time in nanoseconds
+	 * @param force
+	 *        true to release the events without waiting for their quiet
+	 *        window
+	 * @return the released event or {@code null} if no event can be released
+	 */
+	public INotifyEvent poll(long now, boolean force) {
+		force |= size > MAX_PENDING_EVENTS;
+		for (Entry e = head; e != null; e = e.next) {
+			if (isBlocked(e))
+				continue;
+			if (!force && now - e.lastSeen < quietWindow)
+				return null; // all later entries were seen even later
+			remove(e);
+			return e.event;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all held back events.
+	 */
+	public void clear() {
+		head = null;
+		tail = null;
+		size = 0;
+		latestOfFile.clear();
+	}
+
+	/**
+	 * Unlinks a released entry.
+	 */
+	private void remove(Entry e) {
+		e.released = true;
+		e.previousOfFile = null;
+		unlink(e);
+		size--;
+
+		INotifyEvent evt = e.event;
+		removeLatest(evt.getWatchDescriptor(), evt.getChangedFileName(), e);
+		if (e.movedFromName != null)
+			removeLatest(evt.getWatchDescriptor(), e.movedFromName, e);
+	}
+
+	/**
+	 * Removes the entry from the latest events of a file, if it is still the
+	 * latest one.
+	 */
+	private void removeLatest(long wd, String name, Entry e) {
+		searchKey.watchDescriptor = wd;
+		searchKey.fileName = name;
+		if (latestOfFile.get(searchKey) == e)
+			latestOfFile.remove(searchKey);
+		searchKey.fileName = null;
+	}
+
+}
@@ -0,0 +1,177 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the raw {@code inotify_event} records that the native layer read
+ * into a buffer. The records are decoded one by one with {@link #next()}
+ * after the number of valid bytes was set with {@link #reset(int)}. It is
+ * used by the reading thread of an {@link INotifyService} and is not thread
+ * safe.
+ *
+ * <p>In flyweight mode the same event object is returned for all records and
+ * no file name is decoded that is not requested. The event is only valid until
+ * the next call of {@link #next()}.</p>
+ *
+ * <p>The decoder does not need the native library, so it can decode records
+ * that were not read from an inotify instance.</p>
+ */
+public class EventDecoder {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * The size of the native int type, which is the type of the watch
+	 * descriptor inside of the inotify event structure.
+	 */
+	private final int integerSize;
+
+	/**
+	 * The event that is reused for all events in flyweight mode, otherwise
+	 * {@code null}.
+	 */
+	private final EventView eventView;
+
+	/**
+	 * Scratch array used to decode the file names of the events. It grows if
+	 * a longer name is read.
+	 */
+	private byte[] nameBuffer = new byte[256];
+
+	private int index = 0;
+	private int length = 0;
+
+	/**
+	 * Creates a new decoder.
+	 *
+	 * @param buffer
+	 *        the buffer that holds the records in native byte order
+	 * @param integerSize
+	 *        the size of the native int type in bytes
+	 * @param flyweight
+	 *        true to reuse the same event object for all records
+	 */
+	public EventDecoder(ByteBuffer buffer, int integerSize, boolean flyweight) {
+		this.buffer = buffer;
+		this.integerSize = integerSize;
+		this.eventView = flyweight ? new EventView() : null;
+	}
+
+	/**
+	 * Returns true if the same event object is returned for all records.
+	 *
+	 * @return true if the decoder runs in flyweight mode
+	 */
+	public boolean isFlyweight() {
+		return eventView != null;
+	}
+
+	/**
+	 * Starts to decode the records at the beginning of the buffer.
+	 *
+	 * @param length
+	 *        the number of valid bytes stored in the buffer
+	 */
+	public void reset(int length) {
+		this.index = 0;
+		this.length = length;
+	}
+
+	/**
+	 * Decodes the next record.
+	 *
+	 * @return the decoded event or {@code null} if all records were decoded
+	 */
+	public INotifyEvent next() {
+		if (index >= length)
+			return null;
+
+		long watchDescriptor;
+		if (integerSize == 8) {
+			watchDescriptor = buffer.getLong(index);
+			index += 8;
+		} else {
+			watchDescriptor = buffer.getInt(index);
+			index += 4;
+		}
+
+		int mask = buffer.getInt(index);
+		index += 4;
+
+		int cookie = buffer.getInt(index);
+		index += 4;
+
+		int nameLength = buffer.getInt(index);
+		index += 4;
+
+		INotifyEvent event;
+		if (eventView != null) {
+			eventView.set(watchDescriptor, cookie, mask, index, nameLength);
+			event = eventView;
+		} else {
+			String fileName = null;
+			if (nameLength > 0) {
+				fileName = decodeFileName(index, nameLength);
+			}
+			event = new INotifyEvent(watchDescriptor, cookie, mask, fileName);
+		}
+		index += nameLength;
+		return event;
+	}
+
+	/**
+	 * Decodes the zero terminated file name stored at the given position of
+	 * the buffer.
+	 *
+	 * @param from
+	 *        the position of the first character
+	 * @param len
+	 *        the length of the name field including the padding zeros
+	 * @return the decoded file name
+	 */
+	private String decodeFileName(int from, int len) {
+		if (nameBuffer.length < len)
+			nameBuffer = new byte[len];
+		int strlen = 0;
+		while (strlen < len) {
+			byte b = buffer.get(from + strlen);
+			if (b == 0)
+				break;
+			nameBuffer[strlen++] = b;
+		}
+		return new String(nameBuffer, 0, strlen);
+	}
+
+	/**
+	 * The reusable event of the flyweight mode. It is a view on the current
+	 * record inside of the buffer and decodes the file name only if it is
+	 * requested.
+	 */
+	private class EventView extends INotifyEvent {
+
+		private int nameIndex;
+		private int nameLength;
+		private boolean nameDecoded;
+
+		EventView() {
+			super(0, 0, 0, null);
+		}
+
+		void set(long watchDescriptor, int cookie, int mask, int nameIndex, int nameLength) {
+			set(watchDescriptor, cookie, mask, null);
+			this.nameIndex = nameIndex;
+			this.nameLength = nameLength;
+			this.nameDecoded = nameLength == 0;
+		}
+
+		public String getChangedFileName() {
+			if (!nameDecoded) {
+				set(getWatchDescriptor(), getCookie(), getChangeMask(), decodeFileName(nameIndex, nameLength));
+				nameDecoded = true;
+			}
+			return super.getChangedFileName();
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of positive values with a fixed relative precision. Values
+ * below {@value #SUB_BUCKETS} are counted exactly, larger values in buckets
+ * whose width grows with the power of two of the value, so each bucket covers
+ * at most 1/{@value #SUB_BUCKETS} of its values. The histogram needs a fixed
+ * amount of memory and recording a value neither allocates objects nor takes
+ * a lock.
+ */
+public class Histogram {
+
+	/**
+	 * The number of bits of a value that are kept.
+	 */
+	private static final int SUB_BITS = 3;
+
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * The number of buckets to hold all positive long values.
+	 */
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *        the value to record
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexFor(value));
+		total.add(value);
+		long m;
+		while (value > (m = max.get())) {
+			if (max.compareAndSet(m, value))
+				break;
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the number of values
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return the largest value or 0 if no value was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean or 0 if no value was recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.get() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values lies. The value is the upper bound of its bucket, so it is at
+	 * most 1/{@value #SUB_BUCKETS} larger than the exact value.
+	 *
+	 * @param percentile
+	 *        the percentage between 0 and 100
+	 * @return the value at the percentile or 0 if no value was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int indexFor(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long highestValueIn(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,323 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.FileNotifyService;
+import de.jtdev.jfilenotify.polling.PollingService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A FileNotifyService that watches the files of local file systems with an
+ * {@link INotifyService} and polls the files of network and FUSE file
+ * systems with a {@link PollingService}, because inotify only sees the
+ * changes this host makes to them. The file system of a listener is looked
+ * up in a {@link MountTable} when the listener is added. The listeners
+ * receive the same events from both services, so they don't need to know
+ * which one serves them.
+ *
+ * <p>A recursive listener is served by the polling service if its directory
+ * or a file system mounted below it is polled, since inotify would miss the
+ * remote changes of such a subdirectory. Otherwise it is served by the
+ * inotify service. File systems that are mounted into the tree later are
+ * served by the service chosen when the listener was added. The polling
+ * service is created when the first file needs it.</p>
+ */
+public class HybridFileNotifyService implements FileNotifyService {
+
+	private final INotifyService inotify;
+	private final PollingService.Builder pollingOptions;
+	private final MountTable mounts;
+	private final Set<String> polledTypes;
+	private final Set<String> watchedTypes;
+	private PollingService polling;
+	private volatile boolean isDisposed = false;
+
+	/**
+	 * Creates a service with the default options.
+	 *
+	 * @throws FileNotifyException
+	 *         if no inotify instance could be allocated.
+	 */
+	public HybridFileNotifyService() throws FileNotifyException {
+		this(new Builder(), new MountTable());
+	}
+
+	private HybridFileNotifyService(Builder builder, MountTable mounts) throws FileNotifyException {
+		this.mounts = mounts;
+		inotify = builder.inotifyOptions.build();
+		pollingOptions = builder.pollingOptions;
+		polledTypes = new HashSet<String>(builder.polledTypes);
+		watchedTypes = new HashSet<String>(builder.watchedTypes);
+	}
+
+	/**
+	 * Returns true if the file of the listener is polled. Files that can't
+	 * be accessed are watched, so inotify reports the error.
+	 *
+	 * @param listener
+	 *        the listener
+	 * @return true if the file is on a file system that is polled
+	 */
+	public boolean isPolled(FileNotifyListener listener) {
+		return isPolled(mounts.lookup(listener.getFileName()));
+	}
+
+	/**
+	 * Returns true if the tree of a recursive listener is polled, because its
+	 * directory or a file system mounted below it is polled.
+	 *
+	 * @param listener
+	 *        the recursive listener
+	 * @return true if the tree contains a file system that is polled
+	 */
+	public boolean isTreePolled(FileNotifyListener listener) {
+		if (isPolled(listener))
+			return true;
+		for (String mountPoint : mounts.getMountPointsBelow(listener.getFileName())) {
+			if (isPolled(mounts.lookup(mountPoint)))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isPolled(MountInfo m) {
+		if (m == null)
+			return false;
+		String type = m.getFileSystemType();
+		if (type != null) {
+			if (watchedTypes.contains(type))
+				return false;
+			if (polledTypes.contains(type))
+				return true;
+		}
+		return m.isRemote();
+	}
+
+	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		if (isPolled(listener))
+			createPollingService().addFileNotifyListener(listener);
+		else
+			inotify.addFileNotifyListener(listener);
+	}
+
+	/**
+	 * Adds many listeners at once. The listeners are split by their file
+	 * system and added to each service with a single call. Listeners that
+	 * could be registered stay registered, even if an exception is thrown
+	 * for the others.
+	 *
+	 * @param listeners
+	 *        the listeners to add
+	 * @throws FileNotifyException
+	 *         if some listeners could not be registered, the exception of the
+	 *         inotify service is thrown first
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException {
+		List<FileNotifyListener> watched = new ArrayList<FileNotifyListener>();
+		List<FileNotifyListener> polled = new ArrayList<FileNotifyListener>();
+		for (FileNotifyListener l : listeners) {
+			if (isPolled(l))
+				polled.add(l);
+			else
+				watched.add(l);
+		}
+		FileNotifyException failure = null;
+		if (!watched.isEmpty()) {
+			try {
+				inotify.addFileNotifyListeners(watched);
+			} catch (FileNotifyException ex) {
+				failure = ex;
+			}
+		}
+		if (!polled.isEmpty()) {
+			try {
+				createPollingService().addFileNotifyListeners(polled);
+			} catch (FileNotifyException ex) {
+				if (failure == null)
+					failure = ex;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		if (isTreePolled(listener))
+			createPollingService().addRecursiveFileNotifyListener(listener);
+		else
+			inotify.addRecursiveFileNotifyListener(listener);
+	}
+
+	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		if (inotify.removeFileNotifyListener(listener))
+			return true;
+		PollingService p;
+		synchronized (this) {
+			p = polling;
+		}
+		return p != null && p.removeFileNotifyListener(listener);
+	}
+
+	/**
+	 * Returns the service that watches the files of local file systems.
+	 *
+	 * @return the inotify service
+	 */
+	public INotifyService getINotifyService() {
+		return inotify;
+	}
+
+	/**
+	 * Returns the service that polls the files of remote file systems.
+	 *
+	 * @return the polling service or {@code null} if no file was polled yet
+	 */
+	public synchronized PollingService getPollingService() {
+		return polling;
+	}
+
+	private synchronized PollingService createPollingService() throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		if (polling == null)
+			polling = pollingOptions.build();
+		return polling;
+	}
+
+	/**
+	 * Returns the table the file systems of the listeners are looked up in.
+	 *
+	 * @return the mount table
+	 */
+	public MountTable getMountTable() {
+		return mounts;
+	}
+
+	/**
+	 * Disposes both services. The polling service is disposed, even if the
+	 * inotify service fails.
+	 *
+	 * @throws FileNotifyException
+	 *         if not all resources could be freed
+	 */
+	public void dispose() throws FileNotifyException {
+		PollingService p;
+		synchronized (this) {
+			isDisposed = true;
+			p = polling;
+		}
+		try {
+			inotify.dispose();
+		} finally {
+			if (p != null)
+				p.dispose();
+		}
+	}
+
+	/**
+	 * Creates {@link HybridFileNotifyService} instances with non default
+	 * options. Options that are not set keep their default value.
+	 */
+	public static class Builder {
+
+		private INotifyService.Builder inotifyOptions = new INotifyService.Builder();
+		private PollingService.Builder pollingOptions = new PollingService.Builder();
+		private MountTable mounts = null;
+		private final Set<String> polledTypes = new HashSet<String>();
+		private final Set<String> watchedTypes = new HashSet<String>();
+
+		/**
+		 * Creates a builder with the default options.
+		 */
+		public Builder() {
+		}
+
+		/**
+		 * Sets the options of the inotify service.
+		 *
+		 * @param options
+		 *        the options
+		 * @return this builder
+		 */
+		public Builder inotify(INotifyService.Builder options) {
+			this.inotifyOptions = options;
+			return this;
+		}
+
+		/**
+		 * Sets the options of the polling service.
+		 *
+		 * @param options
+		 *        the options
+		 * @return this builder
+		 */
+		public Builder polling(PollingService.Builder options) {
+			this.pollingOptions = options;
+			return this;
+		}
+
+		/**
+		 * Sets the table the file systems are looked up in, so it can be
+		 * shared by several services. By default every service has its own
+		 * table.
+		 *
+		 * @param mounts
+		 *        the mount table
+		 * @return this builder
+		 */
+		public Builder mountTable(MountTable mounts) {
+			this.mounts = mounts;
+			return this;
+		}
+
+		/**
+		 * Polls the files of a type of file system, which would be watched
+		 * otherwise.
+		 *
+		 * @param type
+		 *        the type as listed in {@link MountTable#MOUNT_INFO}, for
+		 *        example {@code overlay}
+		 * @return this builder
+		 */
+		public Builder poll(String type) {
+			watchedTypes.remove(type);
+			polledTypes.add(type);
+			return this;
+		}
+
+		/**
+		 * Watches the files of a type of file system with inotify, which
+		 * would be polled otherwise. This is useful for a network file system
+		 * that is only changed by this host.
+		 *
+		 * @param type
+		 *        the type as listed in {@link MountTable#MOUNT_INFO}, for
+		 *        example {@code nfs4}
+		 * @return this builder
+		 */
+		public Builder watch(String type) {
+			polledTypes.remove(type);
+			watchedTypes.add(type);
+			return this;
+		}
+
+		/**
+		 * Creates a new service with the options of this builder.
+		 *
+		 * @return the new service
+		 * @throws FileNotifyException
+		 *         if no inotify instance could be allocated.
+		 */
+		public HybridFileNotifyService build() throws FileNotifyException {
+			if (mounts == null)
+				return new HybridFileNotifyService(this, new MountTable());
+			return new HybridFileNotifyService(this, mounts);
+		}
+
+	}
+
+}
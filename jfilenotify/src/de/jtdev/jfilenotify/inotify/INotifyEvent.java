@@ -25,6 +25,9 @@ public class INotifyEvent implements FileNotifyEvent {
 	public static final int IN_Q_OVERFLOW    = 0x00004000; // Event queued overflowed.
 	public static final int IN_IGNORED       = 0x00008000; // File was ignored.
 
+	// Events created by this library.
+	public static final int IN_RENAME        = 0x00100000; // IN_MOVED_FROM and IN_MOVED_TO paired by cookie.
+
 	// Special flags.
 	public static final int IN_ONLYDIR       = 0x01000000; // Only watch the path if it is a directory.
 	public static final int IN_DONT_FOLLOW   = 0x02000000; // Do not follow a sym link.
@@ -48,6 +51,17 @@ public class INotifyEvent implements FileNotifyEvent {
 		this.fileName = fileName;
 	}
 	
+	/**
+	 * Overwrites the values of this event. Used by services that reuse their
+	 * event objects.
+	 */
+	void set(long watchDescriptor, int cookie, int mask, String fileName) {
+		this.watchDescriptor = watchDescriptor;
+		this.cookie = cookie;
+		this.mask = mask;
+		this.fileName = fileName;
+	}
+	
 	public long getWatchDescriptor() {
 		return watchDescriptor;
 	}
@@ -88,6 +102,6 @@ public class INotifyEvent implements FileNotifyEvent {
 	}
 	
 	public String toString() {
-		return "INotifyEvent: wd="+watchDescriptor+" cookie="+cookie+" mask="+Integer.toHexString(mask)+" filename="+fileName;
+		return "INotifyEvent: wd="+watchDescriptor+" cookie="+cookie+" mask="+Integer.toHexString(mask)+" filename="+getChangedFileName();
 	}
 }
@@ -0,0 +1,83 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads the limits of inotify that the kernel applies to every user. They
+ * can be changed at any time by the administrator, so they are read again on
+ * every call.
+ */
+public final class INotifyLimits {
+
+	/**
+	 * The maximal number of watches of all inotify instances of a user.
+	 */
+	public static final String MAX_USER_WATCHES = "/proc/sys/fs/inotify/max_user_watches";
+
+	/**
+	 * The maximal number of inotify instances of a user.
+	 */
+	public static final String MAX_USER_INSTANCES = "/proc/sys/fs/inotify/max_user_instances";
+
+	/**
+	 * The maximal number of events in the queue of an inotify instance.
+	 */
+	public static final String MAX_QUEUED_EVENTS = "/proc/sys/fs/inotify/max_queued_events";
+
+	private INotifyLimits() {
+	}
+
+	/**
+	 * Returns the maximal number of watches of all inotify instances of a
+	 * user.
+	 *
+	 * @return the limit or -1 if it could not be read
+	 */
+	public static int getMaxUserWatches() {
+		return read(MAX_USER_WATCHES);
+	}
+
+	/**
+	 * Returns the maximal number of inotify instances of a user.
+	 *
+	 * @return the limit or -1 if it could not be read
+	 */
+	public static int getMaxUserInstances() {
+		return read(MAX_USER_INSTANCES);
+	}
+
+	/**
+	 * Returns the maximal number of events in the queue of an inotify
+	 * instance. If more events occur, they are lost and an overflow is
+	 * reported.
+	 *
+	 * @return the limit or -1 if it could not be read
+	 */
+	public static int getMaxQueuedEvents() {
+		return read(MAX_QUEUED_EVENTS);
+	}
+
+	private static int read(String fileName) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(fileName));
+			String line = in.readLine();
+			return line == null ? -1 : Integer.parseInt(line.trim());
+		} catch (IOException ex) {
+			return -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,305 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what an {@link INotifyService} reads and how long it takes to pass
+ * the events to the listeners. The values can be pulled by the getters or
+ * through JMX, where the metrics are registered as a standard MBean.
+ *
+ * <p>The counters are striped and the histograms don't lock, so recording is
+ * cheap. The dispatch latency is the time from the decoding of an event until
+ * it was passed to the listeners or their mailboxes. If the listeners are
+ * called by the reading thread, it includes the time of the listeners.</p>
+ */
+public class INotifyMetrics implements INotifyMetricsMBean {
+
+	/**
+	 * The event types that are counted separately.
+	 */
+	private static final int[] TYPES = {
+		INotifyEvent.IN_ACCESS, INotifyEvent.IN_MODIFY, INotifyEvent.IN_ATTRIB,
+		INotifyEvent.IN_CLOSE_WRITE, INotifyEvent.IN_CLOSE_NOWRITE, INotifyEvent.IN_OPEN,
+		INotifyEvent.IN_MOVED_FROM, INotifyEvent.IN_MOVED_TO, INotifyEvent.IN_CREATE,
+		INotifyEvent.IN_DELETE, INotifyEvent.IN_DELETE_SELF, INotifyEvent.IN_MOVE_SELF,
+		INotifyEvent.IN_UNMOUNT, INotifyEvent.IN_Q_OVERFLOW, INotifyEvent.IN_IGNORED,
+		INotifyEvent.IN_ISDIR
+	};
+
+	private static final String[] TYPE_NAMES = {
+		"IN_ACCESS", "IN_MODIFY", "IN_ATTRIB",
+		"IN_CLOSE_WRITE", "IN_CLOSE_NOWRITE", "IN_OPEN",
+		"IN_MOVED_FROM", "IN_MOVED_TO", "IN_CREATE",
+		"IN_DELETE", "IN_DELETE_SELF", "IN_MOVE_SELF",
+		"IN_UNMOUNT", "IN_Q_OVERFLOW", "IN_IGNORED",
+		"IN_ISDIR"
+	};
+
+	private final StripedCounter reads = new StripedCounter();
+	private final StripedCounter bytesRead = new StripedCounter();
+	private final StripedCounter events = new StripedCounter();
+	private final StripedCounter unmatched = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final StripedCounter pollingFallbacks = new StripedCounter();
+
+	/**
+	 * The counters of the event types by the bit of the type.
+	 */
+	private final StripedCounter[] types = new StripedCounter[32];
+
+	private final Histogram batchSizes = new Histogram();
+	private final Histogram dispatchLatencies = new Histogram();
+
+	/**
+	 * The watches of the service or {@code null} if the metrics don't belong
+	 * to a service.
+	 */
+	private final WatchDescriptorTable watches;
+
+	/**
+	 * The name this object is registered with or {@code null}.
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * Creates new metrics with all values set to 0.
+	 */
+	public INotifyMetrics() {
+		this(null);
+	}
+
+	/**
+	 * Creates new metrics of a service with all values set to 0.
+	 *
+	 * @param watches
+	 *        the watches of the service, whose number is reported
+	 */
+	INotifyMetrics(WatchDescriptorTable watches) {
+		this.watches = watches;
+		for (int i = 0; i < TYPES.length; i++)
+			types[Integer.numberOfTrailingZeros(TYPES[i])] = new StripedCounter();
+	}
+
+	/**
+	 * Records a read from the inotify instance.
+	 *
+	 * @param bytes
+	 *        the number of bytes read
+	 */
+	void recordRead(int bytes) {
+		reads.increment();
+		bytesRead.add(bytes);
+	}
+
+	/**
+	 * Records the number of events of a read.
+	 *
+	 * @param size
+	 *        the number of events
+	 */
+	void recordBatch(int size) {
+		batchSizes.record(size);
+	}
+
+	/**
+	 * Records a read event.
+	 *
+	 * @param mask
+	 *        the inotify mask of the event
+	 */
+	void recordEvent(int mask) {
+		events.increment();
+		while (mask != 0) {
+			int bit = Integer.numberOfTrailingZeros(mask);
+			StripedCounter c = types[bit];
+			if (c != null)
+				c.increment();
+			mask &= mask - 1;
+		}
+	}
+
+	/**
+	 * Records an event whose watch descriptor has no listeners.
+	 */
+	void recordUnmatched() {
+		unmatched.increment();
+	}
+
+	/**
+	 * Records a watch that was removed to make room for a new one.
+	 */
+	void recordEviction() {
+		evictions.increment();
+	}
+
+	/**
+	 * Records a listener that is polled, because no more watches could be
+	 * added.
+	 */
+	void recordPollingFallback() {
+		pollingFallbacks.increment();
+	}
+
+	/**
+	 * Records the time it took to dispatch an event.
+	 *
+	 * @param nanos
+	 *        the time in nanoseconds
+	 */
+	void recordDispatch(long nanos) {
+		dispatchLatencies.record(nanos);
+	}
+
+	/**
+	 * Returns the number of read events of the given type.
+	 *
+	 * @param type
+	 *        a single {@code IN_*} constant of {@link INotifyEvent}
+	 * @return the number of events that have the type set in their mask
+	 */
+	public long getEventCount(int type) {
+		StripedCounter c = types[Integer.numberOfTrailingZeros(type)];
+		return c == null ? 0 : c.get();
+	}
+
+	/**
+	 * Returns the histogram of the number of events per read.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * Returns the histogram of the times to dispatch an event in
+	 * nanoseconds.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getDispatchLatencies() {
+		return dispatchLatencies;
+	}
+
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getEventCount() {
+		return events.get();
+	}
+
+	public String[] getEventCountsByType() {
+		String[] counts = new String[TYPES.length];
+		for (int i = 0; i < TYPES.length; i++)
+			counts[i] = TYPE_NAMES[i] + "=" + getEventCount(TYPES[i]);
+		return counts;
+	}
+
+	public long getUnmatchedEventCount() {
+		return unmatched.get();
+	}
+
+	public long getIgnoredEventCount() {
+		return getEventCount(INotifyEvent.IN_IGNORED);
+	}
+
+	public long getOverflowCount() {
+		return getEventCount(INotifyEvent.IN_Q_OVERFLOW);
+	}
+
+	public int getWatchCount() {
+		return watches == null ? 0 : watches.size();
+	}
+
+	public int getMaxUserWatches() {
+		return INotifyLimits.getMaxUserWatches();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getPollingFallbackCount() {
+		return pollingFallbacks.get();
+	}
+
+	public double getBatchSizeMean() {
+		return batchSizes.getMean();
+	}
+
+	public long getBatchSizeP50() {
+		return batchSizes.getValueAtPercentile(50);
+	}
+
+	public long getBatchSizeP99() {
+		return batchSizes.getValueAtPercentile(99);
+	}
+
+	public long getBatchSizeMax() {
+		return batchSizes.getMax();
+	}
+
+	public double getDispatchLatencyMean() {
+		return dispatchLatencies.getMean();
+	}
+
+	public long getDispatchLatencyP50() {
+		return dispatchLatencies.getValueAtPercentile(50);
+	}
+
+	public long getDispatchLatencyP99() {
+		return dispatchLatencies.getValueAtPercentile(99);
+	}
+
+	public long getDispatchLatencyP999() {
+		return dispatchLatencies.getValueAtPercentile(99.9);
+	}
+
+	public long getDispatchLatencyMax() {
+		return dispatchLatencies.getMax();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 *
+	 * @param name
+	 *        the object name of the metrics
+	 * @throws FileNotifyException
+	 *         if the name is invalid or allready registered
+	 */
+	synchronized void register(String name) throws FileNotifyException {
+		try {
+			ObjectName n = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+			objectName = n;
+		} catch (JMException ex) {
+			throw new FileNotifyException("Metrics could not be registered (" + ex.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they were
+	 * registered.
+	 */
+	synchronized void unregister() {
+		if (objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(objectName);
+		} catch (JMException ex) {
+			// unregistered by someone else
+		}
+		objectName = null;
+	}
+
+}
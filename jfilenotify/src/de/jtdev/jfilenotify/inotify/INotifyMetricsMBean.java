@@ -0,0 +1,112 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * The management interface of {@link INotifyMetrics}. Latencies are given in
+ * nanoseconds.
+ */
+public interface INotifyMetricsMBean {
+
+	/**
+	 * @return the number of reads from the inotify instance
+	 */
+	long getReadCount();
+
+	/**
+	 * @return the number of bytes read from the inotify instance
+	 */
+	long getBytesRead();
+
+	/**
+	 * @return the number of events read from the inotify instance
+	 */
+	long getEventCount();
+
+	/**
+	 * @return the number of read events per type, as {@code NAME=count}
+	 */
+	String[] getEventCountsByType();
+
+	/**
+	 * @return the number of events whose watch descriptor has no listeners
+	 */
+	long getUnmatchedEventCount();
+
+	/**
+	 * @return the number of events that report a removed watch
+	 */
+	long getIgnoredEventCount();
+
+	/**
+	 * @return the number of overflows of the event queue
+	 */
+	long getOverflowCount();
+
+	/**
+	 * @return the number of watches of the service
+	 */
+	int getWatchCount();
+
+	/**
+	 * @return the limit of watches of all inotify instances of the user or -1
+	 *         if it is unknown
+	 */
+	int getMaxUserWatches();
+
+	/**
+	 * @return the number of watches that were removed to make room for new
+	 *         ones
+	 */
+	long getEvictionCount();
+
+	/**
+	 * @return the number of listeners that are polled, because no more
+	 *         watches could be added
+	 */
+	long getPollingFallbackCount();
+
+	/**
+	 * @return the mean number of events per read
+	 */
+	double getBatchSizeMean();
+
+	/**
+	 * @return the median number of events per read
+	 */
+	long getBatchSizeP50();
+
+	/**
+	 * @return the 99th percentile of the number of events per read
+	 */
+	long getBatchSizeP99();
+
+	/**
+	 * @return the largest number of events per read
+	 */
+	long getBatchSizeMax();
+
+	/**
+	 * @return the mean time to dispatch an event
+	 */
+	double getDispatchLatencyMean();
+
+	/**
+	 * @return the median time to dispatch an event
+	 */
+	long getDispatchLatencyP50();
+
+	/**
+	 * @return the 99th percentile of the time to dispatch an event
+	 */
+	long getDispatchLatencyP99();
+
+	/**
+	 * @return the 99.9th percentile of the time to dispatch an event
+	 */
+	long getDispatchLatencyP999();
+
+	/**
+	 * @return the longest time to dispatch an event
+	 */
+	long getDispatchLatencyMax();
+
+}
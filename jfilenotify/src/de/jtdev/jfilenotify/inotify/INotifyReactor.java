@@ -0,0 +1,308 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reactor is a single thread that reads the events of many
+ * {@link INotifyService} instances. It waits with epoll on the file
+ * descriptors of all registered services and lets a service read its events
+ * as soon as they are available. So the number of threads stays the same, no
+ * matter how many services are created.
+ *
+ * <p>Services are attached to a reactor with
+ * {@link INotifyService.Builder#reactor(INotifyReactor)}. All services of a
+ * reactor share its thread, a listener that blocks delays the events of all
+ * other services.</p>
+ *
+ * <p>It uses the library "jfilenotify" to access epoll and eventfd.</p>
+ */
+public class INotifyReactor extends Thread {
+
+	static {
+		System.loadLibrary("jfilenotify");
+	}
+
+	/**
+	 * The maximal number of ready descriptors that are handled per wait.
+	 */
+	private static final int MAX_READY_DESCRIPTORS = 64;
+
+	private static final Logger LOG = Logger.getLogger(INotifyReactor.class.getName());
+
+	/**
+	 * The reactor returned by {@link #getSharedReactor()}.
+	 */
+	private static INotifyReactor sharedReactor;
+
+	/**
+	 * The file descriptor of the epoll instance.
+	 */
+	private final long epollDescriptor;
+
+	/**
+	 * The file descriptor of the eventfd that is used to wake up the thread.
+	 */
+	private final long wakeupDescriptor;
+
+	/**
+	 * The registered services. The array is replaced on every modification,
+	 * so the thread can use it without locking.
+	 */
+	private volatile INotifyService[] services = new INotifyService[0];
+
+	/**
+	 * If the reactor is disposed its thread terminates and it will no longer
+	 * accept new services.
+	 */
+	private volatile boolean isDisposed = false;
+
+	/**
+	 * Returns the reactor that is shared by all services created through
+	 * {@link de.jtdev.jfilenotify.FileNotifyServiceFactory#createNotificationService(boolean)}.
+	 * It is created on the first call.
+	 *
+	 * @return the shared reactor
+	 * @throws FileNotifyException
+	 *         if the reactor could not be created
+	 */
+	public static synchronized INotifyReactor getSharedReactor() throws FileNotifyException {
+		if (sharedReactor == null || sharedReactor.isDisposed) {
+			sharedReactor = new INotifyReactor();
+		}
+		return sharedReactor;
+	}
+
+	/**
+	 * Creates a new reactor, allocates the native resources and starts its
+	 * thread.
+	 *
+	 * @throws FileNotifyException
+	 *         if the native resources could not be allocated
+	 */
+	public INotifyReactor() throws FileNotifyException {
+		epollDescriptor = createEpollInstance(); // native call
+		if (epollDescriptor < 0) {
+			throw ErrnoException.create("Reactor could not be created", (int) -epollDescriptor);
+		}
+		wakeupDescriptor = createWakeupDescriptor(); // native call
+		if (wakeupDescriptor < 0) {
+			closeDescriptor(epollDescriptor);
+			throw ErrnoException.create("Reactor could not be created", (int) -wakeupDescriptor);
+		}
+		long ret = addDescriptor(epollDescriptor, wakeupDescriptor); // native call
+		if (ret < 0) {
+			closeDescriptor(wakeupDescriptor);
+			closeDescriptor(epollDescriptor);
+			throw ErrnoException.create("Reactor could not be created", (int) -ret);
+		}
+		this.setName("INotifyReactor");
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/**
+	 * Adds the service to this reactor. From now on the reactor thread reads
+	 * its events.
+	 *
+	 * @param service
+	 *        the service to add
+	 * @throws FileNotifyException
+	 *         if the reactor is disposed or the file descriptor of the
+	 *         service could not be added to the epoll instance
+	 */
+	synchronized void register(INotifyService service) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add service to disposed reactor");
+
+		long ret = addDescriptor(epollDescriptor, service.getFileDescriptor()); // native call
+		if (ret < 0) {
+			throw ErrnoException.create("Service could not be added to reactor", (int) -ret);
+		}
+
+		INotifyService[] s = new INotifyService[services.length + 1];
+		System.arraycopy(services, 0, s, 0, services.length);
+		s[services.length] = service;
+		services = s;
+	}
+
+	/**
+	 * Removes the service from this reactor. The reactor thread may still
+	 * hold a reference to the service after this method returns, the service
+	 * has to check if it is disposed before it reads events.
+	 *
+	 * @param service
+	 *        the service to remove
+	 * @return true if the service was registered
+	 */
+	synchronized boolean unregister(INotifyService service) {
+		INotifyService[] old = services;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == service) {
+				if (!isDisposed)
+					removeDescriptor(epollDescriptor, service.getFileDescriptor()); // native call
+
+				INotifyService[] s = new INotifyService[old.length - 1];
+				System.arraycopy(old, 0, s, 0, i);
+				System.arraycopy(old, i + 1, s, i, old.length - i - 1);
+				services = s;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of services that are served by this reactor.
+	 *
+	 * @return the number of registered services
+	 */
+	public int getServiceCount() {
+		return services.length;
+	}
+
+	/**
+	 * Disposes this reactor. Its thread terminates and releases the native
+	 * resources. Services that are still registered will no longer receive
+	 * events and should be disposed before.
+	 *
+	 * @throws FileNotifyException
+	 *         if the thread could not be woken up. This should never happen.
+	 */
+	public synchronized void dispose() throws FileNotifyException {
+		if (!isDisposed) {
+			isDisposed = true;
+			long ret = wakeup(wakeupDescriptor); // native call
+			if (ret < 0) {
+				throw ErrnoException.create("Reactor could not be disposed", (int) -ret);
+			}
+		}
+	}
+
+	public void run() {
+		int[] ready = new int[MAX_READY_DESCRIPTORS];
+		while (!isDisposed) {
+			// wake up in time to release the held back events of the services
+			int timeout = -1;
+			INotifyService[] s = services;
+			for (int j = 0; j < s.length; j++) {
+				int delay = s[j].getReleaseDelay();
+				if (delay >= 0 && (timeout < 0 || delay < timeout))
+					timeout = delay;
+			}
+
+			int count = waitForDescriptors(epollDescriptor, ready, timeout); // native call
+			if (count < 0) {
+				if (!isDisposed) {
+					LOG.log(Level.SEVERE, "Critical error while waiting for events", new FileNotifyException(ErrnoMessages.getDescription(-count)));
+				}
+				break;
+			}
+
+			s = services;
+			for (int i = 0; i < count; i++) {
+				long fd = ready[i];
+				if (fd == wakeupDescriptor) {
+					clearWakeup(wakeupDescriptor); // native call
+					continue;
+				}
+				for (int j = 0; j < s.length; j++) {
+					if (s[j].getFileDescriptor() == fd) {
+						s[j].readAvailableEvents();
+						break;
+					}
+				}
+			}
+
+			for (int j = 0; j < s.length; j++) {
+				s[j].releaseHeldEvents();
+			}
+		}
+
+		closeDescriptor(wakeupDescriptor);
+		closeDescriptor(epollDescriptor);
+	}
+
+	/**
+	 * Creates a new epoll instance and returns its file descriptor.
+	 *
+	 * @return the file descriptor or a negative errno number if it fails
+	 */
+	private static native long createEpollInstance();
+
+	/**
+	 * Adds a file descriptor to the epoll instance. The epoll instance will
+	 * report it as ready if it is readable.
+	 *
+	 * @param epollDescriptor
+	 *        the file descriptor of the epoll instance
+	 * @param fileDescriptor
+	 *        the file descriptor to add
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	private static native long addDescriptor(long epollDescriptor, long fileDescriptor);
+
+	/**
+	 * Removes a file descriptor from the epoll instance.
+	 *
+	 * @param epollDescriptor
+	 *        the file descriptor of the epoll instance
+	 * @param fileDescriptor
+	 *        the file descriptor to remove
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	private static native long removeDescriptor(long epollDescriptor, long fileDescriptor);
+
+	/**
+	 * Waits until at least one of the file descriptors of the epoll instance
+	 * is readable and stores the readable file descriptors in the given
+	 * array. An interrupted wait returns 0.
+	 *
+	 * @param epollDescriptor
+	 *        the file descriptor of the epoll instance
+	 * @param ready
+	 *        the array that receives the readable file descriptors
+	 * @param timeout
+	 *        the maximal time to wait in milliseconds or -1 to wait forever
+	 * @return the number of readable file descriptors or a negative errno
+	 *         number if it fails
+	 */
+	private static native int waitForDescriptors(long epollDescriptor, int[] ready, int timeout);
+
+	/**
+	 * Creates a non blocking eventfd that is used to wake up a waiting
+	 * thread.
+	 *
+	 * @return the file descriptor or a negative errno number if it fails
+	 */
+	static native long createWakeupDescriptor();
+
+	/**
+	 * Makes the eventfd readable, so a thread waiting for it wakes up.
+	 *
+	 * @param wakeupDescriptor
+	 *        the file descriptor of the eventfd
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	static native long wakeup(long wakeupDescriptor);
+
+	/**
+	 * Resets the eventfd, so it is no longer readable.
+	 *
+	 * @param wakeupDescriptor
+	 *        the file descriptor of the eventfd
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	static native long clearWakeup(long wakeupDescriptor);
+
+	/**
+	 * Closes a file descriptor.
+	 *
+	 * @param fileDescriptor
+	 *        the file descriptor to close
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	static native long closeDescriptor(long fileDescriptor);
+
+}
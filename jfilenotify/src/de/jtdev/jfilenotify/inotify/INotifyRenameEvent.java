@@ -0,0 +1,66 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileRenameEvent;
+
+/**
+ * A {@code IN_MOVED_FROM} and a {@code IN_MOVED_TO} event with the same
+ * cookie, delivered as one event. The watch descriptor and file name are the
+ * ones of the {@code IN_MOVED_TO} event, the old watch descriptor and file
+ * name the ones of the {@code IN_MOVED_FROM} event.
+ */
+public class INotifyRenameEvent extends INotifyEvent implements FileRenameEvent {
+
+	private final long oldWatchDescriptor;
+	private final String oldFileName;
+
+	public INotifyRenameEvent(long watchDescriptor, int cookie, int mask, long oldWatchDescriptor, String oldFileName, String fileName) {
+		super(watchDescriptor, cookie, mask, fileName);
+		this.oldWatchDescriptor = oldWatchDescriptor;
+		this.oldFileName = oldFileName;
+	}
+
+	/**
+	 * Pairs the two events of a rename.
+	 *
+	 * @param from
+	 *        the {@code IN_MOVED_FROM} event
+	 * @param to
+	 *        the {@code IN_MOVED_TO} event with the same cookie
+	 * @return the rename event
+	 */
+	public static INotifyRenameEvent pair(INotifyEvent from, INotifyEvent to) {
+		return new INotifyRenameEvent(to.getWatchDescriptor(), to.getCookie(),
+				from.getChangeMask() | to.getChangeMask() | IN_RENAME,
+				from.getWatchDescriptor(), from.getChangedFileName(), to.getChangedFileName());
+	}
+
+	/**
+	 * Returns the watch descriptor of the directory the file was moved from.
+	 *
+	 * @return the old watch descriptor
+	 */
+	public long getOldWatchDescriptor() {
+		return oldWatchDescriptor;
+	}
+
+	public String getOldFileName() {
+		return oldFileName;
+	}
+
+	/**
+	 * Returns a copy of this event. Every listener group needs its own copy,
+	 * because the group changes the mask.
+	 *
+	 * @return the copy
+	 */
+	public INotifyRenameEvent copy() {
+		return new INotifyRenameEvent(getWatchDescriptor(), getCookie(), getChangeMask(),
+				oldWatchDescriptor, oldFileName, getChangedFileName());
+	}
+
+	public String toString() {
+		return "INotifyRenameEvent: wd=" + getWatchDescriptor() + " cookie=" + getCookie()
+				+ " mask=" + Integer.toHexString(getChangeMask()) + " oldwd=" + oldWatchDescriptor
+				+ " oldfilename=" + oldFileName + " filename=" + getChangedFileName();
+	}
+}
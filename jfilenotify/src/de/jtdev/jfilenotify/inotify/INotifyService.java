@@ -4,49 +4,239 @@ import de.jtdev.jfilenotify.FileNotifyConstants;
 import de.jtdev.jfilenotify.FileNotifyException;
 import de.jtdev.jfilenotify.FileNotifyListener;
 import de.jtdev.jfilenotify.FileNotifyService;
-import java.util.Iterator;
-import java.util.LinkedList;
+import de.jtdev.jfilenotify.polling.PollingService;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class implements a FileNotifyService with inotify as its backend.
  * It uses a thread to constantly read incomming events from an inotify
- * instance and passes them to the corresponding listeners.
+ * instance and passes them to the corresponding listeners. Instead of its own
+ * thread, a service can use the thread of an {@link INotifyReactor} that is
+ * shared with other services.
  *
  * It uses the library "jfilenotify" to access the inotify C interface.
+ *
+ * <p>A service with other than the default options can be created with a
+ * {@link INotifyService.Builder}.</p>
+ *
+ * <p>Every watched file needs a watch, listeners of the same file share it.
+ * The kernel limits the watches of a user, see {@link INotifyLimits}. If no
+ * more watches can be added, the {@link AdmissionPolicy} of the service
+ * decides if the listener is rejected, if another watch is evicted or if the
+ * file is polled instead.</p>
  * 
  * @author Tobias Oelgarte
  */
-public class INotifyService extends Thread implements FileNotifyService {
+public class INotifyService implements FileNotifyService {
 
 	static {
 		System.loadLibrary("jfilenotify");
 	}
 
+	/**
+	 * Logs what the reading thread does at level {@code FINEST} and critical
+	 * errors at level {@code SEVERE}.
+	 */
+	private static final Logger LOG = Logger.getLogger(INotifyService.class.getName());
+
+	/**
+	 * The default size of the buffer events are read into. It is large enough
+	 * to hold 1000 events with short file names.
+	 */
+	public static final int DEFAULT_EVENT_BUFFER_SIZE = (16 + 16) * 1000;
+
+	/**
+	 * The minimal size of the event buffer. It can hold one event with the 
+	 * longest possible file name, inotify refuses to read into a smaller
+	 * buffer.
+	 */
+	public static final int MIN_EVENT_BUFFER_SIZE = 16 + 256;
+
+	/**
+	 * The number of threads that walk a directory tree, if it is added with
+	 * {@link #addRecursiveFileNotifyListener(FileNotifyListener)}.
+	 */
+	public static final int DEFAULT_WALK_PARALLELISM = 4;
+
+	/**
+	 * The minimal number of candidates for an eviction that are searched at
+	 * once.
+	 */
+	private static final int EVICTION_CANDIDATES = 64;
+
+	/**
+	 * Returned by {@link #waitForEvents(long, long, int)} if events can be
+	 * read.
+	 */
+	private static final int EVENTS_READY = 0x1;
+
+	/**
+	 * Returned by {@link #waitForEvents(long, long, int)} if the thread was
+	 * woken up.
+	 */
+	private static final int WAKEUP_READY = 0x2;
+
 	/**
 	 * The file descriptor to the native allocated inotify instance
 	 */
 	private long fileDescriptor;
 
+	/**
+	 * The direct buffer the native layer reads the raw inotify events into.
+	 * It is reused for every read, so reading events produces no garbage 
+	 * besides the event objects themself. It is only accessed while
+	 * {@link #readLock} is held. Its memory is allocated outside of the java heap.
+	 */
+	private final ByteBuffer eventBuffer;
+
+	/**
+	 * Decodes the events of the event buffer. In flyweight mode it reuses the
+	 * same event for all events.
+	 */
+	private final EventDecoder decoder;
+
+	/**
+	 * The coalescer that holds back and merges the events before they are
+	 * dispatched or {@code null} if events are dispatched immediately. It is
+	 * only accessed while {@link #readLock} is held, by the reading thread and
+	 * by the resynchronization that releases the held back events.
+	 */
+	private final EventCoalescer coalescer;
+
+	/**
+	 * The engine that resynchronizes the listeners after a queue overflow or
+	 * {@code null} if they only receive the overflow event.
+	 */
+	private final OverflowResync resync;
+
+	/**
+	 * The correlator that pairs moves into rename events or {@code null} if
+	 * moves are delivered as separate events. It is only accessed while
+	 * {@link #readLock} is held, like the {@link #coalescer}.
+	 */
+	private final RenameCorrelator renames;
+
+	/**
+	 * True if the masks of the listeners and events are the masks of inotify
+	 * instead of the constants of {@link FileNotifyConstants}.
+	 */
+	private final boolean rawMasks;
+
+	/**
+	 * The metrics of this service or {@code null} if they are not collected.
+	 */
+	private final INotifyMetrics metrics;
+
+	/**
+	 * What happens to a listener that needs a new watch, if the limit of
+	 * watches is reached.
+	 */
+	private final AdmissionPolicy admissionPolicy;
+
+	/**
+	 * The maximal number of watches of this service or 0 if only the limit
+	 * of the kernel applies.
+	 */
+	private final int watchLimit;
+
+	/**
+	 * The least recently active groups found by the last search for watches
+	 * that can be evicted, the least active first, and their activity at
+	 * that time. Groups that received no event since the search are still
+	 * less active than all other groups, so they are evicted in this order
+	 * until the candidates are used up. Synchronized on
+	 * {@link #listenerGroups}.
+	 */
+	private ListenerGroup[] evictionCandidates = new ListenerGroup[0];
+	private long[] candidateActivity = new long[0];
+	private int nextCandidate = 0;
+
+	/**
+	 * The time between two polls of the listeners that are polled.
+	 */
+	private final long pollingInterval;
+
+	/**
+	 * The service that polls the listeners which got no watch or 
+	 * {@code null} if none was needed yet.
+	 */
+	private PollingService pollingService;
+
+	/**
+	 * The executor that calls the listeners or {@code null} if the listeners
+	 * are called by the reading thread.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The executor created by {@link Builder#virtualThreadExecutor()}, which
+	 * is shut down if the service is disposed. Otherwise {@code null}.
+	 */
+	private final ExecutorService ownedExecutor;
+
+	/**
+	 * The reactor that reads the events of this service or {@code null} if
+	 * the service uses its own thread.
+	 */
+	private final INotifyReactor reactor;
+
+	/**
+	 * The thread that reads the events of this service or {@code null} if
+	 * a reactor is used.
+	 */
+	private final Thread readerThread;
+
+	/**
+	 * The eventfd used to wake up the own thread of this service or -1 if a
+	 * reactor is used.
+	 */
+	private final long wakeupDescriptor;
+
+	/**
+	 * This object is used as monitor while events are read, so that the 
+	 * service can not be disposed while its events are read.
+	 */
+	private final Object readLock = new Object();
+
+	/**
+	 * If the service is paused no events are read. They stay in the queue of
+	 * the inotify instance until the service is resumed.
+	 */
+	private volatile boolean isPaused = false;
+
 	/**
 	 * If the service is disposed he will no longer acceppt that new Listeners
 	 * will be added.
 	 */
-	private boolean isDisposed = false;
+	private volatile boolean isDisposed = false;
 	
 	/**
-	 * This object is used as monitor to stop the thread if no listener is 
-	 * registered.
+	 * This table stores the added listerns in groups by the watch descriptor 
+	 * returned by inotify. Listeners that listen to the same inode will be 
+	 * added to the same ListenerGroup. Lookups don't lock, modifications are
+	 * synchronized on the table.
 	 */
-	private final Object threadLock = new Object();
-	
+	private final WatchDescriptorTable listenerGroups = new WatchDescriptorTable();
+
 	/**
-	 * This set stores the added listerns in groups sorted by the watch 
-	 * descriptor returned by inotify. Listeners that listen to the same inode 
-	 * will be added to the same ListenerGroup.
+	 * The watched directory trees by their listener.
 	 */
-	private final TreeSet<ListenerGroup> listenerGroupSet = new TreeSet<ListenerGroup>();
+	private final HashMap<FileNotifyListener, RecursiveWatch> recursiveWatches = new HashMap<FileNotifyListener, RecursiveWatch>();
 
 	/**
 	 * Creates a new INotifyService instance and allocates the needed native
@@ -56,63 +246,488 @@ public class INotifyService extends Thread implements FileNotifyService {
 	 *         if no inotify instance could be allocated.
 	 */
 	public INotifyService() throws FileNotifyException {
+		this(new Builder());
+	}
+
+	/**
+	 * Creates a new INotifyService instance with the options of the given
+	 * builder.
+	 *
+	 * @param builder
+	 *        the builder that holds the options
+	 * @throws FileNotifyException
+	 *         if no inotify instance could be allocated.
+	 */
+	private INotifyService(Builder builder) throws FileNotifyException {
+		reactor = builder.reactor;
 		fileDescriptor = createINotifyInstance(); // native call
 		if (fileDescriptor < 0) {
-			String reason = ErrnoMessages.getDescription((int) -fileDescriptor);
-			throw new FileNotifyException("Service could not be created (" + reason + ")");
+			throw ErrnoException.create("Service could not be created", (int) -fileDescriptor);
+		}
+		eventBuffer = ByteBuffer.allocateDirect(builder.eventBufferSize);
+		eventBuffer.order(ByteOrder.nativeOrder());
+		executor = builder.executor;
+		ownedExecutor = builder.ownedExecutor;
+		coalescer = builder.quietWindow > 0 ? new EventCoalescer(builder.quietWindow * 1000000L) : null;
+		rawMasks = builder.rawMasks;
+		metrics = builder.collectMetrics ? new INotifyMetrics(listenerGroups) : null;
+		admissionPolicy = builder.admissionPolicy;
+		watchLimit = builder.watchLimit;
+		pollingInterval = builder.pollingInterval;
+		renames = builder.renameWindow > 0 ? new RenameCorrelator(builder.renameWindow * 1000000L, builder.renameCapacity) : null;
+		resync = builder.resyncParallelism > 0 ? new OverflowResync(this, builder.resyncParallelism) : null;
+		// the events are passed to other threads or held back, they must not 
+		// be reused
+		boolean flyweight = builder.flyweightEvents && executor == null && coalescer == null && renames == null;
+		decoder = new EventDecoder(eventBuffer, getIntegerSize(), flyweight); // native call
+		
+		if (reactor != null) {
+			try {
+				reactor.register(this);
+			} catch (FileNotifyException ex) {
+				releaseINotifyInstance(fileDescriptor); // native call
+				throw ex;
+			}
+			wakeupDescriptor = -1;
+			readerThread = null;
+		} else {
+			wakeupDescriptor = INotifyReactor.createWakeupDescriptor(); // native call
+			if (wakeupDescriptor < 0) {
+				releaseINotifyInstance(fileDescriptor); // native call
+				throw ErrnoException.create("Service could not be created", (int) -wakeupDescriptor);
+			}
+			readerThread = new Thread() {
+				public void run() {
+					readLoop();
+				}
+			};
+			readerThread.setDaemon(true);
+			readerThread.start();
 		}
-		this.setDaemon(true);
-		this.start();
 	}
 
+	/**
+	 * Adds the listener. If the limit of watches is reached, the
+	 * {@link AdmissionPolicy} of the service decides what happens.
+	 *
+	 * @param listener
+	 *        the listener to add
+	 * @throws WatchLimitException
+	 *         if the limit of watches is reached and the listener is 
+	 *         rejected
+	 * @throws FileNotifyException
+	 *         if the file of the listener could not be registered
+	 */
 	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		try {
+			addListener(listener);
+		} catch (WatchLimitException ex) {
+			if (!pollListener(listener))
+				throw ex;
+		}
+	}
+
+	/**
+	 * Watches the directory of the listener and all of its subdirectories.
+	 * The file names of the events are relative to the directory of the
+	 * listener. The tree is walked by {@link #DEFAULT_WALK_PARALLELISM}
+	 * threads.
+	 *
+	 * @param listener
+	 *        the listener that receives the events of the tree
+	 * @throws FileNotifyException
+	 *         if a directory of the tree could not be registered
+	 */
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		addRecursiveFileNotifyListener(listener, DEFAULT_WALK_PARALLELISM);
+	}
+
+	/**
+	 * Watches the directory of the listener and all of its subdirectories.
+	 *
+	 * @param listener
+	 *        the listener that receives the events of the tree
+	 * @param parallelism
+	 *        the number of threads that walk the tree
+	 * @throws FileNotifyException
+	 *         if a directory of the tree could not be registered
+	 */
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener, int parallelism) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		if (rawMasks)
+			throw new FileNotifyException("Recursive listeners need translated masks");
+		RecursiveWatch w = new RecursiveWatch(this, listener);
+		synchronized (recursiveWatches) {
+			if (recursiveWatches.containsKey(listener))
+				return;
+			recursiveWatches.put(listener, w);
+		}
+		try {
+			w.register(parallelism);
+		} catch (FileNotifyException ex) {
+			synchronized (recursiveWatches) {
+				recursiveWatches.remove(listener);
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Registers the listener and returns the watch descriptor of its file.
+	 * If the limit of watches is reached, watches are evicted or a
+	 * {@link WatchLimitException} is thrown.
+	 */
+	long addListener(FileNotifyListener listener) throws FileNotifyException {
 		if (isDisposed)
 			throw new FileNotifyException("Can't add listener to disposed service");
 		
 		String fileName = listener.getFileName();
+		byte[] path = encodeFileName(fileName);
 		
 		// convertig mask to inotify specific mask
 		int mask = listener.getMask();
-		mask = importMask(mask) | INotifyEvent.IN_MASK_ADD;
+		mask = importListenerMask(mask) | INotifyEvent.IN_MASK_ADD;
 		
-		long watchDescriptor = addWatch(fileDescriptor, fileName, mask); // native call
-		if (watchDescriptor < 0) {
-			String reason = ErrnoMessages.getDescription((int) -watchDescriptor);
-			throw new FileNotifyException("Listener could not be registered (" + reason + ")");
+		while (true) {
+			long watchDescriptor = addWatch(fileDescriptor, path, mask); // native call
+			if (INotifyTrace.ENABLED)
+				INotifyTrace.watchAdded(fileDescriptor, fileName, mask, watchDescriptor);
+			if (watchDescriptor == -ErrnoMessages.ENOSPC && admissionPolicy == AdmissionPolicy.EVICT_LEAST_RECENTLY_ACTIVE && evictWatches(1) > 0)
+				continue;
+			if (watchDescriptor < 0) {
+				throw registrationFailure("Listener could not be registered", (int) -watchDescriptor);
+			}
+			
+			ListenerGroup created = null;
+			boolean admitted = true;
+			synchronized (listenerGroups) {
+				ListenerGroup g = listenerGroups.get(watchDescriptor);
+				if (g == null) {
+					if (watchLimit > 0 && listenerGroups.size() >= watchLimit) {
+						admitted = false;
+					} else {
+						g = new ListenerGroup(watchDescriptor, executor, rawMasks);
+						g.setLastActive(System.nanoTime());
+						listenerGroups.put(g);
+						created = g;
+					}
+				}
+				if (g != null)
+					g.addListener(listener);
+			}
+			if (!admitted) {
+				// the watch is new, so no other listener uses it
+				long ret = removeWatch(fileDescriptor, watchDescriptor); // native call
+				if (INotifyTrace.ENABLED)
+					INotifyTrace.watchRemoved(fileDescriptor, watchDescriptor, ret);
+				if (admissionPolicy == AdmissionPolicy.EVICT_LEAST_RECENTLY_ACTIVE && evictWatches(1) > 0)
+					continue;
+				throw registrationFailure("Listener could not be registered", ErrnoMessages.ENOSPC);
+			}
+			if (created != null && resync != null)
+				resync.takeSnapshots(new ListenerGroup[] { created });
+			return watchDescriptor;
+		}
+	}
+	
+	/**
+	 * Removes the watches that received no event for the longest time and
+	 * discards their listeners. The least recently active watches are
+	 * searched once for many evictions, see {@link #evictionCandidates}.
+	 *
+	 * @param count
+	 *        the number of watches to remove
+	 * @return the number of removed watches, 0 if there is no watch that
+	 *         could be removed
+	 */
+	private int evictWatches(int count) throws FileNotifyException {
+		ListenerGroup[] victims = new ListenerGroup[count];
+		int n = 0;
+		synchronized (listenerGroups) {
+			while (n < count) {
+				if (nextCandidate == evictionCandidates.length) {
+					findEvictionCandidates(Math.max(count - n, EVICTION_CANDIDATES));
+					if (evictionCandidates.length == 0)
+						break;
+				}
+				int i = nextCandidate++;
+				ListenerGroup g = evictionCandidates[i];
+				evictionCandidates[i] = null;
+				// skip the groups that became active or were removed since
+				if (g.getLastActive() != candidateActivity[i] || listenerGroups.get(g.getWatchDescriptor()) != g)
+					continue;
+				listenerGroups.remove(g.getWatchDescriptor());
+				victims[n++] = g;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			ListenerGroup victim = victims[i];
+			long ret = removeWatch(fileDescriptor, victim.getWatchDescriptor()); // native call
+			if (INotifyTrace.ENABLED)
+				INotifyTrace.watchRemoved(fileDescriptor, victim.getWatchDescriptor(), ret);
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine("Watch evicted, wd=" + victim.getWatchDescriptor() + " file=" + victim.getLastFileName());
+			if (metrics != null)
+				metrics.recordEviction();
+			victim.discardAllListeners(new INotifyEvent(victim.getWatchDescriptor(), 0, INotifyEvent.IN_IGNORED, null));
 		}
+		return n;
+	}
+	
+	/**
+	 * Searches the given number of least recently active groups and stores
+	 * them as the next candidates for an eviction, the least active first.
+	 * Must be called while {@link #listenerGroups} is locked.
+	 */
+	private void findEvictionCandidates(int count) {
+		ListenerGroup[] groups = listenerGroups.toArray();
+		final long[] activity = new long[groups.length];
+		for (int i = 0; i < groups.length; i++)
+			activity[i] = groups[i].getLastActive();
 		
-		synchronized (listenerGroupSet) {
-			ListenerGroup g = searchForListenerGroup(watchDescriptor);
-			if (g == null) {
-				g = new ListenerGroup(watchDescriptor);
-				listenerGroupSet.add(g);
+		// the most recently active of the selected groups is on top
+		PriorityQueue<Integer> selected = new PriorityQueue<Integer>(count + 1, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = activity[a.intValue()];
+				long y = activity[b.intValue()];
+				return x < y ? 1 : (x == y ? 0 : -1);
+			}
+		});
+		for (int i = 0; i < groups.length; i++) {
+			if (selected.size() < count) {
+				selected.add(Integer.valueOf(i));
+			} else if (activity[i] < activity[selected.peek().intValue()]) {
+				selected.poll();
+				selected.add(Integer.valueOf(i));
 			}
-			g.addListener(listener);
 		}
 		
-		// at least one listener has was added, awake the thread so that it can 
-		// read events for this listener
-		synchronized (threadLock) {
-			threadLock.notify();
+		evictionCandidates = new ListenerGroup[selected.size()];
+		candidateActivity = new long[selected.size()];
+		for (int i = evictionCandidates.length - 1; i >= 0; i--) {
+			int index = selected.poll().intValue();
+			evictionCandidates[i] = groups[index];
+			candidateActivity[i] = activity[index];
 		}
+		nextCandidate = 0;
+	}
+	
+	/**
+	 * Creates the exception for a file that could not be registered. If the
+	 * limit of watches of this service is reached, the exception names that
+	 * limit instead of the limit of the kernel.
+	 */
+	private ErrnoException registrationFailure(String action, int errno) {
+		if (errno == ErrnoMessages.ENOSPC && watchLimit > 0 && listenerGroups.size() >= watchLimit)
+			return new WatchLimitException(action + " (limit of " + watchLimit + " watches of the service reached)");
+		return ErrnoException.create(action, errno);
+	}
+	
+	/**
+	 * Polls the file of a listener that got no watch, if the admission policy
+	 * of this service is {@link AdmissionPolicy#POLL}.
+	 *
+	 * @param listener
+	 *        the listener that was rejected
+	 * @return false if the listener is not polled
+	 */
+	boolean pollListener(FileNotifyListener listener) throws FileNotifyException {
+		if (admissionPolicy != AdmissionPolicy.POLL)
+			return false;
+		getPollingService().addFileNotifyListener(listener);
+		if (metrics != null)
+			metrics.recordPollingFallback();
+		return true;
+	}
+	
+	/**
+	 * Returns what happens to a listener that needs a new watch, if the limit
+	 * of watches is reached.
+	 *
+	 * @return the admission policy
+	 */
+	AdmissionPolicy getAdmissionPolicy() {
+		return admissionPolicy;
+	}
+	
+	/**
+	 * Returns the service that polls the listeners which got no watch and
+	 * creates it if needed.
+	 */
+	private synchronized PollingService getPollingService() throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		if (pollingService == null)
+			pollingService = new PollingService(pollingInterval);
+		return pollingService;
+	}
+	
+	/**
+	 * Returns the number of watches of this service. Listeners of the same
+	 * file share a watch.
+	 *
+	 * @return the number of watches
+	 * @see INotifyLimits#getMaxUserWatches()
+	 */
+	public int getWatchCount() {
+		return listenerGroups.size();
+	}
+
+	/**
+	 * Adds many listeners at once. All files are registered with a single
+	 * native call, which is much faster than adding the listeners one by one.
+	 * Listeners whose file could not be registered are skipped, all other
+	 * listeners stay registered. If the limit of watches is reached, the
+	 * {@link AdmissionPolicy} of the service decides what happens to the
+	 * remaining listeners.
+	 *
+	 * @param listeners
+	 *        the listeners to add
+	 * @throws FileNotifyException
+	 *         if the file of at least one listener could not be registered
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException {
+		FileNotifyListener[] l = listeners.toArray(new FileNotifyListener[listeners.size()]);
+		long[] results = addListeners(l);
+		int failed = 0;
+		long firstError = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == -ErrnoMessages.ENOSPC && pollListener(l[i]))
+				continue;
+			if (results[i] < 0) {
+				if (failed++ == 0)
+					firstError = results[i];
+			}
+		}
+		if (failed > 0) {
+			throw registrationFailure(failed + " of " + l.length + " listeners could not be registered", (int) -firstError);
+		}
+	}
+
+	/**
+	 * Registers the listeners with a single native call and returns the watch
+	 * descriptor of each file or a negative errno number if it could not be
+	 * registered. If watches are evicted, the room for all files that
+	 * exceeded the limit of watches is made at once and they are registered
+	 * with a second native call.
+	 */
+	long[] addListeners(FileNotifyListener[] listeners) throws FileNotifyException {
+		long[] results = registerListeners(listeners);
+		if (admissionPolicy != AdmissionPolicy.EVICT_LEAST_RECENTLY_ACTIVE)
+			return results;
+		
+		int rejected = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == -ErrnoMessages.ENOSPC)
+				rejected++;
+		}
+		if (rejected == 0 || evictWatches(rejected) == 0)
+			return results;
 		
+		FileNotifyListener[] retry = new FileNotifyListener[rejected];
+		int[] indices = new int[rejected];
+		int n = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == -ErrnoMessages.ENOSPC) {
+				retry[n] = listeners[i];
+				indices[n++] = i;
+			}
+		}
+		long[] retried = registerListeners(retry);
+		for (int i = 0; i < n; i++)
+			results[indices[i]] = retried[i];
+		return results;
+	}
+	
+	/**
+	 * Registers the listeners with a single native call, without evicting
+	 * watches.
+	 */
+	private long[] registerListeners(FileNotifyListener[] listeners) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		
+		// encode all file names into one buffer, each terminated by '\0'
+		ByteArrayOutputStream paths = new ByteArrayOutputStream(listeners.length * 64);
+		int[] masks = new int[listeners.length];
+		for (int i = 0; i < listeners.length; i++) {
+			byte[] path = encodeFileName(listeners[i].getFileName());
+			paths.write(path, 0, path.length);
+			masks[i] = importListenerMask(listeners[i].getMask()) | INotifyEvent.IN_MASK_ADD;
+		}
+		
+		long[] results = new long[listeners.length];
+		int ret = addWatches(fileDescriptor, paths.toByteArray(), masks, results); // native call
+		if (ret < 0) {
+			throw ErrnoException.create("Listeners could not be registered", -ret);
+		}
+		if (INotifyTrace.ENABLED) {
+			for (int i = 0; i < listeners.length; i++)
+				INotifyTrace.watchAdded(fileDescriptor, listeners[i].getFileName(), masks[i], results[i]);
+		}
+		
+		ArrayList<ListenerGroup> created = new ArrayList<ListenerGroup>();
+		ArrayList<Long> rejected = null;
+		synchronized (listenerGroups) {
+			long now = System.nanoTime();
+			for (int i = 0; i < listeners.length; i++) {
+				long watchDescriptor = results[i];
+				if (watchDescriptor < 0)
+					continue;
+				ListenerGroup g = listenerGroups.get(watchDescriptor);
+				if (g == null) {
+					if (watchLimit > 0 && listenerGroups.size() >= watchLimit) {
+						if (rejected == null)
+							rejected = new ArrayList<Long>();
+						rejected.add(watchDescriptor);
+						results[i] = -ErrnoMessages.ENOSPC;
+						continue;
+					}
+					g = new ListenerGroup(watchDescriptor, executor, rawMasks);
+					g.setLastActive(now);
+					listenerGroups.put(g);
+					created.add(g);
+				}
+				g.addListener(listeners[i]);
+			}
+		}
+		if (rejected != null) {
+			for (Long watchDescriptor : rejected) {
+				// a file may be listed twice, then its watch is removed allready
+				long removed = removeWatch(fileDescriptor, watchDescriptor); // native call
+				if (INotifyTrace.ENABLED)
+					INotifyTrace.watchRemoved(fileDescriptor, watchDescriptor, removed);
+			}
+		}
+		if (!created.isEmpty() && resync != null)
+			resync.takeSnapshots(created.toArray(new ListenerGroup[created.size()]));
+		return results;
 	}
 
 	/**
-	 * 
+	 * Removes the listener. A listener that was added with 
+	 * {@link #addRecursiveFileNotifyListener(FileNotifyListener)} is removed
+	 * from all directories of its tree.
 	 */
 	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		RecursiveWatch w;
+		synchronized (recursiveWatches) {
+			w = recursiveWatches.remove(listener);
+		}
+		if (w != null) {
+			w.unregister();
+			return true;
+		}
 		
 		// finds the listener, removes it from his group and removes also 
 		// the group if it is empty after removing this listener.
 		ListenerGroup g = null;
-		synchronized (listenerGroupSet) {
-			Iterator<ListenerGroup> iter = listenerGroupSet.iterator();
-			while (iter.hasNext()) {
-				ListenerGroup tmp = iter.next();
+		synchronized (listenerGroups) {
+			for (ListenerGroup tmp : listenerGroups.toArray()) {
 				if (tmp.removeListener(listener)) {
 					if (tmp.isEmpty()) {
-						iter.remove();
+						listenerGroups.remove(tmp.getWatchDescriptor());
 					}
 					g = tmp;
 					break;
@@ -120,59 +735,244 @@ public class INotifyService extends Thread implements FileNotifyService {
 			}
 		}
 		
-		// if the listener was not added to this service return false.
-		if (g == null)
-			return false;
+		// the listener may be polled, otherwise it was not added to this 
+		// service
+		if (g == null) {
+			PollingService p;
+			synchronized (this) {
+				p = pollingService;
+			}
+			return p != null && p.removeFileNotifyListener(listener);
+		}
 		
+		updateWatch(g);
+		return true;
+	}
+
+	/**
+	 * Removes a listener whose watch descriptor is known, without searching
+	 * all groups.
+	 */
+	boolean removeListener(FileNotifyListener listener, long watchDescriptor) throws FileNotifyException {
+		ListenerGroup g;
+		synchronized (listenerGroups) {
+			g = listenerGroups.get(watchDescriptor);
+			if (g == null || !g.removeListener(listener))
+				return false;
+			if (g.isEmpty())
+				listenerGroups.remove(watchDescriptor);
+		}
+		updateWatch(g);
+		return true;
+	}
+
+	/**
+	 * Encodes a file name for the native layer. All file names are passed as
+	 * UTF-8 terminated by '\0', so a name must not contain '\0' itself.
+	 *
+	 * @param fileName
+	 *        the name of the file
+	 * @return the encoded name including its terminator
+	 * @throws FileNotifyException
+	 *         if the name contains '\0'
+	 */
+	static byte[] encodeFileName(String fileName) throws FileNotifyException {
+		if (fileName.indexOf('\0') >= 0)
+			throw new FileNotifyException("File name contains '\\0': " + fileName.replace('\0', '?'));
+		try {
+			byte[] name = fileName.getBytes("UTF-8");
+			byte[] path = new byte[name.length + 1];
+			System.arraycopy(name, 0, path, 0, name.length);
+			return path;
+		} catch (UnsupportedEncodingException ex) {
+			throw new FileNotifyException("File name could not be encoded", ex);
+		}
+	}
+	
+	/**
+	 * Removes the watch of a group after a listener was removed from it, or
+	 * updates its mask if it is not empty.
+	 */
+	private void updateWatch(ListenerGroup g) throws FileNotifyException {
 		synchronized (g) {
 			if (g.isEmpty()) { // remove the watch if the group is empty
 				long ret = removeWatch(fileDescriptor, g.getWatchDescriptor()); // native call
+				if (INotifyTrace.ENABLED)
+					INotifyTrace.watchRemoved(fileDescriptor, g.getWatchDescriptor(), ret);
 				if (ret < 0) {
-					String reason = ErrnoMessages.getDescription((int) -ret);
-					throw new FileNotifyException("Listener could not be unregisterd (" + reason + ")");
+					throw ErrnoException.create("Listener could not be unregisterd", (int) -ret);
 				}
 			} else { // update the mask of the watch, if group is not empty
-				long ret = addWatch(fileDescriptor, g.getLastFileName(), g.getCombinedMask());
+				long ret = addWatch(fileDescriptor, encodeFileName(g.getLastFileName()), g.getCombinedMask()); // native call
+				if (INotifyTrace.ENABLED)
+					INotifyTrace.watchAdded(fileDescriptor, g.getLastFileName(), g.getCombinedMask(), ret);
 				if (ret < 0) {
-					String reason = ErrnoMessages.getDescription((int) -ret);
-					throw new FileNotifyException("Listener could not be updated (" + reason + ")");
+					throw ErrnoException.create("Listener could not be updated", (int) -ret);
 				}
 				// TODO is inotify free to return a diffrent watch as before?
 				//      in that case the watchDescriptor of the group must be 
-				//      updated, the listenerGroupSet newly sorted, 
+				//      updated, the group moved inside of listenerGroups, 
 				if (ret != g.getWatchDescriptor()) {
 					throw new FileNotifyException("Other descriptor returned, yet missing code to handle this.");
 				}
 			}
 		}
-		return true;
 	}
 
+	/**
+	 * Returns the number of events that were dropped or coalesced because the
+	 * bounded queue of the listener was full. Events are only queued if the
+	 * service uses an executor.
+	 *
+	 * @param listener
+	 *        a registered listener
+	 * @return the number of dropped events or -1 if the listener is not 
+	 *         registered with this service
+	 */
+	public long getDroppedEventCount(FileNotifyListener listener) {
+		synchronized (recursiveWatches) {
+			RecursiveWatch w = recursiveWatches.get(listener);
+			if (w != null)
+				return w.getDroppedEventCount();
+		}
+		for (ListenerGroup g : listenerGroups.toArray()) {
+			long count = g.getDroppedEventCount(listener);
+			if (count >= 0)
+				return count;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the number of events that were dropped or coalesced for all
+	 * registered listeners.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+		long count = 0;
+		for (ListenerGroup g : listenerGroups.toArray())
+			count += g.getDroppedEventCount();
+		return count;
+	}
+	
+	/**
+	 * Returns the metrics of this service.
+	 *
+	 * @return the metrics or {@code null} if they are not collected
+	 * @see Builder#collectMetrics(boolean)
+	 */
+	public INotifyMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Pauses this service. No events are read until {@link #resume()} is 
+	 * called, they stay in the queue of the inotify instance. If the queue
+	 * overflows while the service is paused, events are lost.
+	 */
+	public synchronized void pause() {
+		if (isDisposed || isPaused)
+			return;
+		isPaused = true;
+		if (reactor != null) {
+			reactor.unregister(this);
+		} else {
+			INotifyReactor.wakeup(wakeupDescriptor); // native call
+		}
+	}
+	
+	/**
+	 * Resumes a paused service. The events that were queued while the 
+	 * service was paused are read immediately.
+	 *
+	 * @throws FileNotifyException
+	 *         if the service could not be registered with its reactor again
+	 */
+	public synchronized void resume() throws FileNotifyException {
+		if (isDisposed || !isPaused)
+			return;
+		isPaused = false;
+		if (reactor != null) {
+			reactor.register(this);
+		} else {
+			INotifyReactor.wakeup(wakeupDescriptor); // native call
+		}
+	}
+	
+	/**
+	 * Returns true if this service is paused.
+	 *
+	 * @return true if the service is paused
+	 */
+	public boolean isPaused() {
+		return isPaused;
+	}
+	
 	/**
 	 * Disposes this service. It will release all allocated native resources
 	 * and removes all waiting listeners and call their discarded() method.
+	 * When this method returns, no events are read anymore. If it is called
+	 * by a listener, events that were read before are still dispatched.
 	 * @throws FileNotifyException
 	 *         if not all resources could be freed. This
 	 *         should never happen.
 	 */
 	public synchronized void dispose() throws FileNotifyException {
 		if (!isDisposed) {
-			isDisposed = true;
-			long ret = releaseINotifyInstance(fileDescriptor); // native call
-			
-			// removing all listener groups, so that the thread can terminate
-			synchronized (listenerGroupSet) {
-				listenerGroupSet.clear();
+			long ret;
+			// a reading thread that waits for a listener with a full queue
+			// must not block the disposal
+			for (ListenerGroup g : listenerGroups.toArray())
+				g.closeMailboxes();
+			synchronized (recursiveWatches) {
+				for (RecursiveWatch w : recursiveWatches.values())
+					w.closeMailbox();
+			}
+			if (reactor != null) {
+				reactor.unregister(this);
+			} else {
+				isDisposed = true;
+				INotifyReactor.wakeup(wakeupDescriptor); // native call
+				// wait until the thread terminates, unless a listener disposes
+				// the service while it is notified by that thread
+				if (Thread.currentThread() != readerThread) {
+					boolean interrupted = false;
+					while (readerThread.isAlive()) {
+						try {
+							readerThread.join();
+						} catch (InterruptedException ex) {
+							interrupted = true;
+						}
+					}
+					if (interrupted)
+						Thread.currentThread().interrupt();
+				}
+				INotifyReactor.closeDescriptor(wakeupDescriptor); // native call
+			}
+			// wait until the events that are currently read are dispatched
+			synchronized (readLock) {
+				isDisposed = true;
+				ret = releaseINotifyInstance(fileDescriptor); // native call
 			}
 			
-			// awake the thread, so that he can terminate
-			synchronized (threadLock) {
-				threadLock.notify();
+			listenerGroups.clear();
+			synchronized (recursiveWatches) {
+				recursiveWatches.clear();
 			}
 			
+			// events that are allready queued will still be delivered
+			if (ownedExecutor != null)
+				ownedExecutor.shutdown();
+			if (resync != null)
+				resync.dispose();
+			if (pollingService != null)
+				pollingService.dispose();
+			if (metrics != null)
+				metrics.unregister();
+			
 			if (ret < 0) {
-				String reason = ErrnoMessages.getDescription((int) -ret);
-				throw new FileNotifyException("Service could not be disposed (" + reason + ")");
+				throw ErrnoException.create("Service could not be disposed", (int) -ret);
 			}
 		}
 	}
@@ -188,10 +988,24 @@ public class INotifyService extends Thread implements FileNotifyService {
 		try {
 			dispose();
 		} catch (FileNotifyException ex) {
-			ex.printStackTrace();
+			LOG.log(Level.SEVERE, "Service could not be disposed", ex);
 		}
 	}
 	
+	/**
+	 * The constants for inotify and this project are not the same, so this 
+	 * method convert a mask that is used by project to a mask that inotify 
+	 * understands. A listener mask is returned unchanged if the service 
+	 * passes raw kernel masks.
+	 * 
+	 * @param externalMask 
+	 *        the mask that should be converted to a mask that fits inotify
+	 * @return returns a mask suitable for inotify
+	 */
+	int importListenerMask(final int externalMask) {
+		return rawMasks ? externalMask : importMask(externalMask);
+	}
+	
 	/**
 	 * The constants for inotify and this project are not the same, so this 
 	 * method convert a mask that is used by project to a mask that inotify 
@@ -201,27 +1015,8 @@ public class INotifyService extends Thread implements FileNotifyService {
 	 *        the mask that should be converted to a mask that fits inotify
 	 * @return returns a mask suitable for inotify
 	 */
-	private static int importMask(final int externalMask) {
-		int m = 0x00000000;
-		
-		if ((FileNotifyConstants.OPENED               & externalMask) != 0)  m |= INotifyEvent.IN_OPEN;
-		if ((FileNotifyConstants.ACCESSED             & externalMask) != 0)  m |= INotifyEvent.IN_ACCESS;
-		if ((FileNotifyConstants.MODIFIED             & externalMask) != 0)  m |= INotifyEvent.IN_MODIFY;
-		if ((FileNotifyConstants.CLOSED_WRITEABLE     & externalMask) != 0)  m |= INotifyEvent.IN_CLOSE_WRITE;
-		if ((FileNotifyConstants.CLOSED_NOT_WRITEABLE & externalMask) != 0)  m |= INotifyEvent.IN_CLOSE_NOWRITE;
-		if ((FileNotifyConstants.ATTRIBUTES_CHANGED   & externalMask) != 0)  m |= INotifyEvent.IN_ATTRIB;
-		
-		if ((FileNotifyConstants.SUBFILE_CREATED & externalMask) != 0)  m |= INotifyEvent.IN_CREATE;
-		if ((FileNotifyConstants.SUBFILE_DELETED & externalMask) != 0)  m |= INotifyEvent.IN_DELETE;
-		if ((FileNotifyConstants.MOVED_FROM      & externalMask) != 0)  m |= INotifyEvent.IN_MOVED_FROM;
-		if ((FileNotifyConstants.MOVED_TO        & externalMask) != 0)  m |= INotifyEvent.IN_MOVED_TO;
-		if ((FileNotifyConstants.SELF_DELETED    & externalMask) != 0)  m |= INotifyEvent.IN_DELETE_SELF;
-		if ((FileNotifyConstants.SELF_MOVED      & externalMask) != 0)  m |= INotifyEvent.IN_MOVE_SELF;
-		
-		if ((FileNotifyConstants.ONLY_DIRECTORY & externalMask) != 0)  m |= INotifyEvent.IN_ONLYDIR;
-//		if ((FileNotifyConstants.DONT_FOLLOW    & externalMask) != 0)  m |= INotifyEvent.IN_DONT_FOLLOW;
-		
-		return m;
+	static int importMask(final int externalMask) {
+		return MaskTranslator.importMask(externalMask);
 	}
 	
 	/**
@@ -235,176 +1030,678 @@ public class INotifyService extends Thread implements FileNotifyService {
 	 * @return returns a mask suitable fot this project
 	 */
 	protected static int exportMask(final int internalMask) {
-		int m = 0x00000000;
-		
-		if ((INotifyEvent.IN_OPEN          & internalMask) != 0)  m |= FileNotifyConstants.OPENED;
-		if ((INotifyEvent.IN_ACCESS        & internalMask) != 0)  m |= FileNotifyConstants.ACCESSED;
-		if ((INotifyEvent.IN_MODIFY        & internalMask) != 0)  m |= FileNotifyConstants.MODIFIED;
-		if ((INotifyEvent.IN_CLOSE_WRITE   & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_WRITEABLE;
-		if ((INotifyEvent.IN_CLOSE_NOWRITE & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_NOT_WRITEABLE;
-		if ((INotifyEvent.IN_ATTRIB        & internalMask) != 0)  m |= FileNotifyConstants.ATTRIBUTES_CHANGED;
-		
-		if ((INotifyEvent.IN_CREATE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_CREATED;
-		if ((INotifyEvent.IN_DELETE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_DELETED;
-		if ((INotifyEvent.IN_MOVED_FROM  & internalMask) != 0)  m |= FileNotifyConstants.MOVED_FROM;
-		if ((INotifyEvent.IN_MOVED_TO    & internalMask) != 0)  m |= FileNotifyConstants.MOVED_TO;
-		if ((INotifyEvent.IN_DELETE_SELF & internalMask) != 0)  m |= FileNotifyConstants.SELF_DELETED;
-		if ((INotifyEvent.IN_MOVE_SELF   & internalMask) != 0)  m |= FileNotifyConstants.SELF_MOVED;
-		
-		// TODO overflow is ignored completly so far.. pray that it does not happen ;-|
-		// if ((INotifyEvent.IN_ISDIR   & internalMask) != 0)  m |= FileNotifyConstants.IS_DIRECTORY;
-		if ((INotifyEvent.IN_UNMOUNT & internalMask) != 0)  m |= FileNotifyConstants.UNMOUNTED;
-		
-		return m;
-	}
-	
-	private ListenerGroup searchForListenerGroup(long watchDecsriptor) {
-		ListenerGroup searchGroup = new ListenerGroup(watchDecsriptor);
-		ListenerGroup g;
-		synchronized (listenerGroupSet) {
-			g = listenerGroupSet.floor(searchGroup);
-		}
-		if (searchGroup.equals(g))
-			return g;
-		return null;
+		return MaskTranslator.exportMask(internalMask);
 	}
 	
 	private boolean removeListenerGroup(INotifyEvent event) {
-		// TODO use cached version of searchGroup for better performance
-		ListenerGroup searchGroup = new ListenerGroup(event.getWatchDescriptor());
-		synchronized (listenerGroupSet) {
-			ListenerGroup g = listenerGroupSet.floor(searchGroup);
-			if (searchGroup.equals(g)) {
-				listenerGroupSet.remove(g);
-				g.discardAllListeners(event);
-				return true;
-			}
+		ListenerGroup g = listenerGroups.remove(event.getWatchDescriptor());
+		if (g != null) {
+			g.discardAllListeners(event);
+			return true;
 		}
 		return false;
 	}
 
-	public void run() {
-		System.out.println("Thread started");
-		while (true) {
+	/**
+	 * Returns the file descriptor of the inotify instance.
+	 *
+	 * @return the file descriptor
+	 */
+	long getFileDescriptor() {
+		return fileDescriptor;
+	}
+
+	/**
+	 * Returns the executor that calls the listeners.
+	 *
+	 * @return the executor or {@code null} if the listeners are called
+	 *         directly
+	 */
+	Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Returns the groups of all watches.
+	 *
+	 * @return a copy of the registered groups
+	 */
+	ListenerGroup[] getListenerGroups() {
+		return listenerGroups.toArray();
+	}
+	
+	/**
+	 * Reads the events that are available without blocking and dispatches 
+	 * them. This method is called by the reading thread if the file 
+	 * descriptor of this service is readable.
+	 *
+	 * @return false if a critical error occured and no more events can be
+	 *         read, true otherwise
+	 */
+	boolean readAvailableEvents() {
+		synchronized (readLock) {
+			if (isDisposed)
+				return true;
 			
-			while (listenerGroupSet.isEmpty() && !isDisposed) {
-				synchronized (threadLock) {
-					System.out.println("Thread will sleep now.");
-					try { threadLock.wait(); } catch (InterruptedException ex) { }
-					System.out.println("Thread awaked");
-				}
+			long start = INotifyTrace.ENABLED ? System.nanoTime() : 0;
+			int length = readEventBuffer(fileDescriptor, eventBuffer); // native call
+			if (INotifyTrace.ENABLED)
+				INotifyTrace.read(fileDescriptor, length, System.nanoTime() - start);
+			if (length < 0) {
+				LOG.log(Level.SEVERE, "Critical error while reading events", new FileNotifyException(ErrnoMessages.getDescription(-length)));
+				if (reactor != null)
+					reactor.unregister(this);
+				return false;
 			}
 			
+			if (metrics != null)
+				metrics.recordRead(length);
+			dispatchEvents(length);
+			releaseHeldEvents(false);
+			return true;
+		}
+	}
+	
+	/**
+	 * Dispatches the held back events whose window has passed. This method
+	 * is called by the reading thread.
+	 */
+	void releaseHeldEvents() {
+		if (coalescer == null && renames == null)
+			return;
+		synchronized (readLock) {
 			if (isDisposed)
-				break;
-			
-			System.out.println("Thread will read events");
-			List<INotifyEvent> events = readEvents(fileDescriptor); // native call
-			System.out.println(events.size() + " events read by thread");
+				return;
+			releaseHeldEvents(false);
+		}
+	}
+	
+	/**
+	 * Dispatches the held back events whose window has passed or all held
+	 * back events. Unpaired moves are passed to the coalescer first.
+	 *
+	 * @param all
+	 *        true to dispatch all held back events
+	 */
+	private void releaseHeldEvents(boolean all) {
+		long now = System.nanoTime();
+		INotifyEvent event;
+		if (renames != null) {
+			while ((event = renames.poll(now, all)) != null) {
+				coalesceEvent(event);
+			}
+		}
+		if (coalescer != null) {
+			while ((event = coalescer.poll(now, all)) != null) {
+				deliverEvent(event);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the time until held back events have to be dispatched. This
+	 * method is called by the reading thread.
+	 *
+	 * @return the delay in milliseconds or -1 if no events are held back
+	 */
+	int getReleaseDelay() {
+		if (coalescer == null && renames == null)
+			return -1;
+		long delay;
+		// the resynchronization releases held back events concurrently
+		synchronized (readLock) {
+			long now = System.nanoTime();
+			delay = coalescer == null ? -1 : coalescer.getDelay(now);
+			if (renames != null) {
+				long d = renames.getDelay(now);
+				if (d >= 0 && (delay < 0 || d < delay))
+					delay = d;
+			}
+		}
+		if (delay < 0)
+			return -1;
+		return (int) Math.min((delay + 999999) / 1000000, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * The loop of the own thread of this service. It reads the events until
+	 * the service is disposed.
+	 */
+	private void readLoop() {
+		LOG.finest("Thread started");
+		while (!isDisposed) {
+			// while paused only the wakeup descriptor is watched
+			long fd = isPaused ? -1 : fileDescriptor;
+			int ready = waitForEvents(fd, wakeupDescriptor, getReleaseDelay()); // native call
 			
-			if (events == null) {
+			if (ready < 0) {
 				if (!isDisposed) {
-					new FileNotifyException("Critical error while reading events").printStackTrace();
+					LOG.log(Level.SEVERE, "Critical error while waiting for events", new FileNotifyException(ErrnoMessages.getDescription(-ready)));
 				}
-				break; // no more events while all watches are removed and service is disposed
+				break;
 			}
 			
-			for (INotifyEvent event : events) {
-				if (event.isIgnoreEvent()) {
-					System.out.println("Ignoreevent read, remove listener group now.");
-					removeListenerGroup(event);
-				} else {
-					ListenerGroup g = searchForListenerGroup(event.getWatchDescriptor());
-					if (g != null) {
-						System.out.println("Listenergroup found");
-						g.notifyAllListener(event);
-					} else {
-						System.out.println("Listenergroup not found for wd=" + event.getWatchDescriptor());
-					}
-				}
+			if ((ready & WAKEUP_READY) != 0) {
+				LOG.finest("Thread awaked");
+				INotifyReactor.clearWakeup(wakeupDescriptor); // native call
+			}
+			
+			if ((ready & EVENTS_READY) != 0) {
+				LOG.finest("Thread will read events");
+				if (!readAvailableEvents())
+					break;
+			} else {
+				releaseHeldEvents();
 			}
 		}
 	}
 	
-	private List<INotifyEvent> readEvents(long fileDescriptor) {
+	/**
+	 * Passes a single event to the listeners of its watch descriptor, to the
+	 * rename correlator or to the coalescer.
+	 *
+	 * @param event
+	 *        the event read from the inotify instance
+	 */
+	private void dispatchEvent(INotifyEvent event) {
+		if ((event.getChangeMask() & INotifyEvent.IN_Q_OVERFLOW) != 0) {
+			deliverOverflow();
+		} else if (event.isIgnoreEvent()) {
+			// the held back events must reach the listeners before they are 
+			// discarded
+			releaseHeldEvents(true);
+			deliverEvent(event);
+		} else if (renames != null && (event.getChangeMask() & INotifyEvent.IN_MOVE) != 0) {
+			// a held back move of the same directories happened before
+			INotifyEvent held;
+			while ((held = renames.pollBefore(event)) != null)
+				coalesceEvent(held);
+			event = renames.add(event, System.nanoTime());
+			if (event != null)
+				coalesceEvent(event);
+		} else {
+			if (renames != null && !renames.isEmpty()) {
+				// a held back move of the same directory happened before
+				INotifyEvent held;
+				while ((held = renames.pollWatch(event.getWatchDescriptor())) != null)
+					coalesceEvent(held);
+			}
+			coalesceEvent(event);
+		}
+	}
+	
+	/**
+	 * Passes a single event to the coalescer or to the listeners if events
+	 * are not coalesced.
+	 *
+	 * @param event
+	 *        the event read from the inotify instance
+	 */
+	private void coalesceEvent(INotifyEvent event) {
+		if (coalescer == null) {
+			deliverEvent(event);
+		} else {
+			coalescer.add(event, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Informs the listeners of all watches that events were lost and starts
+	 * the resynchronization. The held back events are released before.
+	 */
+	private void deliverOverflow() {
+		releaseHeldEvents(true);
+		ListenerGroup[] groups = listenerGroups.toArray();
+		for (ListenerGroup g : groups) {
+			// the group changes the mask of the event, every group needs its own
+			g.notifyAllListener(new INotifyEvent(g.getWatchDescriptor(), 0, INotifyEvent.IN_Q_OVERFLOW, null));
+		}
+		if (resync != null)
+			resync.resync(groups);
+	}
+	
+	/**
+	 * Delivers the events found by the resynchronization after an overflow.
+	 * They are not held back, because they are the net change allready.
+	 *
+	 * @param events
+	 *        the synthetic events of a single watch
+	 */
+	void deliverSyntheticEvents(List<INotifyEvent> events) {
+		synchronized (readLock) {
+			if (isDisposed)
+				return;
+			releaseHeldEvents(true);
+			for (INotifyEvent event : events)
+				deliverEvent(event);
+		}
+	}
+	
+	/**
+	 * Passes a single event to the listeners of its watch descriptor without
+	 * holding it back.
+	 *
+	 * @param event
+	 *        the event read from the inotify instance
+	 */
+	private void deliverEvent(INotifyEvent event) {
+		if (event.isIgnoreEvent()) {
+			if (LOG.isLoggable(Level.FINEST))
+				LOG.finest("Ignore event read, remove listener group of wd=" + event.getWatchDescriptor());
+			removeListenerGroup(event);
+		} else {
+			// a file moved between two watched directories concerns both
+			INotifyEvent fromEvent = null;
+			if (event instanceof INotifyRenameEvent) {
+				INotifyRenameEvent r = (INotifyRenameEvent) event;
+				if (r.getOldWatchDescriptor() != r.getWatchDescriptor())
+					fromEvent = r.copy();
+			}
+			ListenerGroup g = listenerGroups.get(event.getWatchDescriptor());
+			if (g != null) {
+				if (admissionPolicy == AdmissionPolicy.EVICT_LEAST_RECENTLY_ACTIVE)
+					g.setLastActive(System.nanoTime());
+				if (resync != null)
+					g.setSnapshotStale(true);
+				g.notifyAllListener(event);
+			} else {
+				if (metrics != null)
+					metrics.recordUnmatched();
+				if (LOG.isLoggable(Level.FINEST))
+					LOG.finest("Listener group not found for wd=" + event.getWatchDescriptor());
+			}
+			if (fromEvent != null) {
+				g = listenerGroups.get(((INotifyRenameEvent) fromEvent).getOldWatchDescriptor());
+				if (g != null)
+					g.notifyAllListener(fromEvent);
+			}
+		}
+	}
+	
+	/**
+	 * Decodes the events stored in the event buffer and dispatches them one 
+	 * by one. In flyweight mode the same event object is used for all
+	 * events and no file name is decoded that is not requested by a listener.
+	 *
+	 * @param length
+	 *        the number of bytes stored in the event buffer
+	 */
+	private void dispatchEvents(int length) {
+		decoder.reset(length);
+		INotifyEvent event;
+		if (metrics == null) {
+			while ((event = decoder.next()) != null) {
+				if (INotifyTrace.ENABLED)
+					INotifyTrace.event(fileDescriptor, event);
+				dispatchEvent(event);
+			}
+			return;
+		}
+		int count = 0;
+		while ((event = decoder.next()) != null) {
+			if (INotifyTrace.ENABLED)
+				INotifyTrace.event(fileDescriptor, event);
+			metrics.recordEvent(event.getChangeMask());
+			long start = System.nanoTime();
+			dispatchEvent(event);
+			metrics.recordDispatch(System.nanoTime() - start);
+			count++;
+		}
+		metrics.recordBatch(count);
+	}
+	
+	/**
+	 * Creates {@link INotifyService} instances with non default options.
+	 * Options that are not set keep their default value.
+	 */
+	public static class Builder {
 		
-		byte[] data = readEventData(fileDescriptor);
+		private boolean flyweightEvents = false;
+		private int eventBufferSize = DEFAULT_EVENT_BUFFER_SIZE;
+		private INotifyReactor reactor = null;
+		private Executor executor = null;
+		private ExecutorService ownedExecutor = null;
+		private long quietWindow = 0;
+		private int resyncParallelism = 0;
+		private boolean rawMasks = false;
+		private long renameWindow = 0;
+		private int renameCapacity = RenameCorrelator.DEFAULT_CAPACITY;
+		private boolean collectMetrics = false;
+		private String metricsName = null;
+		private AdmissionPolicy admissionPolicy = AdmissionPolicy.REJECT;
+		private int watchLimit = 0;
+		private long pollingInterval = PollingService.DEFAULT_INTERVAL;
 		
-		if (data == null)
-			return null;
+		/**
+		 * Creates a builder with the default options.
+		 */
+		public Builder() {
+		}
 		
-		if (data.length == 0)
-			return new LinkedList<INotifyEvent>();
+		/**
+		 * Enables or disables the flyweight mode. In flyweight mode the 
+		 * service passes the same reused event object to the listeners for
+		 * every event and decodes the file name only if
+		 * {@link de.jtdev.jfilenotify.FileNotifyEvent#getChangedFileName()} is
+		 * called. The event is only valid during the call of the listener and
+		 * must not be stored. Disabled by default. The flyweight mode has no
+		 * effect if the listeners are called by an executor, if events are
+		 * coalesced or if moves are paired, since held back events must
+		 * outlive the next read.
+		 *
+		 * @param enabled
+		 *        true to enable the flyweight mode
+		 * @return this builder
+		 */
+		public Builder flyweightEvents(boolean enabled) {
+			this.flyweightEvents = enabled;
+			return this;
+		}
 		
-		LinkedList<INotifyEvent> list = new LinkedList<INotifyEvent>();
+		/**
+		 * Sets the size of the buffer the events are read into. A larger
+		 * buffer allows the service to drain more events from the kernel 
+		 * queue with a single read, which helps against queue overflows 
+		 * during bursts of events. Defaults to 
+		 * {@link INotifyService#DEFAULT_EVENT_BUFFER_SIZE}.
+		 *
+		 * @param size
+		 *        the size of the buffer in bytes
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *         if size is smaller than 
+		 *         {@link INotifyService#MIN_EVENT_BUFFER_SIZE}
+		 */
+		public Builder eventBufferSize(int size) {
+			if (size < MIN_EVENT_BUFFER_SIZE)
+				throw new IllegalArgumentException("Event buffer size must be at least " + MIN_EVENT_BUFFER_SIZE + " bytes: " + size);
+			this.eventBufferSize = size;
+			return this;
+		}
 		
-		int index = 0;
-		while (index < data.length) {
-			
-			long watchDescriptor;
-			if (getIntegerSize() == 8) {
-				watchDescriptor = readUnsignedLongReversedOrder(data, index);
-				index += 8;
-			} else {
-				watchDescriptor = readUnsignedIntReversedOrder(data, index);
-				index += 4;
-			}
-			
-			int mask = readUnsignedIntReversedOrder(data, index);
-			index += 4;
-			
-			int cookie = readUnsignedIntReversedOrder(data, index);
-			index += 4;
-			
-			int length = readUnsignedIntReversedOrder(data, index);
-			index += 4;
-			
-			String fileName = null;
-			if (length > 0) {
-				int strlen = strlen(data, index, length);
-				fileName = new String(data, index, strlen);
+		/**
+		 * Enables the coalescing of events. Events are held back for the 
+		 * given quiet window. Repeated events of the same type for the same
+		 * file are merged while they are held back, and a rename inside of
+		 * one directory is delivered as a single 
+		 * {@link de.jtdev.jfilenotify.FileRenameEvent}. The events of a file
+		 * keep their order. Disabled by default.
+		 *
+		 * @param quietWindowMillis
+		 *        the time in milliseconds an event is held back after the 
+		 *        last equal event or 0 to disable coalescing
+		 * @return this builder
+		 * @see EventCoalescer
+		 */
+		public Builder coalesceEvents(long quietWindowMillis) {
+			if (quietWindowMillis < 0)
+				throw new IllegalArgumentException("Quiet window must not be negative: " + quietWindowMillis);
+			this.quietWindow = quietWindowMillis;
+			return this;
+		}
+		
+		/**
+		 * Passes the masks of inotify to the listeners. The masks of the 
+		 * listeners are expected to be combinations of the {@code IN_*} 
+		 * constants of {@link INotifyEvent} and the events carry the mask
+		 * read from the kernel, so no mask has to be translated. Paired
+		 * moves have the {@link INotifyEvent#IN_RENAME} bit set additionally.
+		 * Recursive listeners can't be used with raw masks. Disabled by 
+		 * default.
+		 *
+		 * @param enabled
+		 *        true to pass raw kernel masks
+		 * @return this builder
+		 */
+		public Builder rawKernelMasks(boolean enabled) {
+			this.rawMasks = enabled;
+			return this;
+		}
+		
+		/**
+		 * Enables the pairing of moves. A {@code MOVED_FROM} event and the
+		 * {@code MOVED_TO} event with the same cookie are delivered as one
+		 * {@link de.jtdev.jfilenotify.FileRenameEvent} with the 
+		 * {@code RENAMED} bit set. A {@code MOVED_FROM} event waits at most
+		 * the given window for its partner, then it is delivered alone. Up 
+		 * to {@link RenameCorrelator#DEFAULT_CAPACITY} events wait at the
+		 * same time. Disabled by default. The pairing turns off the
+		 * {@link #flyweightEvents(boolean) flyweight mode}.
+		 *
+		 * @param windowMillis
+		 *        the time in milliseconds a {@code MOVED_FROM} event waits
+		 *        or 0 to disable the pairing
+		 * @return this builder
+		 * @see RenameCorrelator
+		 */
+		public Builder pairRenames(long windowMillis) {
+			return pairRenames(windowMillis, RenameCorrelator.DEFAULT_CAPACITY);
+		}
+		
+		/**
+		 * Enables the pairing of moves with the given number of 
+		 * {@code MOVED_FROM} events that can wait at the same time.
+		 *
+		 * @param windowMillis
+		 *        the time in milliseconds a {@code MOVED_FROM} event waits
+		 *        or 0 to disable the pairing
+		 * @param capacity
+		 *        the maximal number of waiting events
+		 * @return this builder
+		 * @see #pairRenames(long)
+		 */
+		public Builder pairRenames(long windowMillis, int capacity) {
+			if (windowMillis < 0)
+				throw new IllegalArgumentException("Window must not be negative: " + windowMillis);
+			if (capacity < 1)
+				throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+			this.renameWindow = windowMillis;
+			this.renameCapacity = capacity;
+			return this;
+		}
+		
+		/**
+		 * Enables the resynchronization after a queue overflow. A snapshot of
+		 * every watched directory is taken in the background after it is
+		 * registered and refreshed if the directory changed. After an
+		 * overflow the directories are read again by the given number of
+		 * threads and the differences are delivered as created, deleted and
+		 * modified events. Disabled by default, the listeners only receive
+		 * the overflow event then.
+		 *
+		 * @param parallelism
+		 *        the number of threads that read the directories or 0 to
+		 *        disable the resynchronization
+		 * @return this builder
+		 * @see OverflowResync
+		 */
+		public Builder resyncOnOverflow(int parallelism) {
+			if (parallelism < 0)
+				throw new IllegalArgumentException("Parallelism must not be negative: " + parallelism);
+			this.resyncParallelism = parallelism;
+			return this;
+		}
+		
+		/**
+		 * Enables or disables the collection of metrics. The metrics are 
+		 * available by {@link INotifyService#getMetrics()}. Disabled by
+		 * default.
+		 *
+		 * @param enabled
+		 *        true to collect metrics
+		 * @return this builder
+		 */
+		public Builder collectMetrics(boolean enabled) {
+			this.collectMetrics = enabled;
+			if (!enabled)
+				this.metricsName = null;
+			return this;
+		}
+		
+		/**
+		 * Collects metrics and registers them with the platform MBean server
+		 * under the given name. They are unregistered when the service is
+		 * disposed.
+		 *
+		 * @param objectName
+		 *        the JMX object name, for example
+		 *        {@code de.jtdev.jfilenotify:type=INotifyService,name=main}
+		 * @return this builder
+		 */
+		public Builder exportMetrics(String objectName) {
+			this.collectMetrics = true;
+			this.metricsName = objectName;
+			return this;
+		}
+		
+		/**
+		 * Sets what happens to a listener that needs a new watch, if the 
+		 * kernel refuses to add more watches, because the user reached
+		 * {@link INotifyLimits#getMaxUserWatches()}. Defaults to
+		 * {@link AdmissionPolicy#REJECT}.
+		 *
+		 * @param policy
+		 *        the policy
+		 * @return this builder
+		 */
+		public Builder admission(AdmissionPolicy policy) {
+			return admission(policy, 0);
+		}
+		
+		/**
+		 * Sets what happens to a listener that needs a new watch, if the 
+		 * service has the given number of watches or the kernel refuses to
+		 * add more watches. A limit per service keeps some watches free for
+		 * other services and applications of the user.
+		 *
+		 * @param policy
+		 *        the policy
+		 * @param watchLimit
+		 *        the maximal number of watches of the service or 0 if only
+		 *        the limit of the kernel applies
+		 * @return this builder
+		 */
+		public Builder admission(AdmissionPolicy policy, int watchLimit) {
+			if (policy == null)
+				throw new NullPointerException("policy");
+			if (watchLimit < 0)
+				throw new IllegalArgumentException("Watch limit must not be negative: " + watchLimit);
+			this.admissionPolicy = policy;
+			this.watchLimit = watchLimit;
+			return this;
+		}
+		
+		/**
+		 * Sets the time between two polls of the listeners that are polled
+		 * with {@link AdmissionPolicy#POLL}. Defaults to
+		 * {@link PollingService#DEFAULT_INTERVAL}.
+		 *
+		 * @param intervalMillis
+		 *        the time in milliseconds
+		 * @return this builder
+		 */
+		public Builder pollingInterval(long intervalMillis) {
+			if (intervalMillis <= 0)
+				throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+			this.pollingInterval = intervalMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets the reactor that reads the events of the service. If set, the
+		 * service uses the thread of the reactor instead of an own thread.
+		 * By default the service uses an own thread.
+		 *
+		 * @param reactor
+		 *        the reactor or {@code null} to use an own thread
+		 * @return this builder
+		 */
+		public Builder reactor(INotifyReactor reactor) {
+			this.reactor = reactor;
+			return this;
+		}
+		
+		/**
+		 * Sets the executor that calls the listeners. The reading thread only
+		 * decodes the events and passes them to the mailbox of each 
+		 * listener, so a slow listener doesn't delay the reading of events.
+		 * Every listener still receives its events in order and one after
+		 * the other. By default the reading thread calls the listeners.
+		 *
+		 * @param executor
+		 *        the executor or {@code null} to call the listeners by the
+		 *        reading thread
+		 * @return this builder
+		 */
+		public Builder executor(Executor executor) {
+			this.executor = executor;
+			this.ownedExecutor = null;
+			return this;
+		}
+		
+		/**
+		 * Lets the listeners be called by an executor that starts a new 
+		 * virtual thread for each task. If the runtime doesn't support 
+		 * virtual threads, a pool of daemon threads is used instead. The 
+		 * executor is shut down when the service is disposed.
+		 *
+		 * @return this builder
+		 * @see #executor(Executor)
+		 */
+		public Builder virtualThreadExecutor() {
+			ExecutorService e;
+			try {
+				e = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception ex) {
+				e = Executors.newCachedThreadPool(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r);
+						t.setDaemon(true);
+						return t;
+					}
+				});
 			}
-			index += length;
-			
-			INotifyEvent event = new INotifyEvent(watchDescriptor, cookie, mask, fileName);
-			list.add(event);
+			this.executor = e;
+			this.ownedExecutor = e;
+			return this;
 		}
 		
-		return list;
-	}
+		/**
+		 * Returns true if the options can be used to build more than one 
+		 * service. An executor created by the builder and exported metrics
+		 * belong to a single service.
+		 */
+		boolean isReusable() {
+			return ownedExecutor == null && metricsName == null;
+		}
+		
+		/**
+		 * Creates a new service with the options of this builder and starts
+		 * its thread or registers it with the reactor.
+		 *
+		 * @return the new service
+		 * @throws FileNotifyException
+		 *         if no inotify instance could be allocated.
+		 */
+		public INotifyService build() throws FileNotifyException {
+			INotifyService service = new INotifyService(this);
+			if (metricsName != null) {
+				try {
+					service.metrics.register(metricsName);
+				} catch (FileNotifyException ex) {
+					service.dispose();
+					throw ex;
+				}
+			}
+			return service;
+		}
 		
-	private int readUnsignedIntReversedOrder(byte[] b, int pos) {
-		return 
-				b[pos]   <<  0 | 
-				b[pos+1] <<  8 | 
-				b[pos+2] << 16 | 
-				b[pos+3] << 24;
-	}
-	
-	private long readUnsignedLongReversedOrder(byte[] b, int pos) {
-		return 
-				(long) b[pos]   <<  0 |
-				(long) b[pos+1] <<  8 | 
-				(long) b[pos+2] << 16 |
-				(long) b[pos+3] << 24 | 
-				(long) b[pos+4] << 32 | 
-				(long) b[pos+5] << 40 | 
-				(long) b[pos+6] << 48 |
-				(long) b[pos+7] << 54;
-	}
-	
-	private int strlen(byte[] b, int from, int len) {
-		int i = from;
-		int end = from + len;
-		while (b[i] != 0 && i < end)
-			i++;
-		return i - from;
 	}
 	
 	/**
-	 * Creates a native inotify instance and returns its file descriptor.
-	 * If an error occurs, this method returns a negative value which is the 
-	 * negative errno number.
+	 * Creates a non blocking native inotify instance and returns its file
+	 * descriptor. If an error occurs, this method returns a negative value
+	 * which is the negative errno number.
 	 * @return the file descriptor or a negative errno number if it
 	 *         fails
 	 */
@@ -426,15 +1723,33 @@ public class INotifyService extends Thread implements FileNotifyService {
 	 *
 	 * @param fileDescriptor
 	 *        the descriptor used to access the inotify instance
-	 * @param fileName
-	 *        the name of the file to watch for
+	 * @param path
+	 *        the UTF-8 encoded name of the file to watch for, terminated by
+	 *        '\0'
 	 * @param mask
 	 *        the mask decides which types of events will trigger the
 	 *        watch
 	 * @return the watch descriptor or a negative errno number if it
 	 *         fails
 	 */
-	private native long addWatch(long fileDescriptor, String fileName, int mask);
+	private native long addWatch(long fileDescriptor, byte[] path, int mask);
+	
+	/**
+	 * Adds many watches to the inotify instance with a single call.
+	 *
+	 * @param fileDescriptor
+	 *        the descriptor used to access the inotify instance
+	 * @param paths
+	 *        the UTF-8 encoded file names, each terminated by '\0'
+	 * @param masks
+	 *        the mask of each file
+	 * @param results
+	 *        receives the watch descriptor of each file or a negative errno
+	 *        number if it could not be watched
+	 * @return the number of files or a negative errno number if the
+	 *         arguments are invalid
+	 */
+	private native int addWatches(long fileDescriptor, byte[] paths, int[] masks, long[] results);
 	
 	/**
 	 * Removes a watch from the inotify instance by passing the
@@ -449,7 +1764,37 @@ public class INotifyService extends Thread implements FileNotifyService {
 	 */
 	private native long removeWatch(long fileDescriptor, long watchDescriptor);
 	
-	private native byte[] readEventData(long fileDescriptor);
+	/**
+	 * Reads the pending events of the inotify instance into the given direct
+	 * buffer. The events are written to the start of the buffer, the position
+	 * and limit of the buffer are not changed. It reads until the queue of 
+	 * the inotify instance is drained or the buffer is full. This call does
+	 * not block, if no events are available it returns 0.
+	 *
+	 * @param fileDescriptor
+	 *        the file descriptor used to access the inotify instance
+	 * @param buffer
+	 *        the direct buffer that receives the raw event data
+	 * @return the number of bytes read or a negative errno number if it 
+	 *         fails
+	 */
+	private native int readEventBuffer(long fileDescriptor, ByteBuffer buffer);
+	
+	/**
+	 * Waits until the inotify instance has events to read or the wakeup 
+	 * descriptor is readable. A negative inotify file descriptor is ignored.
+	 * An interrupted wait returns 0.
+	 *
+	 * @param fileDescriptor
+	 *        the file descriptor used to access the inotify instance
+	 * @param wakeupDescriptor
+	 *        the eventfd that is used to wake up the thread
+	 * @param timeout
+	 *        the maximal time to wait in milliseconds or -1 to wait forever
+	 * @return a combination of {@link #EVENTS_READY} and 
+	 *         {@link #WAKEUP_READY} or a negative errno number if it fails
+	 */
+	private native int waitForEvents(long fileDescriptor, long wakeupDescriptor, int timeout);
 	
 	private native int getIntegerSize();
 
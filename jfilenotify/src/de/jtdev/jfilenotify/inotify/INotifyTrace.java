@@ -0,0 +1,203 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the recent raw events, watch operations and reads of all
+ * {@link INotifyService} instances in a ring buffer, which can be dumped on
+ * demand. The oldest records are overwritten.
+ *
+ * <p>Tracing is enabled with the system property {@code jfilenotify.trace}
+ * and the size of the ring with {@code jfilenotify.trace.size} (4096 records
+ * by default). Every call of this class is guarded by {@link #ENABLED}. It is
+ * a constant, so if tracing is disabled the JIT removes the calls
+ * completely.</p>
+ *
+ * <p>The native library prints its own debug output to stderr, if it was
+ * built with {@code inotify.debug=true} and the environment variable
+ * {@code JFILENOTIFY_DEBUG} is set.</p>
+ */
+public final class INotifyTrace {
+
+	/**
+	 * True if tracing is enabled.
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("jfilenotify.trace");
+
+	private static final int CAPACITY = capacity(Integer.getInteger("jfilenotify.trace.size", 4096).intValue());
+
+	private static final AtomicReferenceArray<Record> RECORDS = new AtomicReferenceArray<Record>(ENABLED ? CAPACITY : 0);
+
+	/**
+	 * The number of records written so far.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private INotifyTrace() {
+	}
+
+	private static int capacity(int size) {
+		int c = 1;
+		while (c < size && c < (1 << 24))
+			c <<= 1;
+		return c;
+	}
+
+	/**
+	 * Records a raw event as it was read.
+	 *
+	 * @param fileDescriptor
+	 *        the inotify instance the event was read from
+	 * @param event
+	 *        the event
+	 */
+	static void event(long fileDescriptor, INotifyEvent event) {
+		add(new Record("event", fileDescriptor, event.getWatchDescriptor(), event.getChangeMask(),
+				event.getCookie(), event.getChangedFileName(), 0));
+	}
+
+	/**
+	 * Records a watch that was added or updated.
+	 *
+	 * @param fileDescriptor
+	 *        the inotify instance
+	 * @param fileName
+	 *        the watched file
+	 * @param mask
+	 *        the inotify mask of the watch
+	 * @param result
+	 *        the watch descriptor or the negative errno number
+	 */
+	static void watchAdded(long fileDescriptor, String fileName, int mask, long result) {
+		add(new Record("add_watch", fileDescriptor, result, mask, 0, fileName, 0));
+	}
+
+	/**
+	 * Records a watch that was removed.
+	 *
+	 * @param fileDescriptor
+	 *        the inotify instance
+	 * @param watchDescriptor
+	 *        the removed watch
+	 * @param result
+	 *        0 or the negative errno number
+	 */
+	static void watchRemoved(long fileDescriptor, long watchDescriptor, long result) {
+		add(new Record("rm_watch", fileDescriptor, watchDescriptor, 0, 0, null, result));
+	}
+
+	/**
+	 * Records a read of the events of an inotify instance.
+	 *
+	 * @param fileDescriptor
+	 *        the inotify instance
+	 * @param bytes
+	 *        the number of bytes read or the negative errno number
+	 * @param nanos
+	 *        the time of the read in nanoseconds
+	 */
+	static void read(long fileDescriptor, int bytes, long nanos) {
+		add(new Record("read", fileDescriptor, 0, 0, 0, null, bytes, nanos));
+	}
+
+	private static void add(Record record) {
+		long seq = SEQUENCE.getAndIncrement();
+		RECORDS.set((int) (seq & (CAPACITY - 1)), record);
+	}
+
+	/**
+	 * Returns the recorded entries, the oldest first. Records that are
+	 * written concurrently may be missing.
+	 *
+	 * @return the records as text, empty if tracing is disabled
+	 */
+	public static String[] snapshot() {
+		if (!ENABLED)
+			return new String[0];
+		long end = SEQUENCE.get();
+		long start = Math.max(0, end - CAPACITY);
+		List<String> lines = new ArrayList<String>();
+		for (long seq = start; seq < end; seq++) {
+			Record r = RECORDS.get((int) (seq & (CAPACITY - 1)));
+			if (r != null)
+				lines.add(r.toString());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Prints the recorded entries, the oldest first.
+	 *
+	 * @param out
+	 *        the stream to print to
+	 */
+	public static void dump(PrintStream out) {
+		String[] lines = snapshot();
+		for (int i = 0; i < lines.length; i++)
+			out.println(lines[i]);
+	}
+
+	/**
+	 * Removes all records.
+	 */
+	public static void clear() {
+		for (int i = 0; i < RECORDS.length(); i++)
+			RECORDS.set(i, null);
+	}
+
+	/**
+	 * A single immutable entry of the trace.
+	 */
+	private static class Record {
+
+		private final long time = System.nanoTime();
+		private final String kind;
+		private final long fileDescriptor;
+		private final long watchDescriptor;
+		private final int mask;
+		private final int cookie;
+		private final String fileName;
+		private final long value;
+		private final long nanos;
+
+		Record(String kind, long fileDescriptor, long watchDescriptor, int mask, int cookie, String fileName, long value) {
+			this(kind, fileDescriptor, watchDescriptor, mask, cookie, fileName, value, 0);
+		}
+
+		Record(String kind, long fileDescriptor, long watchDescriptor, int mask, int cookie, String fileName, long value, long nanos) {
+			this.kind = kind;
+			this.fileDescriptor = fileDescriptor;
+			this.watchDescriptor = watchDescriptor;
+			this.mask = mask;
+			this.cookie = cookie;
+			this.fileName = fileName;
+			this.value = value;
+			this.nanos = nanos;
+		}
+
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append(time).append(' ').append(kind).append(" fd=").append(fileDescriptor);
+			if ("read".equals(kind)) {
+				b.append(" bytes=").append(value).append(" nanos=").append(nanos);
+				return b.toString();
+			}
+			b.append(" wd=").append(watchDescriptor);
+			if (mask != 0)
+				b.append(" mask=0x").append(Integer.toHexString(mask));
+			if (cookie != 0)
+				b.append(" cookie=").append(cookie);
+			if (fileName != null)
+				b.append(" name=").append(fileName);
+			if ("rm_watch".equals(kind))
+				b.append(" result=").append(value);
+			return b.toString();
+		}
+
+	}
+
+}
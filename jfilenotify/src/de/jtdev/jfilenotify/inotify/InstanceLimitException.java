@@ -0,0 +1,23 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * Signals that no inotify instance could be created, because the user reached
+ * {@code /proc/sys/fs/inotify/max_user_instances} or the process can't open
+ * more files.
+ */
+public class InstanceLimitException extends ErrnoException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructs an {@code InstanceLimitException} with the specified detail
+	 * message.
+	 *
+	 * @param message
+	 *        the detail message
+	 */
+	public InstanceLimitException(String message) {
+		super(message, ErrnoMessages.EMFILE);
+	}
+
+}
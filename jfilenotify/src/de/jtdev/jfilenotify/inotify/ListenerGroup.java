@@ -2,24 +2,94 @@ package de.jtdev.jfilenotify.inotify;
 
 import de.jtdev.jfilenotify.FileNotifyConstants;
 import de.jtdev.jfilenotify.FileNotifyListener;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Since inotify only allows one listener per inode, this group is used to 
  * store listeners that returned the same watch descriptor while added.
  * 
  * This class also provides a mechanism to inform only that listeners that have 
- * been registerd for a particular event type.
+ * been registerd for a particular event type. Every listener receives its 
+ * events through an own {@link ListenerMailbox}.
+ * 
+ * The mailboxes and the masks of the listeners are stored in arrays that are
+ * replaced on every modification, so events are dispatched without locking
+ * and adding or removing a listener never waits for a listener to return.
+ * For every mask bit the indices of the listeners that registered for it are
+ * stored as well, so an event with a single bit only touches the listeners
+ * that are interested in it.
  * 
  * @author Tobias Oelgarte
  */
-public class ListenerGroup implements Comparable<ListenerGroup> {
+public class ListenerGroup {
+	
+	/**
+	 * The mailboxes of the listeners and their masks at the same index.
+	 */
+	private static final class Listeners {
+		final ListenerMailbox[] mailboxes;
+		final int[] masks;
+		
+		/**
+		 * The indices of the listeners whose mask contains the bit or 
+		 * {@code null} if the group is too small to need them.
+		 */
+		final int[][] buckets;
+		
+		/**
+		 * The bits that at least one listener registered for.
+		 */
+		final int unionMask;
+		
+		Listeners(ListenerMailbox[] mailboxes, int[] masks) {
+			this.mailboxes = mailboxes;
+			this.masks = masks;
+			int union = 0;
+			int[] counts = new int[32];
+			for (int mask : masks) {
+				union |= mask;
+				for (int m = mask; m != 0; m &= m - 1)
+					counts[Integer.numberOfTrailingZeros(m)]++;
+			}
+			this.unionMask = union;
+			
+			if (masks.length < MIN_BUCKET_LISTENERS) {
+				buckets = null;
+				return;
+			}
+			buckets = new int[32][];
+			for (int bit = 0; bit < 32; bit++)
+				buckets[bit] = counts[bit] == 0 ? NO_INDICES : new int[counts[bit]];
+			for (int i = 0; i < masks.length; i++) {
+				for (int m = masks[i]; m != 0; m &= m - 1) {
+					int bit = Integer.numberOfTrailingZeros(m);
+					buckets[bit][buckets[bit].length - counts[bit]--] = i;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Groups with less listeners are dispatched by testing the mask of every
+	 * listener, which is faster than the lookup of a bucket for them.
+	 */
+	private static final int MIN_BUCKET_LISTENERS = 8;
+	
+	private static final int[] NO_INDICES = new int[0];
+	
+	private static final Listeners NO_LISTENERS = new Listeners(new ListenerMailbox[0], new int[0]);
 	
 	private long watchDescriptor;
-	private LinkedList<FileNotifyListener> listenerList = new LinkedList<FileNotifyListener>();
-	private int combinedMask = 0x00000000;
-	private String lastFileName = null;
+	private Executor executor;
+	private boolean rawMasks;
+	private volatile Listeners listeners = NO_LISTENERS;
+	private final Object writeLock = new Object();
+	private volatile int combinedMask = 0x00000000;
+	private volatile String lastFileName = null;
+	private volatile DirectorySnapshot snapshot = null;
+	private volatile boolean snapshotStale = false;
+	private volatile boolean resyncPending = false;
+	private volatile long lastActive = 0;
 	
 	/**
 	 * Creates a new ListenerGroup with its unique watch descriptor.
@@ -28,7 +98,40 @@ public class ListenerGroup implements Comparable<ListenerGroup> {
 	 *        the unique watch descriptor of this group
 	 */
 	public ListenerGroup(long watchDescriptor) {
+		this(watchDescriptor, null);
+	}
+	
+	/**
+	 * Creates a new ListenerGroup with its unique watch descriptor, whose 
+	 * listeners are called by the given executor.
+	 * 
+	 * @param watchDescriptor
+	 *        the unique watch descriptor of this group
+	 * @param executor
+	 *        the executor that calls the listeners or {@code null} to call 
+	 *        them directly
+	 */
+	public ListenerGroup(long watchDescriptor, Executor executor) {
+		this(watchDescriptor, executor, false);
+	}
+	
+	/**
+	 * Creates a new ListenerGroup with its unique watch descriptor, whose 
+	 * listeners are called by the given executor.
+	 * 
+	 * @param watchDescriptor
+	 *        the unique watch descriptor of this group
+	 * @param executor
+	 *        the executor that calls the listeners or {@code null} to call 
+	 *        them directly
+	 * @param rawMasks
+	 *        true if the listeners use the masks of inotify, false if they
+	 *        use the constants of {@link FileNotifyConstants}
+	 */
+	public ListenerGroup(long watchDescriptor, Executor executor, boolean rawMasks) {
 		this.watchDescriptor = watchDescriptor;
+		this.executor = executor;
+		this.rawMasks = rawMasks;
 	}
 	
 	/**
@@ -58,6 +161,84 @@ public class ListenerGroup implements Comparable<ListenerGroup> {
 		return lastFileName;
 	}
 	
+	/**
+	 * Returns the last snapshot of the watched directory.
+	 * 
+	 * @return the snapshot or {@code null} if none was taken
+	 */
+	public DirectorySnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Sets the last snapshot of the watched directory.
+	 * 
+	 * @param snapshot
+	 *        the snapshot
+	 */
+	public void setSnapshot(DirectorySnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+	
+	/**
+	 * Returns true if the group received events since its snapshot was
+	 * taken.
+	 * 
+	 * @return true if the snapshot should be refreshed
+	 */
+	public boolean isSnapshotStale() {
+		return snapshotStale;
+	}
+	
+	/**
+	 * Marks the snapshot of the watched directory as stale or up to date.
+	 * 
+	 * @param stale
+	 *        true if the group received events since the snapshot was taken
+	 */
+	public void setSnapshotStale(boolean stale) {
+		this.snapshotStale = stale;
+	}
+	
+	/**
+	 * Returns true if events of the group were lost and the directory has
+	 * not been resynchronized yet. Its snapshot must not be refreshed then.
+	 * 
+	 * @return true if a resynchronization is pending
+	 */
+	public boolean isResyncPending() {
+		return resyncPending;
+	}
+	
+	/**
+	 * Marks the group as waiting for its resynchronization.
+	 * 
+	 * @param pending
+	 *        true if events of the group were lost
+	 */
+	public void setResyncPending(boolean pending) {
+		this.resyncPending = pending;
+	}
+	
+	/**
+	 * Returns the time this group last received an event.
+	 * 
+	 * @return the time in nanoseconds, see {@link System#nanoTime()}
+	 */
+	public long getLastActive() {
+		return lastActive;
+	}
+	
+	/**
+	 * Sets the time this group last received an event.
+	 * 
+	 * @param nanos
+	 *        the time in nanoseconds, see {@link System#nanoTime()}
+	 */
+	public void setLastActive(long nanos) {
+		this.lastActive = nanos;
+	}
+	
 	/**
 	 * Adds the listener to this group and updates the most common mask for 
 	 * inotify.
@@ -66,29 +247,60 @@ public class ListenerGroup implements Comparable<ListenerGroup> {
 	 *        the listener that will be added to this group
 	 */
 	public void addListener(FileNotifyListener listener) {
-		synchronized (listenerList) {
+		synchronized (writeLock) {
 			// make sure that the same listener can only be once registered
-			if (!listenerList.contains(listener))
-				listenerList.add(listener);
-		
+			if (indexOf(listener) < 0) {
+				Listeners old = listeners;
+				int n = old.mailboxes.length;
+				ListenerMailbox[] mailboxes = new ListenerMailbox[n + 1];
+				int[] masks = new int[n + 1];
+				System.arraycopy(old.mailboxes, 0, mailboxes, 0, n);
+				System.arraycopy(old.masks, 0, masks, 0, n);
+				// the directories of a tree pass their events to the mailbox
+				// of the tree listener, they are called directly
+				Executor e = listener instanceof RecursiveWatch.DirectoryListener ? null : executor;
+				mailboxes[n] = new ListenerMailbox(listener, e);
+				masks[n] = dispatchMask(listener);
+				listeners = new Listeners(mailboxes, masks);
+			}
+			
 			// TODO Option ONLY_DIRECTORY must be cleared if only one listener is 
 			// listening in not only directory mode.
-			updateCombinedMask(listener.getMask());
+			combinedMask = updateCombinedMask(combinedMask, listener.getMask());
 			lastFileName = listener.getFileName();
 		}
 	}
 	
 	/**
-	 * This method updates the combined mask of all listeners in the right way.
+	 * Returns the mask of the events that are passed to the listener. 
+	 * Unmounted and overflowed are special types that can occur anytime.
+	 * Note: the informal parts will not trigger the listener, because they
+	 * are not definied inside the listener mask.
+	 */
+	private int dispatchMask(FileNotifyListener listener) {
+		if (rawMasks)
+			return listener.getMask() | INotifyEvent.IN_UNMOUNT | INotifyEvent.IN_Q_OVERFLOW;
+		return listener.getMask() | FileNotifyConstants.UNMOUNTED | FileNotifyConstants.OVERFLOWED;
+	}
+	
+	/**
+	 * This method updates the combined inotify mask of all listeners in the
+	 * right way.
 	 * 
+	 * @param mask
+	 *        the combined mask so far
 	 * @param addedMask
 	 *        the mask of the newly added listener
+	 * @return the updated combined mask
 	 */
-	private void updateCombinedMask(int addedMask) {
+	private int updateCombinedMask(int mask, int addedMask) {
+		if (!rawMasks)
+			addedMask = MaskTranslator.importMask(addedMask);
 		// enabels a event if it is allready enabled or added
-		combinedMask |= addedMask & INotifyEvent.IN_EVENT_MASK;
+		mask |= addedMask & INotifyEvent.IN_EVENT_MASK;
 		// disables a restricting option, if the added mask dont restrict it.
-		combinedMask &= addedMask | (~INotifyEvent.IN_OPTION_MASK);
+		mask &= addedMask | (~INotifyEvent.IN_OPTION_MASK);
+		return mask;
 	}
 	
 	/**
@@ -100,13 +312,39 @@ public class ListenerGroup implements Comparable<ListenerGroup> {
 	 * @return true if the listener could be removed, false otherwise
 	 */
 	public boolean removeListener(FileNotifyListener listener) {
-		synchronized (listenerList) {
-			boolean removed = listenerList.remove(listener);
-			if (removed) {
-				recomputeCombinedMask();
-			}
-			return removed;
+		synchronized (writeLock) {
+			int index = indexOf(listener);
+			if (index < 0)
+				return false;
+			Listeners old = listeners;
+			int n = old.mailboxes.length - 1;
+			ListenerMailbox[] mailboxes = new ListenerMailbox[n];
+			int[] masks = new int[n];
+			System.arraycopy(old.mailboxes, 0, mailboxes, 0, index);
+			System.arraycopy(old.mailboxes, index + 1, mailboxes, index, n - index);
+			System.arraycopy(old.masks, 0, masks, 0, index);
+			System.arraycopy(old.masks, index + 1, masks, index, n - index);
+			listeners = n == 0 ? NO_LISTENERS : new Listeners(mailboxes, masks);
+			recomputeCombinedMask();
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns the index of the listener.
+	 * 
+	 * @param listener
+	 *        the listener to search for
+	 * @return the index of the listener or -1 if the listener is not part of
+	 *         this group
+	 */
+	private int indexOf(FileNotifyListener listener) {
+		ListenerMailbox[] mailboxes = listeners.mailboxes;
+		for (int i = 0; i < mailboxes.length; i++) {
+			if (mailboxes[i].getListener() == listener)
+				return i;
 		}
+		return -1;
 	}
 	
 	/**
@@ -115,63 +353,102 @@ public class ListenerGroup implements Comparable<ListenerGroup> {
 	 * @return true is this group is empty
 	 */
 	public boolean isEmpty() {
-		return listenerList.isEmpty();
+		return listeners.mailboxes.length == 0;
+	}
+	
+	/**
+	 * Returns the number of events that were dropped or coalesced because the
+	 * queue of the listener was full.
+	 * 
+	 * @param listener
+	 *        the listener
+	 * @return the number of dropped events or -1 if the listener is not part
+	 *         of this group
+	 */
+	public long getDroppedEventCount(FileNotifyListener listener) {
+		ListenerMailbox[] mailboxes = listeners.mailboxes;
+		for (int i = 0; i < mailboxes.length; i++) {
+			if (mailboxes[i].getListener() == listener)
+				return mailboxes[i].getDroppedEventCount();
+		}
+		return -1;
 	}
 	
 	/**
-	 * This method computes the combined mask of all listeners in the 
-	 * listenerList. This is more time intensive as updateCombinedMask().
+	 * Returns the number of events that were dropped or coalesced for all 
+	 * listeners of this group.
 	 * 
-	 * @param listenerList
-	 *        the list that contains all remaining listener
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+		long count = 0;
+		for (ListenerMailbox m : listeners.mailboxes)
+			count += m.getDroppedEventCount();
+		return count;
+	}
+	
+	/**
+	 * This method computes the combined mask of all listeners. This is more
+	 * time intensive as updateCombinedMask(). Must be called while the 
+	 * listeners are locked.
 	 */
 	private void recomputeCombinedMask() {
-		combinedMask = 0x00000000;
-		for (FileNotifyListener f : listenerList) {
-			updateCombinedMask(f.getMask());
+		int mask = 0x00000000;
+		for (ListenerMailbox m : listeners.mailboxes) {
+			mask = updateCombinedMask(mask, m.getListener().getMask());
 		}
+		combinedMask = mask;
+	}
+	
+	/**
+	 * Closes the mailboxes of all listeners, so that a reading thread that
+	 * waits for room in a full queue returns.
+	 */
+	public void closeMailboxes() {
+		for (ListenerMailbox m : listeners.mailboxes)
+			m.close();
 	}
 	
 	public void discardAllListeners(INotifyEvent event) {
-		int externalMask = INotifyService.exportMask(event.getChangeMask());
-		event.setChangeMask(externalMask);
+		if (!rawMasks)
+			event.setChangeMask(MaskTranslator.exportMask(event.getChangeMask()));
 		
-		for (FileNotifyListener l : listenerList) {
-			l.discarded(event);
+		Listeners discarded;
+		synchronized (writeLock) {
+			discarded = listeners;
+			listeners = NO_LISTENERS;
+			combinedMask = 0x00000000;
+		}
+		for (ListenerMailbox m : discarded.mailboxes) {
+			m.discard(event);
 		}
-		
-		listenerList.clear();
 	}
 	
 	public void notifyAllListener(INotifyEvent evt) {
-		int externalMask = INotifyService.exportMask(evt.getChangeMask());
-		evt.setChangeMask(externalMask);
-		synchronized (listenerList) {
-			for (FileNotifyListener l : listenerList) {
-				int listenerMask = l.getMask() | FileNotifyConstants.UNMOUNTED;
-				// only inform listeners that have registered for this type of event
-				// unmounted is a special type that can occur anytime.
-				// Note: the informal parts will not trigger the listener, 
-				// because they are not definied inside the listenerMask.
-				if ((listenerMask & externalMask) != 0x00000000) {
-					l.notificationRecieved(evt);
+		int externalMask = evt.getChangeMask();
+		if (!rawMasks) {
+			externalMask = MaskTranslator.exportMask(externalMask);
+			evt.setChangeMask(externalMask);
+		}
+		// only inform listeners that have registered for this type of event
+		Listeners l = listeners;
+		int relevant = externalMask & l.unionMask;
+		if (relevant == 0x00000000)
+			return;
+		if (l.buckets != null && (relevant & (relevant - 1)) == 0) { // a single bit
+			for (int i : l.buckets[Integer.numberOfTrailingZeros(relevant)]) {
+				l.mailboxes[i].deliver(evt);
+			}
+		} else {
+			int[] masks = l.masks;
+			for (int i = 0; i < masks.length; i++) {
+				if ((masks[i] & externalMask) != 0x00000000) {
+					l.mailboxes[i].deliver(evt);
 				}
 			}
 		}
 	}
 
-	/**
-	 * Compares to groups by the number of their watch descriptor.
-	 * 
-	 * @param g
-	 *        the group to compare with
-	 * @return the arithmetic diffrence between the  watch descriptors
-	 */
-    public int compareTo(ListenerGroup g) {
-		long diff = this.getWatchDescriptor() - g.getWatchDescriptor();
-		return (diff > 0) ? 1 : ((diff == 0) ? 0 : -1);
-    }
-	
 	public boolean equals(Object obj) {
 		return obj instanceof ListenerGroup ? ((ListenerGroup)obj).getWatchDescriptor() == this.getWatchDescriptor() : false;
 	}
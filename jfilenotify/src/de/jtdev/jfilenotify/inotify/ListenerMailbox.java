@@ -0,0 +1,276 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.QueuePolicy;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A mailbox delivers the events of a single listener. Without an executor the
+ * listener is called directly by the thread that delivers the event. With an
+ * executor the events are queued and the listener is called by a task of the
+ * executor. At most one task per mailbox is running at the same time, so the
+ * listener receives its events in the order they were read and never
+ * concurrently.
+ *
+ * <p>If the listener declares a bounded queue, its {@link QueuePolicy}
+ * decides what happens to events that don't fit into the queue. The number
+ * of dropped or coalesced events is counted.</p>
+ */
+public class ListenerMailbox implements Runnable {
+
+	/**
+	 * The maximal number of events a task delivers before it resubmits itself
+	 * to the executor, so that a busy listener doesn't block a thread of the
+	 * executor forever.
+	 */
+	private static final int MAX_EVENTS_PER_TASK = 64;
+
+	/**
+	 * The time in milliseconds a blocked reading thread waits before it checks
+	 * again whether a task of the executor drains the queue.
+	 */
+	private static final long BLOCK_TIMEOUT = 100;
+
+	private static final Logger LOG = Logger.getLogger(ListenerMailbox.class.getName());
+
+	private final FileNotifyListener listener;
+	private final Executor executor;
+	private final int capacity;
+	private final QueuePolicy policy;
+	private final LinkedList<INotifyEvent> queue = new LinkedList<INotifyEvent>();
+	private FileNotifyEvent discardEvent = null;
+	private boolean isScheduled = false;
+	private boolean isClosed = false;
+	private volatile long droppedEvents = 0;
+
+	/**
+	 * Creates a new mailbox for the listener.
+	 *
+	 * @param listener
+	 *        the listener that receives the events
+	 * @param executor
+	 *        the executor that calls the listener or {@code null} to call it
+	 *        directly
+	 */
+	public ListenerMailbox(FileNotifyListener listener, Executor executor) {
+		this.listener = listener;
+		this.executor = executor;
+		this.capacity = listener.getQueueCapacity();
+		this.policy = listener.getQueuePolicy();
+	}
+
+	/**
+	 * Returns the listener of this mailbox.
+	 *
+	 * @return the listener
+	 */
+	public FileNotifyListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Returns the number of events that were dropped or coalesced because the
+	 * queue of the listener was full.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+		return droppedEvents;
+	}
+
+	/**
+	 * Delivers the event to the listener by calling its
+	 * {@link FileNotifyListener#notificationRecieved(FileNotifyEvent)}
+	 * method.
+	 *
+	 * @param event
+	 *        the event to deliver. If an executor is used, the event must not
+	 *        be changed afterwards.
+	 */
+	public void deliver(INotifyEvent event) {
+		if (executor == null) {
+			listener.notificationRecieved(event);
+			return;
+		}
+		synchronized (queue) {
+			if (capacity > 0 && queue.size() >= capacity) {
+				if (!makeRoom(event))
+					return;
+			}
+			queue.add(event);
+			if (isScheduled)
+				return;
+			isScheduled = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * Applies the policy of the listener to a full queue. Must be called
+	 * while the queue is locked.
+	 *
+	 * @param event
+	 *        the new event
+	 * @return true if the new event has to be added to the queue, false if
+	 *         it was dropped or merged into a queued event
+	 */
+	private boolean makeRoom(INotifyEvent event) {
+		switch (policy) {
+			case BLOCK:
+				boolean interrupted = false;
+				while (queue.size() >= capacity) {
+					if (isClosed) {
+						// the service is disposed, don't wait for the listener
+						droppedEvents++;
+						return false;
+					}
+					if (!isScheduled) {
+						// the executor rejected the last task, nobody drains the
+						// queue. The event is queued as with DROP_OLDEST and the
+						// caller schedules the mailbox again.
+						return dropOldest();
+					}
+					try {
+						queue.wait(BLOCK_TIMEOUT);
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+				return true;
+			case DROP_NEWEST:
+				droppedEvents++;
+				return false;
+			case COALESCE:
+				String name = event.getChangedFileName();
+				ListIterator<INotifyEvent> iter = queue.listIterator(queue.size());
+				while (!(event instanceof INotifyRenameEvent) && iter.hasPrevious()) {
+					INotifyEvent e = iter.previous();
+					String n = e.getChangedFileName();
+					// a rename carries two names, it can't absorb other events
+					if (e instanceof INotifyRenameEvent)
+						continue;
+					if (n == null ? name == null : n.equals(name)) {
+						iter.set(new INotifyEvent(e.getWatchDescriptor(), e.getCookie(),
+								e.getChangeMask() | event.getChangeMask(), n));
+						droppedEvents++;
+						return false;
+					}
+				}
+				// no event for the same file is queued, drop the oldest one
+				return dropOldest();
+			case DROP_OLDEST:
+			default:
+				return dropOldest();
+		}
+	}
+
+	/**
+	 * Drops the oldest queued event to make room for a new one. Must be
+	 * called while the queue is locked.
+	 *
+	 * @return always true, the new event has to be added to the queue
+	 */
+	private boolean dropOldest() {
+		queue.removeFirst();
+		droppedEvents++;
+		return true;
+	}
+
+	/**
+	 * Closes this mailbox. A reading thread that waits for room in a full
+	 * queue returns and further events that don't fit into the queue are
+	 * dropped. Events that are already queued are still delivered.
+	 */
+	public void close() {
+		synchronized (queue) {
+			isClosed = true;
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Delivers the event to the listener by calling its
+	 * {@link FileNotifyListener#discarded(FileNotifyEvent)} method. The
+	 * listener receives it after all events that were delivered before.
+	 *
+	 * @param event
+	 *        the event that caused the listener to be discarded
+	 */
+	public void discard(FileNotifyEvent event) {
+		if (executor == null) {
+			listener.discarded(event);
+			return;
+		}
+		synchronized (queue) {
+			discardEvent = event;
+			if (isScheduled)
+				return;
+			isScheduled = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * Submits this mailbox to the executor. If the executor rejects it, the
+	 * queued events stay in the mailbox until the next event is delivered.
+	 * A reading thread that waits for room is woken up, so that it stops
+	 * waiting for a task that will never run.
+	 */
+	private void schedule() {
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException ex) {
+			synchronized (queue) {
+				isScheduled = false;
+				queue.notifyAll();
+			}
+			LOG.log(Level.WARNING, "Events of a listener could not be scheduled", ex);
+		}
+	}
+
+	/**
+	 * Calls the listener for the queued events. This method is run by the
+	 * executor.
+	 */
+	public void run() {
+		for (int i = 0; i < MAX_EVENTS_PER_TASK; i++) {
+			FileNotifyEvent event;
+			boolean isDiscard = false;
+			synchronized (queue) {
+				event = queue.poll();
+				if (event != null && capacity > 0 && policy == QueuePolicy.BLOCK) {
+					queue.notifyAll(); // room for a blocked reading thread
+				}
+				if (event == null) {
+					if (discardEvent == null) {
+						isScheduled = false;
+						return;
+					}
+					event = discardEvent;
+					discardEvent = null;
+					isDiscard = true;
+				}
+			}
+			try {
+				if (isDiscard) {
+					listener.discarded(event);
+				} else {
+					listener.notificationRecieved(event);
+				}
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Listener threw an exception", ex);
+			}
+		}
+		// more events are waiting, give other tasks of the executor a chance
+		schedule();
+	}
+
+}
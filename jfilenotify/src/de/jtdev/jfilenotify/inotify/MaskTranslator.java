@@ -0,0 +1,133 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+
+/**
+ * Translates the masks of this project into the masks of inotify and back.
+ * Every bit is translated independently, so a mask is translated with one
+ * table lookup per byte instead of a test per constant. The tables are
+ * computed once from the definitions of the translation.
+ *
+ * <p>The class does not need the native library, so it can be used without
+ * an inotify instance.</p>
+ */
+final class MaskTranslator {
+
+	private MaskTranslator() {
+	}
+	
+	/**
+	 * The lookup tables of {@link #importMask(int)}. The first index is the
+	 * byte of the mask, the second one its value.
+	 */
+	private static final int[][] IMPORT_TABLE = new int[4][256];
+	
+	/**
+	 * The lookup tables of {@link #exportMask(int)}.
+	 */
+	private static final int[][] EXPORT_TABLE = new int[4][256];
+	
+	static {
+		// every bit is translated independently, so the translation of a 
+		// mask is the combination of the translations of its bytes
+		for (int b = 0; b < 4; b++) {
+			for (int v = 0; v < 256; v++) {
+				IMPORT_TABLE[b][v] = translateImport(v << (8 * b));
+				EXPORT_TABLE[b][v] = translateExport(v << (8 * b));
+			}
+		}
+	}
+	
+	/**
+	 * The constants for inotify and this project are not the same, so this 
+	 * method convert a mask that is used by project to a mask that inotify 
+	 * understands.
+	 * 
+	 * @param externalMask 
+	 *        the mask that should be converted to a mask that fits inotify
+	 * @return returns a mask suitable for inotify
+	 */
+	static int importMask(final int externalMask) {
+		return IMPORT_TABLE[0][externalMask & 0xff]
+				| IMPORT_TABLE[1][(externalMask >>> 8) & 0xff]
+				| IMPORT_TABLE[2][(externalMask >>> 16) & 0xff]
+				| IMPORT_TABLE[3][externalMask >>> 24];
+	}
+	
+	/**
+	 * Defines the translation of {@link #importMask(int)}, which uses tables
+	 * computed by this method. The benchmarks use it as the baseline of the
+	 * tables.
+	 */
+	static int translateImport(final int externalMask) {
+		int m = 0x00000000;
+		
+		if ((FileNotifyConstants.OPENED               & externalMask) != 0)  m |= INotifyEvent.IN_OPEN;
+		if ((FileNotifyConstants.ACCESSED             & externalMask) != 0)  m |= INotifyEvent.IN_ACCESS;
+		if ((FileNotifyConstants.MODIFIED             & externalMask) != 0)  m |= INotifyEvent.IN_MODIFY;
+		if ((FileNotifyConstants.CLOSED_WRITEABLE     & externalMask) != 0)  m |= INotifyEvent.IN_CLOSE_WRITE;
+		if ((FileNotifyConstants.CLOSED_NOT_WRITEABLE & externalMask) != 0)  m |= INotifyEvent.IN_CLOSE_NOWRITE;
+		if ((FileNotifyConstants.ATTRIBUTES_CHANGED   & externalMask) != 0)  m |= INotifyEvent.IN_ATTRIB;
+		
+		if ((FileNotifyConstants.SUBFILE_CREATED & externalMask) != 0)  m |= INotifyEvent.IN_CREATE;
+		if ((FileNotifyConstants.SUBFILE_DELETED & externalMask) != 0)  m |= INotifyEvent.IN_DELETE;
+		if ((FileNotifyConstants.RENAMED         & externalMask) != 0)  m |= INotifyEvent.IN_MOVE;
+		if ((FileNotifyConstants.MOVED_FROM      & externalMask) != 0)  m |= INotifyEvent.IN_MOVED_FROM;
+		if ((FileNotifyConstants.MOVED_TO        & externalMask) != 0)  m |= INotifyEvent.IN_MOVED_TO;
+		if ((FileNotifyConstants.SELF_DELETED    & externalMask) != 0)  m |= INotifyEvent.IN_DELETE_SELF;
+		if ((FileNotifyConstants.SELF_MOVED      & externalMask) != 0)  m |= INotifyEvent.IN_MOVE_SELF;
+		
+		if ((FileNotifyConstants.ONLY_DIRECTORY & externalMask) != 0)  m |= INotifyEvent.IN_ONLYDIR;
+//		if ((FileNotifyConstants.DONT_FOLLOW    & externalMask) != 0)  m |= INotifyEvent.IN_DONT_FOLLOW;
+		
+		return m;
+	}
+	
+	/**
+	 * The constants for inotify and this project are not the same, so this 
+	 * method convert a mask that is used by inotify to a mask that this 
+	 * project uses.
+	 * 
+	 * @param internalMask
+	 *        the mask tath should be converted to a mask that fits this 
+	 *        project
+	 * @return returns a mask suitable fot this project
+	 */
+	static int exportMask(final int internalMask) {
+		return EXPORT_TABLE[0][internalMask & 0xff]
+				| EXPORT_TABLE[1][(internalMask >>> 8) & 0xff]
+				| EXPORT_TABLE[2][(internalMask >>> 16) & 0xff]
+				| EXPORT_TABLE[3][internalMask >>> 24];
+	}
+	
+	/**
+	 * Defines the translation of {@link #exportMask(int)}, which uses tables
+	 * computed by this method. The benchmarks use it as the baseline of the
+	 * tables.
+	 */
+	static int translateExport(final int internalMask) {
+		int m = 0x00000000;
+		
+		if ((INotifyEvent.IN_OPEN          & internalMask) != 0)  m |= FileNotifyConstants.OPENED;
+		if ((INotifyEvent.IN_ACCESS        & internalMask) != 0)  m |= FileNotifyConstants.ACCESSED;
+		if ((INotifyEvent.IN_MODIFY        & internalMask) != 0)  m |= FileNotifyConstants.MODIFIED;
+		if ((INotifyEvent.IN_CLOSE_WRITE   & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_WRITEABLE;
+		if ((INotifyEvent.IN_CLOSE_NOWRITE & internalMask) != 0)  m |= FileNotifyConstants.CLOSED_NOT_WRITEABLE;
+		if ((INotifyEvent.IN_ATTRIB        & internalMask) != 0)  m |= FileNotifyConstants.ATTRIBUTES_CHANGED;
+		
+		if ((INotifyEvent.IN_CREATE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_CREATED;
+		if ((INotifyEvent.IN_DELETE      & internalMask) != 0)  m |= FileNotifyConstants.SUBFILE_DELETED;
+		if ((INotifyEvent.IN_RENAME      & internalMask) != 0)  m |= FileNotifyConstants.RENAMED;
+		if ((INotifyEvent.IN_MOVED_FROM  & internalMask) != 0)  m |= FileNotifyConstants.MOVED_FROM;
+		if ((INotifyEvent.IN_MOVED_TO    & internalMask) != 0)  m |= FileNotifyConstants.MOVED_TO;
+		if ((INotifyEvent.IN_DELETE_SELF & internalMask) != 0)  m |= FileNotifyConstants.SELF_DELETED;
+		if ((INotifyEvent.IN_MOVE_SELF   & internalMask) != 0)  m |= FileNotifyConstants.SELF_MOVED;
+		
+		if ((INotifyEvent.IN_Q_OVERFLOW & internalMask) != 0)  m |= FileNotifyConstants.OVERFLOWED;
+		if ((INotifyEvent.IN_ISDIR   & internalMask) != 0)  m |= FileNotifyConstants.IS_DIRECTORY;
+		if ((INotifyEvent.IN_UNMOUNT & internalMask) != 0)  m |= FileNotifyConstants.UNMOUNTED;
+		
+		return m;
+	}
+
+}
@@ -0,0 +1,138 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * Describes a mounted file system, as listed in {@code /proc/self/mountinfo}.
+ */
+public final class MountInfo {
+
+	/**
+	 * The file system types whose changes are made by other hosts or by a
+	 * user space process, so inotify only sees the changes made by this host
+	 * through the mount.
+	 */
+	private static final String[] REMOTE_TYPES = {
+		"nfs", "nfs4", "cifs", "smb3", "smbfs", "ncpfs", "afs", "coda", "9p",
+		"ceph", "glusterfs", "lustre", "gpfs", "virtiofs", "fuse", "fuseblk"
+	};
+
+	/**
+	 * The magic numbers reported by statfs for the same file systems, used if
+	 * the type is not known.
+	 */
+	private static final long[] REMOTE_MAGICS = {
+		0x6969L,       // NFS_SUPER_MAGIC
+		0xff534d42L,   // CIFS_MAGIC_NUMBER
+		0xfe534d42L,   // SMB2_MAGIC_NUMBER
+		0x517bL,       // SMB_SUPER_MAGIC
+		0x564cL,       // NCP_SUPER_MAGIC
+		0x5346414fL,   // AFS_SUPER_MAGIC
+		0x73757245L,   // CODA_SUPER_MAGIC
+		0x01021997L,   // V9FS_MAGIC
+		0x00c36400L,   // CEPH_SUPER_MAGIC
+		0x65735546L    // FUSE_SUPER_MAGIC
+	};
+
+	private final long deviceId;
+	private final String mountPoint;
+	private final String fileSystemType;
+	private final String source;
+	private final long magic;
+
+	/**
+	 * Creates a new description of a mount.
+	 *
+	 * @param deviceId
+	 *        the id of the device, see {@link MountTable#deviceId(long, long)}
+	 * @param mountPoint
+	 *        the directory the file system is mounted on
+	 * @param fileSystemType
+	 *        the type of the file system, for example {@code ext4} or
+	 *        {@code fuse.sshfs}, or {@code null} if it is not known
+	 * @param source
+	 *        the mounted device or share
+	 * @param magic
+	 *        the magic number of the file system reported by statfs
+	 */
+	public MountInfo(long deviceId, String mountPoint, String fileSystemType, String source, long magic) {
+		this.deviceId = deviceId;
+		this.mountPoint = mountPoint;
+		this.fileSystemType = fileSystemType;
+		this.source = source;
+		this.magic = magic;
+	}
+
+	/**
+	 * Returns the id of the device of the file system.
+	 *
+	 * @return the device id
+	 */
+	public long getDeviceId() {
+		return deviceId;
+	}
+
+	/**
+	 * Returns the directory the file system is mounted on.
+	 *
+	 * @return the mount point or {@code null} if it is not known
+	 */
+	public String getMountPoint() {
+		return mountPoint;
+	}
+
+	/**
+	 * Returns the type of the file system. FUSE file systems have the type
+	 * {@code fuse.<name>}.
+	 *
+	 * @return the type or {@code null} if it is not known
+	 */
+	public String getFileSystemType() {
+		return fileSystemType;
+	}
+
+	/**
+	 * Returns the mounted device or share.
+	 *
+	 * @return the source or {@code null} if it is not known
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the magic number of the file system reported by statfs.
+	 *
+	 * @return the magic number
+	 */
+	public long getMagic() {
+		return magic;
+	}
+
+	/**
+	 * Returns true if this is a network or FUSE file system. Inotify only
+	 * reports the changes that this host makes to such a file system.
+	 *
+	 * @return true if the file system is remote
+	 */
+	public boolean isRemote() {
+		if (fileSystemType != null) {
+			if (fileSystemType.startsWith("fuse."))
+				return true;
+			for (int i = 0; i < REMOTE_TYPES.length; i++) {
+				if (REMOTE_TYPES[i].equals(fileSystemType))
+					return true;
+			}
+		}
+		for (int i = 0; i < REMOTE_MAGICS.length; i++) {
+			if (REMOTE_MAGICS[i] == magic)
+				return true;
+		}
+		return false;
+	}
+
+	public String toString() {
+		return "MountInfo[" + mountPoint + " type=" + fileSystemType + " source=" + source
+				+ " dev=" + (deviceId >>> 32) + ":" + (deviceId & 0xffffffffL)
+				+ " magic=0x" + Long.toHexString(magic) + "]";
+	}
+
+}
@@ -0,0 +1,248 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the mounted file system of a path. The device of the path is read by
+ * stat, the mount of the device is looked up in {@code /proc/self/mountinfo}.
+ * The mounts are cached by their device id, so a lookup only costs the stat
+ * call after the first path of a device. A bind mount shares the device of
+ * its file system, so it is described by the same entry.
+ *
+ * <p>It uses the library "jfilenotify" to read the device and the magic
+ * number of the file system.</p>
+ */
+public class MountTable {
+
+	static {
+		System.loadLibrary("jfilenotify");
+	}
+
+	/**
+	 * The file that lists the mounts seen by this process.
+	 */
+	public static final String MOUNT_INFO = "/proc/self/mountinfo";
+
+	private final ConcurrentHashMap<Long, MountInfo> mounts = new ConcurrentHashMap<Long, MountInfo>();
+
+	/**
+	 * Creates an empty table.
+	 */
+	public MountTable() {
+	}
+
+	/**
+	 * Returns the mount of the file system a file belongs to.
+	 *
+	 * @param fileName
+	 *        the name of the file
+	 * @return the mount or {@code null} if the file can't be accessed
+	 */
+	public MountInfo lookup(String fileName) {
+		long[] result = new long[3];
+		if (statFileSystem(fileName, result) < 0) // native call
+			return null;
+		long deviceId = deviceId(result[0], result[1]);
+		Long key = Long.valueOf(deviceId);
+		MountInfo m = mounts.get(key);
+		if (m == null) {
+			m = readMountInfo(fileName, deviceId, result[2]);
+			MountInfo other = mounts.putIfAbsent(key, m);
+			if (other != null)
+				m = other;
+		}
+		return m;
+	}
+
+	/**
+	 * Returns the mount points below a directory, so the file systems of a
+	 * tree can be looked up before it is watched. The mount info is read on
+	 * every call, nothing is cached.
+	 *
+	 * @param directoryName
+	 *        the name of the directory
+	 * @return the mount points inside of the directory, without the
+	 *         directory itself; empty if the mount info can't be read
+	 */
+	public List<String> getMountPointsBelow(String directoryName) {
+		String path = canonicalPath(directoryName);
+		List<String> mountPoints = new ArrayList<String>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(MOUNT_INFO));
+			String line;
+			while ((line = in.readLine()) != null) {
+				MountInfo m = parse(line, 0);
+				if (m != null && !m.getMountPoint().equals(path) && contains(path, m.getMountPoint())
+						&& !mountPoints.contains(m.getMountPoint()))
+					mountPoints.add(m.getMountPoint());
+			}
+		} catch (IOException ex) {
+			// no mounts are known
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					// nothing to do
+				}
+			}
+		}
+		return mountPoints;
+	}
+
+	/**
+	 * Removes all cached mounts, so they are read again. This is needed if a
+	 * device was unmounted and its id was reused by another mount.
+	 */
+	public void invalidate() {
+		mounts.clear();
+	}
+
+	/**
+	 * Combines the major and minor number of a device to its id.
+	 *
+	 * @param major
+	 *        the major number
+	 * @param minor
+	 *        the minor number
+	 * @return the device id
+	 */
+	public static long deviceId(long major, long minor) {
+		return (major << 32) | (minor & 0xffffffffL);
+	}
+
+	/**
+	 * Finds the entry of the device in the mount info. If the device is
+	 * mounted more than once, the entry with the longest mount point that
+	 * contains the file is taken. If the mount info can't be read, only the
+	 * magic number is known.
+	 */
+	private static MountInfo readMountInfo(String fileName, long deviceId, long magic) {
+		String path = canonicalPath(fileName);
+		MountInfo best = null;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(MOUNT_INFO));
+			String line;
+			while ((line = in.readLine()) != null) {
+				MountInfo m = parse(line, magic);
+				if (m == null || m.getDeviceId() != deviceId)
+					continue;
+				if (best == null || isBetter(m, best, path))
+					best = m;
+			}
+		} catch (IOException ex) {
+			// only the magic number is known
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					// nothing to do
+				}
+			}
+		}
+		return best != null ? best : new MountInfo(deviceId, null, null, null, magic);
+	}
+
+	private static String canonicalPath(String fileName) {
+		try {
+			return new File(fileName).getCanonicalPath();
+		} catch (IOException ex) {
+			return new File(fileName).getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Returns true if the mount point of a contains the path and is longer
+	 * than the mount point of b or if only the mount point of a contains it.
+	 */
+	private static boolean isBetter(MountInfo a, MountInfo b, String path) {
+		boolean ac = contains(a.getMountPoint(), path);
+		boolean bc = contains(b.getMountPoint(), path);
+		if (ac != bc)
+			return ac;
+		return ac && a.getMountPoint().length() > b.getMountPoint().length();
+	}
+
+	private static boolean contains(String mountPoint, String path) {
+		if (mountPoint.equals("/") || mountPoint.equals(path))
+			return true;
+		return path.startsWith(mountPoint) && path.charAt(mountPoint.length()) == '/';
+	}
+
+	/**
+	 * Parses a line of the mount info:
+	 * {@code id parent major:minor root mountpoint options [optional...] - type source superoptions}
+	 */
+	private static MountInfo parse(String line, long magic) {
+		String[] f = line.split(" ");
+		if (f.length < 7)
+			return null;
+		int colon = f[2].indexOf(':');
+		if (colon < 0)
+			return null;
+		int separator = 6;
+		while (separator < f.length && !f[separator].equals("-"))
+			separator++;
+		if (separator + 2 >= f.length)
+			return null;
+		try {
+			long major = Long.parseLong(f[2].substring(0, colon));
+			long minor = Long.parseLong(f[2].substring(colon + 1));
+			return new MountInfo(deviceId(major, minor), unescape(f[4]), unescape(f[separator + 1]), unescape(f[separator + 2]), magic);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the octal escapes of spaces, tabs, newlines and backslashes.
+	 */
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0)
+			return s;
+		StringBuilder b = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && isOctal(s, i + 1)) {
+				b.append((char) Integer.parseInt(s.substring(i + 1, i + 4), 8));
+				i += 3;
+			} else {
+				b.append(c);
+			}
+		}
+		return b.toString();
+	}
+
+	private static boolean isOctal(String s, int start) {
+		if (start + 3 > s.length())
+			return false;
+		for (int i = start; i < start + 3; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '7')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the device of a file and the magic number of its file system.
+	 *
+	 * @param fileName
+	 *        the name of the file
+	 * @param result
+	 *        receives the major and minor number of the device and the magic
+	 *        number
+	 * @return 0 on success or a negative errno number if it fails
+	 */
+	private static native int statFileSystem(String fileName, long[] result);
+
+}
@@ -0,0 +1,176 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resynchronizes the listeners of an {@link INotifyService} after the queue
+ * of the inotify instance overflowed and events were lost. A snapshot of
+ * every watched directory is taken in the background after it was
+ * registered, and taken again from time to time if the directory received
+ * events. After an overflow all watched directories are read again by a pool
+ * of threads and the differences to their snapshots are delivered as
+ * created, deleted and modified events.
+ *
+ * <p>The directories are read without holding the lock of their group, so
+ * the delivery of their events doesn't wait for a scan. A new snapshot only
+ * replaces the snapshot it was compared with; if another scan replaced that
+ * one in the meantime, the new snapshot is dropped or the directory is read
+ * again.</p>
+ *
+ * <p>The synthetic events describe the net change since the last snapshot,
+ * so they may repeat changes that were delivered before the overflow.
+ * Watched files that are no directories are not resynchronized, their
+ * listeners only receive the overflow event.</p>
+ */
+public class OverflowResync {
+
+	/**
+	 * The interval in seconds in which stale snapshots are taken again.
+	 */
+	private static final long REFRESH_INTERVAL = 10;
+
+	private final INotifyService service;
+	private final ScheduledThreadPoolExecutor scanners;
+
+	/**
+	 * Creates a new resync engine.
+	 *
+	 * @param service
+	 *        the service that delivers the synthetic events
+	 * @param parallelism
+	 *        the number of threads that read the directories
+	 */
+	public OverflowResync(INotifyService service, int parallelism) {
+		this.service = service;
+		this.scanners = new ScheduledThreadPoolExecutor(Math.max(1, parallelism), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OverflowResync");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scanners.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refreshSnapshots();
+			}
+		}, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes the first snapshot of the watched directories. The method
+	 * returns immediately, the snapshots are taken in the background before
+	 * any later resynchronization of the same directories.
+	 *
+	 * @param groups
+	 *        the groups of the new watches
+	 */
+	void takeSnapshots(ListenerGroup[] groups) {
+		try {
+			for (final ListenerGroup g : groups) {
+				scanners.execute(new Runnable() {
+					public void run() {
+						takeSnapshot(g);
+					}
+				});
+			}
+		} catch (RejectedExecutionException ex) {
+			// disposed in the meantime
+		}
+	}
+
+	private void takeSnapshot(ListenerGroup g) {
+		if (g.getSnapshot() != null)
+			return;
+		DirectorySnapshot current = DirectorySnapshot.create(g.getLastFileName());
+		synchronized (g) {
+			if (g.getSnapshot() == null)
+				g.setSnapshot(current);
+		}
+	}
+
+	/**
+	 * Takes the snapshots of the directories that received events since
+	 * their last snapshot again, so that a resynchronization doesn't repeat
+	 * changes that were delivered long ago.
+	 */
+	private void refreshSnapshots() {
+		for (ListenerGroup g : service.getListenerGroups()) {
+			if (!g.isSnapshotStale() || g.isResyncPending())
+				continue;
+			DirectorySnapshot old = g.getSnapshot();
+			if (old == null)
+				continue;
+			g.setSnapshotStale(false);
+			DirectorySnapshot current = DirectorySnapshot.create(g.getLastFileName());
+			if (current == null)
+				continue;
+			synchronized (g) {
+				// the changes of a lost event must be found by the resync
+				if (g.getSnapshot() == old && !g.isResyncPending())
+					g.setSnapshot(current);
+				else
+					g.setSnapshotStale(true);
+			}
+		}
+	}
+
+	/**
+	 * Reads the watched directories again and delivers their changes. The
+	 * method returns immediately, the directories are read in the background.
+	 *
+	 * @param groups
+	 *        the groups of all watches
+	 */
+	void resync(ListenerGroup[] groups) {
+		for (ListenerGroup g : groups)
+			g.setResyncPending(true);
+		try {
+			for (final ListenerGroup g : groups) {
+				scanners.execute(new Runnable() {
+					public void run() {
+						resync(g);
+					}
+				});
+			}
+		} catch (RejectedExecutionException ex) {
+			// disposed in the meantime
+		}
+	}
+
+	private void resync(ListenerGroup g) {
+		List<INotifyEvent> events = new ArrayList<INotifyEvent>();
+		while (true) {
+			DirectorySnapshot old = g.getSnapshot();
+			if (old == null)
+				return;
+			DirectorySnapshot current = DirectorySnapshot.create(g.getLastFileName());
+			if (current == null)
+				return; // deleted, the ignore event will discard the group
+			// one swap per snapshot, so no change is reported twice
+			synchronized (g) {
+				if (g.getSnapshot() != old)
+					continue; // compare with the newer snapshot
+				g.setResyncPending(false);
+				old.diff(current, g.getWatchDescriptor(), events);
+				g.setSnapshot(current);
+			}
+			break;
+		}
+		if (!events.isEmpty())
+			service.deliverSyntheticEvents(events);
+	}
+
+	/**
+	 * Stops the threads of this engine. Directories that are currently read
+	 * are not resynchronized.
+	 */
+	void dispose() {
+		scanners.shutdownNow();
+	}
+
+}
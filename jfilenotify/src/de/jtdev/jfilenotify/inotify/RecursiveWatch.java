@@ -0,0 +1,661 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyEvent;
+import de.jtdev.jfilenotify.FileNotifyException;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory and all of its subdirectories for a single tree
+ * listener. Inotify only watches single directories, so every directory of
+ * the tree is registered with an own directory listener that passes its
+ * events to the tree listener. The file name of these events is the path
+ * relative to the root of the tree.
+ *
+ * <p>The directory listeners are called directly by the thread that reads
+ * the events and pass them to a single mailbox of the tree listener, so the
+ * tree listener receives its events in order and never concurrently, even if
+ * the service uses an executor. If the service has no executor, the tree
+ * listener is called by an own delivery thread of the watch. It must not be
+ * called by the walker pool, which delivers the content of new directories
+ * and would wait for itself if the queue of the listener is full.</p>
+ *
+ * <p>The tree is walked by a pool of threads when the watch is registered.
+ * Directories that are created or moved into the tree later are registered
+ * by the same pool as soon as their event is received. Files that appeared
+ * in such a directory before it could be watched are reported as
+ * created.</p>
+ *
+ * <p>If the limit of watches is reached, the admission policy of the
+ * service is applied to every single directory: with
+ * {@link AdmissionPolicy#POLL} the directory is polled, with
+ * {@link AdmissionPolicy#EVICT_LEAST_RECENTLY_ACTIVE} a directory that could
+ * not get a watch is not watched at all. Only with
+ * {@link AdmissionPolicy#REJECT} the registration of the tree fails.</p>
+ *
+ * <p>Symbolic links to directories are not followed.</p>
+ */
+public class RecursiveWatch {
+
+	private static final Logger LOG = Logger.getLogger(RecursiveWatch.class.getName());
+
+	/**
+	 * The events the directory listeners need additionally to the events of
+	 * the tree listener, to find new subdirectories.
+	 */
+	private static final int DIRECTORY_MASK =
+			FileNotifyConstants.SUBFILE_CREATED | FileNotifyConstants.MOVED_FROM
+			| FileNotifyConstants.MOVED_TO | FileNotifyConstants.ONLY_DIRECTORY;
+
+	/**
+	 * The time in seconds an idle thread of the walker pool or the delivery
+	 * thread is kept.
+	 */
+	private static final long WALKER_KEEP_ALIVE = 5;
+
+	private final INotifyService service;
+	private final FileNotifyListener treeListener;
+	private final File root;
+
+	/**
+	 * The threads that walk the tree. Only the initial walk uses more than a
+	 * single thread, idle threads terminate.
+	 */
+	private final ThreadPoolExecutor walkers;
+
+	/**
+	 * The thread that calls the tree listener, if the service has no
+	 * executor, otherwise {@code null}. An idle thread terminates.
+	 */
+	private final ThreadPoolExecutor deliverer;
+
+	/**
+	 * The mailbox that delivers all events of the tree to the tree listener.
+	 */
+	private final ListenerMailbox mailbox;
+
+	/**
+	 * The listeners of all watched directories by their relative path.
+	 */
+	private final HashMap<String, DirectoryListener> directories = new HashMap<String, DirectoryListener>();
+
+	/**
+	 * The listeners of all watched directories by their watch descriptor.
+	 * Synchronized on {@link #directories}.
+	 */
+	private final HashMap<Long, DirectoryListener> watchDescriptors = new HashMap<Long, DirectoryListener>();
+
+	/**
+	 * Creates a watch for the directory tree of the listener. The tree is
+	 * not registered until {@link #register(int)} is called.
+	 *
+	 * @param service
+	 *        the service the directories are registered with
+	 * @param treeListener
+	 *        the listener that receives the events of the tree
+	 */
+	public RecursiveWatch(INotifyService service, FileNotifyListener treeListener) {
+		this.service = service;
+		this.treeListener = treeListener;
+		this.root = new File(treeListener.getFileName());
+		this.walkers = createPool("RecursiveWatch walker");
+		Executor executor = service.getExecutor();
+		this.deliverer = executor == null ? createPool("RecursiveWatch delivery") : null;
+		this.mailbox = new ListenerMailbox(treeListener, executor == null ? deliverer : executor);
+	}
+
+	/**
+	 * Creates a pool of at most one daemon thread, that terminates if it is
+	 * idle.
+	 */
+	private static ThreadPoolExecutor createPool(final String name) {
+		return new ThreadPoolExecutor(0, 1, WALKER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Returns the listener that receives the events of the tree.
+	 *
+	 * @return the tree listener
+	 */
+	public FileNotifyListener getTreeListener() {
+		return treeListener;
+	}
+
+	/**
+	 * Returns the number of watched directories.
+	 *
+	 * @return the number of directories
+	 */
+	public int getDirectoryCount() {
+		synchronized (directories) {
+			return directories.size();
+		}
+	}
+
+	/**
+	 * Returns the number of events of the tree listener that were dropped or
+	 * coalesced because its queue was full.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+		return mailbox.getDroppedEventCount();
+	}
+
+	/**
+	 * Closes the mailbox of the tree listener, so that a reading thread that
+	 * waits for room in its full queue returns.
+	 */
+	public void closeMailbox() {
+		mailbox.close();
+	}
+
+	/**
+	 * Registers the root directory and walks the tree with the given number of
+	 * threads to register all subdirectories. If a directory could not be
+	 * registered and the admission policy of the service doesn't allow to
+	 * skip it, all directories are unregistered again.
+	 *
+	 * @param parallelism
+	 *        the number of threads that walk the tree
+	 * @throws FileNotifyException
+	 *         if a directory could not be registered
+	 */
+	public void register(int parallelism) throws FileNotifyException {
+		if (!root.isDirectory())
+			throw new FileNotifyException("Not a directory: " + root);
+		registerDirectory("");
+
+		final AtomicInteger pending = new AtomicInteger(0);
+		final FileNotifyException[] failure = new FileNotifyException[1];
+		int threads = Math.max(1, parallelism);
+		walkers.setMaximumPoolSize(threads);
+		walkers.setCorePoolSize(threads);
+		try {
+			walk(pending, failure, "");
+			synchronized (pending) {
+				while (pending.get() > 0) {
+					try {
+						pending.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						setFailure(failure, new FileNotifyException("Interrupted while registering " + root, ex));
+						break;
+					}
+				}
+			}
+		} finally {
+			// later walks of new directories use a single thread
+			walkers.setCorePoolSize(0);
+			walkers.setMaximumPoolSize(1);
+		}
+
+		synchronized (failure) {
+			if (failure[0] != null) {
+				unregister();
+				throw failure[0];
+			}
+		}
+	}
+
+	/**
+	 * Lists a registered directory, registers its subdirectories and submits
+	 * a task for each of them.
+	 */
+	private void walk(final AtomicInteger pending, final FileNotifyException[] failure, String path) {
+		synchronized (failure) {
+			if (failure[0] != null)
+				return;
+		}
+		for (String child : registerDirectories(listSubdirectories(path), failure)) {
+			final String subPath = child;
+			pending.incrementAndGet();
+			walkers.execute(new Runnable() {
+				public void run() {
+					try {
+						walk(pending, failure, subPath);
+					} finally {
+						if (pending.decrementAndGet() == 0) {
+							synchronized (pending) {
+								pending.notifyAll();
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Registers the directories with a single call to the service and
+	 * returns the paths of the registered or polled ones. Directories that
+	 * vanished in the meantime are skipped, like directories that got no
+	 * watch if the service evicts watches. Any other error is stored as
+	 * failure.
+	 */
+	private List<String> registerDirectories(List<String> paths, FileNotifyException[] failure) {
+		List<DirectoryListener> listeners = new ArrayList<DirectoryListener>(paths.size());
+		synchronized (directories) {
+			for (String path : paths) {
+				if (directories.containsKey(path))
+					continue;
+				DirectoryListener l = new DirectoryListener(new File(root, path).getPath(), path);
+				directories.put(path, l);
+				listeners.add(l);
+			}
+		}
+
+		List<String> registered = new ArrayList<String>(listeners.size());
+		if (listeners.isEmpty())
+			return registered;
+		long[] results;
+		try {
+			results = service.addListeners(listeners.toArray(new DirectoryListener[listeners.size()]));
+		} catch (FileNotifyException ex) {
+			synchronized (directories) {
+				for (DirectoryListener l : listeners)
+					directories.remove(l.path);
+			}
+			setFailure(failure, ex);
+			return registered;
+		}
+
+		for (int i = 0; i < results.length; i++) {
+			DirectoryListener l = listeners.get(i);
+			if (results[i] >= 0) {
+				bind(l, results[i]);
+				registered.add(l.path);
+				continue;
+			}
+			FileNotifyException error = null;
+			if (results[i] == -ErrnoMessages.ENOSPC) {
+				try {
+					if (service.pollListener(l)) {
+						registered.add(l.path);
+						continue;
+					}
+				} catch (FileNotifyException ex) {
+					error = ex;
+				}
+			}
+			synchronized (directories) {
+				directories.remove(l.path);
+			}
+			if (!new File(root, l.path).isDirectory())
+				continue;
+			if (error == null && results[i] == -ErrnoMessages.ENOSPC
+					&& service.getAdmissionPolicy() == AdmissionPolicy.EVICT_LEAST_RECENTLY_ACTIVE) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine("Directory not watched, no watch left: " + new File(root, l.path));
+				continue;
+			}
+			if (error == null)
+				error = ErrnoException.create("Directory " + l.path + " could not be registered", (int) -results[i]);
+			setFailure(failure, error);
+		}
+		return registered;
+	}
+
+	private static void setFailure(FileNotifyException[] failure, FileNotifyException ex) {
+		synchronized (failure) {
+			if (failure[0] == null)
+				failure[0] = ex;
+		}
+	}
+
+	/**
+	 * Returns the relative paths of the subdirectories of a directory.
+	 * Symbolic links are skipped.
+	 */
+	private List<String> listSubdirectories(String path) {
+		List<String> result = new ArrayList<String>();
+		File dir = path.length() == 0 ? root : new File(root, path);
+		File[] children = dir.listFiles();
+		if (children == null)
+			return result;
+		File canonicalDir = canonicalFile(dir);
+		for (File f : children) {
+			if (f.isDirectory() && !isSymbolicLink(canonicalDir, f.getName()))
+				result.add(relativePath(path, f.getName()));
+		}
+		return result;
+	}
+
+	/**
+	 * Registers a single directory. Returns false if it is allready
+	 * registered. The directory is polled if it got no watch and the service
+	 * polls such directories.
+	 */
+	private boolean registerDirectory(String path) throws FileNotifyException {
+		File dir = path.length() == 0 ? root : new File(root, path);
+		DirectoryListener l = new DirectoryListener(dir.getPath(), path);
+		synchronized (directories) {
+			if (directories.containsKey(path))
+				return false;
+			directories.put(path, l);
+		}
+		try {
+			try {
+				bind(l, service.addListener(l));
+			} catch (WatchLimitException ex) {
+				if (!service.pollListener(l))
+					throw ex;
+			}
+		} catch (FileNotifyException ex) {
+			synchronized (directories) {
+				directories.remove(path);
+			}
+			throw ex;
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the watch descriptor of a registered directory.
+	 */
+	private void bind(DirectoryListener l, long watchDescriptor) {
+		synchronized (directories) {
+			l.watchDescriptor = watchDescriptor;
+			if (directories.get(l.path) == l)
+				watchDescriptors.put(Long.valueOf(watchDescriptor), l);
+		}
+	}
+
+	/**
+	 * Removes a directory that is no longer watched. Must be called while
+	 * {@link #directories} is locked.
+	 */
+	private void forget(DirectoryListener l) {
+		if (directories.get(l.path) == l)
+			directories.remove(l.path);
+		Long key = Long.valueOf(l.watchDescriptor);
+		if (watchDescriptors.get(key) == l)
+			watchDescriptors.remove(key);
+	}
+
+	/**
+	 * Returns the listener of a watched directory of this tree.
+	 */
+	private DirectoryListener lookup(long watchDescriptor) {
+		synchronized (directories) {
+			return watchDescriptors.get(Long.valueOf(watchDescriptor));
+		}
+	}
+
+	/**
+	 * Registers a directory that appeared inside of the tree and all of its
+	 * subdirectories by the walker pool. Its content is reported to the tree
+	 * listener as created, because it could have changed before the
+	 * directory was watched.
+	 */
+	private void registerNewDirectory(final String path) {
+		walkers.execute(new Runnable() {
+			public void run() {
+				walkNewDirectory(path);
+			}
+		});
+	}
+
+	private void walkNewDirectory(String path) {
+		try {
+			if (!registerDirectory(path))
+				return;
+		} catch (FileNotifyException ex) {
+			return; // deleted in the meantime or no permission
+		}
+		File dir = new File(root, path);
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		File canonicalDir = canonicalFile(dir);
+		for (File f : children) {
+			String child = relativePath(path, f.getName());
+			boolean isDirectory = f.isDirectory() && !isSymbolicLink(canonicalDir, f.getName());
+			int mask = FileNotifyConstants.SUBFILE_CREATED;
+			if (isDirectory)
+				mask |= FileNotifyConstants.IS_DIRECTORY;
+			if ((treeListener.getMask() & FileNotifyConstants.SUBFILE_CREATED) != 0)
+				mailbox.deliver(new TreeEvent(mask, child));
+			if (isDirectory)
+				walkNewDirectory(child);
+		}
+	}
+
+	/**
+	 * Unregisters all directories of the tree.
+	 *
+	 * @throws FileNotifyException
+	 *         if a directory could not be unregistered
+	 */
+	public void unregister() throws FileNotifyException {
+		// queued events are still delivered, if the watch calls the listener
+		walkers.shutdown();
+		if (deliverer != null)
+			deliverer.shutdown();
+		DirectoryListener[] listeners;
+		synchronized (directories) {
+			listeners = directories.values().toArray(new DirectoryListener[directories.size()]);
+			directories.clear();
+			watchDescriptors.clear();
+		}
+		FileNotifyException failure = null;
+		for (DirectoryListener l : listeners) {
+			try {
+				release(l);
+			} catch (FileNotifyException ex) {
+				failure = ex; // the directory was probably deleted
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Unregisters a directory and all of its subdirectories.
+	 */
+	private void unregisterSubtree(String path) {
+		String prefix = path + File.separatorChar;
+		ArrayList<DirectoryListener> listeners = new ArrayList<DirectoryListener>();
+		synchronized (directories) {
+			for (Iterator<Map.Entry<String, DirectoryListener>> iter = directories.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry<String, DirectoryListener> e = iter.next();
+				if (e.getKey().equals(path) || e.getKey().startsWith(prefix)) {
+					listeners.add(e.getValue());
+				}
+			}
+			for (DirectoryListener l : listeners)
+				forget(l);
+		}
+		for (DirectoryListener l : listeners) {
+			try {
+				release(l);
+			} catch (FileNotifyException ex) {
+				// the directory was deleted in the meantime
+			}
+		}
+	}
+
+	/**
+	 * Removes the listener of a directory from the service. A directory
+	 * without watch descriptor is polled.
+	 */
+	private void release(DirectoryListener l) throws FileNotifyException {
+		if (l.watchDescriptor < 0)
+			service.removeFileNotifyListener(l);
+		else
+			service.removeListener(l, l.watchDescriptor);
+	}
+
+	private static String relativePath(String parent, String name) {
+		return parent.length() == 0 ? name : parent + File.separatorChar + name;
+	}
+
+	/**
+	 * Returns the canonical form of a directory or {@code null} if it could
+	 * not be resolved.
+	 */
+	private static File canonicalFile(File dir) {
+		try {
+			return dir.getCanonicalFile();
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if an entry of a directory is a symbolic link. The entry is
+	 * canonicalized once and compared to the canonical directory plus its
+	 * name.
+	 *
+	 * @param canonicalDir
+	 *        the canonical form of the directory or {@code null}
+	 * @param name
+	 *        the name of the entry
+	 */
+	private static boolean isSymbolicLink(File canonicalDir, String name) {
+		if (canonicalDir == null)
+			return true;
+		File f = new File(canonicalDir, name);
+		try {
+			return !f.getCanonicalFile().equals(f);
+		} catch (IOException ex) {
+			return true;
+		}
+	}
+
+	/**
+	 * The event passed to the tree listener. It belongs to no watch
+	 * descriptor and carries the translated mask.
+	 */
+	private static class TreeEvent extends INotifyEvent {
+
+		TreeEvent(int mask, String path) {
+			super(-1, 0, mask, path);
+		}
+
+		public String toString() {
+			return "TreeEvent: mask=" + Integer.toHexString(getChangeMask()) + " path=" + getChangedFileName();
+		}
+	}
+
+	/**
+	 * The rename event passed to the tree listener.
+	 */
+	private static class TreeRenameEvent extends INotifyRenameEvent {
+
+		TreeRenameEvent(int mask, String path, String oldPath) {
+			super(-1, 0, mask, -1, oldPath, path);
+		}
+
+		public String toString() {
+			return "TreeRenameEvent: mask=" + Integer.toHexString(getChangeMask()) + " oldpath=" + getOldFileName() + " path=" + getChangedFileName();
+		}
+	}
+
+	/**
+	 * Listens to a single directory of the tree and passes the events to the
+	 * mailbox of the tree listener. It is called directly by the thread that
+	 * reads the events, see {@link ListenerGroup#addListener}.
+	 */
+	class DirectoryListener extends FileNotifyListener {
+
+		private final String path;
+		private volatile long watchDescriptor = -1;
+
+		DirectoryListener(String fileName, String path) {
+			super(fileName, treeListener.getMask() | DIRECTORY_MASK);
+			this.path = path;
+		}
+
+		public void notificationRecieved(FileNotifyEvent event) {
+			if (event instanceof INotifyRenameEvent) {
+				renamed((INotifyRenameEvent) event);
+				return;
+			}
+			int mask = event.getChangeMask();
+			String name = event.getChangedFileName();
+			String changed = name == null ? (path.length() == 0 ? null : path) : relativePath(path, name);
+
+			int forward = treeListener.getMask() | FileNotifyConstants.UNMOUNTED;
+			if (path.length() == 0)
+				forward |= FileNotifyConstants.OVERFLOWED; // once for the whole tree
+			if ((mask & forward) != 0)
+				mailbox.deliver(new TreeEvent(mask, changed));
+
+			if (name != null && (mask & FileNotifyConstants.IS_DIRECTORY) != 0) {
+				// the watches of a moved directory stay valid, but their paths
+				// don't, so they are registered again with the new path
+				if ((mask & FileNotifyConstants.MOVED_FROM) != 0)
+					unregisterSubtree(changed);
+				if ((mask & (FileNotifyConstants.SUBFILE_CREATED | FileNotifyConstants.MOVED_TO)) != 0)
+					registerNewDirectory(changed);
+			}
+		}
+
+		/**
+		 * Passes a rename to the tree listener with both paths. A move
+		 * between two directories of the tree is received by the listeners
+		 * of both directories, only the target directory passes it on. A move
+		 * into or out of the tree is passed on as plain move.
+		 */
+		private void renamed(INotifyRenameEvent event) {
+			DirectoryListener from = lookup(event.getOldWatchDescriptor());
+			DirectoryListener to = lookup(event.getWatchDescriptor());
+			if (to != null && to != this)
+				return;
+			String oldPath = from == null ? null : relativePath(from.path, event.getOldFileName());
+			String newPath = to == null ? null : relativePath(to.path, event.getChangedFileName());
+
+			int mask = event.getChangeMask();
+			INotifyEvent e;
+			if (oldPath != null && newPath != null) {
+				e = new TreeRenameEvent(mask, newPath, oldPath);
+			} else if (newPath != null) {
+				e = new TreeEvent(mask & ~(FileNotifyConstants.RENAMED | FileNotifyConstants.MOVED_FROM), newPath);
+			} else {
+				e = new TreeEvent(mask & ~(FileNotifyConstants.RENAMED | FileNotifyConstants.MOVED_TO), oldPath);
+			}
+			if ((e.getChangeMask() & treeListener.getMask()) != 0)
+				mailbox.deliver(e);
+
+			if ((mask & FileNotifyConstants.IS_DIRECTORY) != 0) {
+				if (oldPath != null)
+					unregisterSubtree(oldPath);
+				if (newPath != null)
+					registerNewDirectory(newPath);
+			}
+		}
+
+		public void discarded(FileNotifyEvent event) {
+			synchronized (directories) {
+				forget(this);
+			}
+			if (path.length() == 0) {
+				mailbox.discard(new TreeEvent(event.getChangeMask(), null));
+			}
+		}
+	}
+
+}
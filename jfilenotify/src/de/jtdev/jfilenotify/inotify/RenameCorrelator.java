@@ -0,0 +1,234 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * The correlator pairs {@code IN_MOVED_FROM} and {@code IN_MOVED_TO} events
+ * with the same cookie into one {@link INotifyRenameEvent}. It is used by the
+ * reading thread of an {@link INotifyService} and is not thread safe.
+ *
+ * <p>A {@code IN_MOVED_FROM} event is held back in a ring of fixed size until
+ * its {@code IN_MOVED_TO} event is read or its window has passed. If the ring
+ * is full, the oldest held back event is released to make room, so the memory
+ * stays bounded during a storm of moves. Before any other event of the same
+ * watch is delivered, its held back events are released with
+ * {@link #pollWatch(long)}, so a {@code IN_MOVED_FROM} event never passes a
+ * later event of its directory. Before a {@code IN_MOVED_TO} event is added,
+ * the older held back events of its directories are released with
+ * {@link #pollBefore(INotifyEvent)}. Released and unpaired events are
+ * delivered as they were read. A {@code IN_MOVED_TO} event is never held
+ * back.</p>
+ */
+public class RenameCorrelator {
+
+	/**
+	 * The default number of {@code IN_MOVED_FROM} events that can be held
+	 * back.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final long window;
+	private final INotifyEvent[] events;
+	private final long[] readTimes;
+
+	/**
+	 * The index of the oldest slot.
+	 */
+	private int head = 0;
+
+	/**
+	 * The number of slots between head and tail, including the slots of
+	 * events that were paired allready.
+	 */
+	private int used = 0;
+
+	/**
+	 * Creates a new correlator.
+	 *
+	 * @param window
+	 *        the time in nanoseconds a {@code IN_MOVED_FROM} event waits for
+	 *        its {@code IN_MOVED_TO} event
+	 * @param capacity
+	 *        the maximal number of held back events
+	 */
+	public RenameCorrelator(long window, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		this.window = window;
+		this.events = new INotifyEvent[capacity];
+		this.readTimes = new long[capacity];
+	}
+
+	/**
+	 * Returns true if no events are held back.
+	 *
+	 * @return true if this correlator is empty
+	 */
+	public boolean isEmpty() {
+		return used == 0;
+	}
+
+	/**
+	 * Holds back a {@code IN_MOVED_FROM} event or pairs a {@code IN_MOVED_TO}
+	 * event with its held back partner.
+	 *
+	 * @param event
+	 *        the read move event, it must not be changed afterwards
+	 * @param now
+	 *        the current time in nanoseconds
+	 * @return the event that has to be delivered now or {@code null}. This is
+	 *         the rename event, the unpaired {@code IN_MOVED_TO} event or the
+	 *         oldest {@code IN_MOVED_FROM} event if the ring was full.
+	 */
+	public INotifyEvent add(INotifyEvent event, long now) {
+		int mask = event.getChangeMask();
+		if ((mask & INotifyEvent.IN_MOVE) == INotifyEvent.IN_MOVED_FROM && event.getCookie() != 0) {
+			INotifyEvent released = null;
+			if (used == events.length)
+				released = removeHead();
+			int tail = (head + used) % events.length;
+			events[tail] = event;
+			readTimes[tail] = now;
+			used++;
+			return released;
+		}
+		if ((mask & INotifyEvent.IN_MOVE) == INotifyEvent.IN_MOVED_TO && event.getCookie() != 0) {
+			// the partner is usually the latest held back event
+			for (int i = used - 1; i >= 0; i--) {
+				int index = (head + i) % events.length;
+				INotifyEvent from = events[index];
+				if (from != null && from.getCookie() == event.getCookie()) {
+					events[index] = null;
+					skipPaired();
+					return INotifyRenameEvent.pair(from, event);
+				}
+			}
+		}
+		return event;
+	}
+
+	/**
+	 * Removes and returns the oldest held back event that has to be delivered
+	 * before a {@code IN_MOVED_TO} event: an event of the directory of the
+	 * {@code IN_MOVED_TO} event or of the directory of its partner, that was
+	 * read before the partner. The partner itself stays held back.
+	 *
+	 * @param movedTo
+	 *        the {@code IN_MOVED_TO} event that is added next
+	 * @return the released event or {@code null} if no older event of the
+	 *         directories is held back
+	 */
+	public INotifyEvent pollBefore(INotifyEvent movedTo) {
+		if ((movedTo.getChangeMask() & INotifyEvent.IN_MOVE) != INotifyEvent.IN_MOVED_TO)
+			return null;
+		long watchDescriptor = movedTo.getWatchDescriptor();
+		long oldWatchDescriptor = watchDescriptor;
+		int end = used;
+		if (movedTo.getCookie() != 0) {
+			for (int i = used - 1; i >= 0; i--) {
+				INotifyEvent from = events[(head + i) % events.length];
+				if (from != null && from.getCookie() == movedTo.getCookie()) {
+					oldWatchDescriptor = from.getWatchDescriptor();
+					end = i;
+					break;
+				}
+			}
+		}
+		for (int i = 0; i < end; i++) {
+			int index = (head + i) % events.length;
+			INotifyEvent e = events[index];
+			if (e != null && (e.getWatchDescriptor() == watchDescriptor || e.getWatchDescriptor() == oldWatchDescriptor)) {
+				events[index] = null;
+				skipPaired();
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time until the next held back event has to be released.
+	 *
+	 * @param now
+	 *        the current time in nanoseconds
+	 * @return the delay in nanoseconds, 0 if an event can be released now or
+	 *         -1 if no event is held back
+	 */
+	public long getDelay(long now) {
+		if (used == 0)
+			return -1;
+		long delay = readTimes[head] + window - now;
+		return delay < 0 ? 0 : delay;
+	}
+
+	/**
+	 * Removes and returns the oldest held back event if its window has
+	 * passed.
+	 *
+	 * @param now
+	 *        the current time in nanoseconds
+	 * @param force
+	 *        true to release the event without waiting for its window
+	 * @return the released event or {@code null} if no event can be released
+	 */
+	public INotifyEvent poll(long now, boolean force) {
+		if (used == 0)
+			return null;
+		if (!force && now - readTimes[head] < window)
+			return null;
+		return removeHead();
+	}
+
+	/**
+	 * Removes and returns the oldest held back event of a watch without
+	 * waiting for its window.
+	 *
+	 * @param watchDescriptor
+	 *        the watch descriptor of the directory
+	 * @return the released event or {@code null} if no event of the watch is
+	 *         held back
+	 */
+	public INotifyEvent pollWatch(long watchDescriptor) {
+		for (int i = 0; i < used; i++) {
+			int index = (head + i) % events.length;
+			INotifyEvent e = events[index];
+			if (e != null && e.getWatchDescriptor() == watchDescriptor) {
+				events[index] = null;
+				skipPaired();
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all held back events.
+	 */
+	public void clear() {
+		for (int i = 0; i < events.length; i++)
+			events[i] = null;
+		head = 0;
+		used = 0;
+	}
+
+	private INotifyEvent removeHead() {
+		INotifyEvent e = events[head];
+		events[head] = null;
+		head = (head + 1) % events.length;
+		used--;
+		skipPaired();
+		return e;
+	}
+
+	/**
+	 * Frees the slots of paired events at both ends of the ring, so head
+	 * always refers to a held back event.
+	 */
+	private void skipPaired() {
+		while (used > 0 && events[head] == null) {
+			head = (head + 1) % events.length;
+			used--;
+		}
+		while (used > 0 && events[(head + used - 1) % events.length] == null)
+			used--;
+	}
+
+}
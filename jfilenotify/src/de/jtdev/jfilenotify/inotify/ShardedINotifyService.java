@@ -0,0 +1,332 @@
+package de.jtdev.jfilenotify.inotify;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.FileNotifyService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FileNotifyService that spreads its watches over several
+ * {@link INotifyService} instances, the shards. Every shard has its own
+ * inotify instance, its own thread and its own table of watches, so the
+ * registration, the reading and the dispatching of events of different shards
+ * run in parallel.
+ *
+ * <p>Sharding doesn't raise the limit of watches. The kernel limits the
+ * watches of all inotify instances of a user by
+ * {@link INotifyLimits#getMaxUserWatches()}, so all shards share the same
+ * limit, see {@link #getWatchLimit()}. A limit that is set with
+ * {@link INotifyService.Builder#admission(AdmissionPolicy, int)} applies to
+ * each shard.</p>
+ *
+ * <p>A listener is assigned to a shard by the hash of its file name and
+ * receives its events from the thread of that shard. The events of one shard
+ * reach its listeners in order, there is no order between the events of
+ * different shards. A file that is watched under two different names may be
+ * watched by two shards. A recursive listener watches its whole tree with the
+ * shard of its directory, so moves inside of the tree can be followed.</p>
+ */
+public class ShardedINotifyService implements FileNotifyService {
+
+	/**
+	 * The time in seconds an idle registration thread is kept.
+	 */
+	private static final long REGISTRAR_KEEP_ALIVE = 5;
+
+	private final INotifyService[] shards;
+
+	/**
+	 * The threads that register the listeners of the shards in parallel or
+	 * {@code null} if there is only one shard. If all threads are busy, the
+	 * calling thread registers the listeners itself.
+	 */
+	private final ThreadPoolExecutor registrars;
+
+	/**
+	 * Creates a service with one shard per processor and the default options
+	 * for every shard.
+	 *
+	 * @throws FileNotifyException
+	 *         if not all inotify instances could be allocated.
+	 */
+	public ShardedINotifyService() throws FileNotifyException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a service with the given number of shards and the default
+	 * options for every shard.
+	 *
+	 * @param shardCount
+	 *        the number of inotify instances
+	 * @throws FileNotifyException
+	 *         if not all inotify instances could be allocated.
+	 */
+	public ShardedINotifyService(int shardCount) throws FileNotifyException {
+		this(shardCount, new INotifyService.Builder());
+	}
+
+	/**
+	 * Creates a service with the given number of shards, which are built with
+	 * the options of the builder. The shards share the executor and the
+	 * reactor of the builder, if they are set. Shards that use a reactor
+	 * share its thread, which limits the parallelism.
+	 *
+	 * @param shardCount
+	 *        the number of inotify instances
+	 * @param builder
+	 *        the options of the shards
+	 * @throws IllegalArgumentException
+	 *         if shardCount is less than one or if the builder exports
+	 *         metrics or creates its own executor
+	 * @throws FileNotifyException
+	 *         if not all inotify instances could be allocated.
+	 */
+	public ShardedINotifyService(int shardCount, INotifyService.Builder builder) throws FileNotifyException {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("At least one shard is needed: " + shardCount);
+		if (!builder.isReusable())
+			throw new IllegalArgumentException("The options can't be shared by several shards");
+		shards = new INotifyService[shardCount];
+		registrars = shardCount == 1 ? null : new ThreadPoolExecutor(0, shardCount - 1,
+				REGISTRAR_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ShardRegistration");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						r.run(); // all threads are busy or the service is disposed
+					}
+				});
+		try {
+			for (int i = 0; i < shardCount; i++)
+				shards[i] = builder.build();
+		} catch (FileNotifyException ex) {
+			disposeShards();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns a shard, for example to read its metrics.
+	 *
+	 * @param index
+	 *        the index of the shard
+	 * @return the shard
+	 */
+	public INotifyService getShard(int index) {
+		return shards[index];
+	}
+
+	/**
+	 * Returns the shard that watches the file of the listener.
+	 *
+	 * @param listener
+	 *        the listener
+	 * @return the shard
+	 */
+	public INotifyService getShard(FileNotifyListener listener) {
+		return shards[shardOf(listener)];
+	}
+
+	/**
+	 * Returns the number of watches of all shards.
+	 *
+	 * @return the number of watches
+	 */
+	public int getWatchCount() {
+		int count = 0;
+		for (int i = 0; i < shards.length; i++)
+			count += shards[i].getWatchCount();
+		return count;
+	}
+
+	/**
+	 * Returns the limit of watches that all shards share with each other and
+	 * with the other inotify instances of the user.
+	 *
+	 * @return the limit or -1 if it could not be read
+	 * @see INotifyLimits#getMaxUserWatches()
+	 */
+	public int getWatchLimit() {
+		return INotifyLimits.getMaxUserWatches();
+	}
+
+	private int shardOf(FileNotifyListener listener) {
+		int h = listener.getFileName().hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		getShard(listener).addFileNotifyListener(listener);
+	}
+
+	/**
+	 * Adds many listeners at once. The listeners of each shard are registered
+	 * by a single call and the shards are registered in parallel. Listeners
+	 * that could be registered stay registered, even if an exception is 
+	 * thrown for the others.
+	 *
+	 * @param listeners
+	 *        the listeners to add
+	 * @throws FileNotifyException
+	 *         if some listeners could not be registered, the exception of the
+	 *         first failed shard is thrown
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException {
+		final List<List<FileNotifyListener>> partitions = new ArrayList<List<FileNotifyListener>>(shards.length);
+		for (int i = 0; i < shards.length; i++)
+			partitions.add(new ArrayList<FileNotifyListener>());
+		for (FileNotifyListener l : listeners)
+			partitions.get(shardOf(l)).add(l);
+
+		// the calling thread registers the first partition itself
+		final FileNotifyException[] failures = new FileNotifyException[shards.length];
+		List<Integer> others = new ArrayList<Integer>();
+		int own = -1;
+		for (int i = 0; i < shards.length; i++) {
+			if (partitions.get(i).isEmpty())
+				continue;
+			if (own < 0)
+				own = i;
+			else
+				others.add(Integer.valueOf(i));
+		}
+		final CountDownLatch done = new CountDownLatch(others.size());
+		for (Integer i : others) {
+			final int shard = i.intValue();
+			registrars.execute(new Runnable() {
+				public void run() {
+					try {
+						failures[shard] = register(shard, partitions.get(shard));
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		if (own >= 0)
+			failures[own] = register(own, partitions.get(own));
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		for (int i = 0; i < failures.length; i++) {
+			if (failures[i] != null)
+				throw failures[i];
+		}
+	}
+
+	private FileNotifyException register(int shard, List<FileNotifyListener> listeners) {
+		try {
+			shards[shard].addFileNotifyListeners(listeners);
+			return null;
+		} catch (FileNotifyException ex) {
+			return ex;
+		}
+	}
+
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		getShard(listener).addRecursiveFileNotifyListener(listener);
+	}
+
+	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		return getShard(listener).removeFileNotifyListener(listener);
+	}
+
+	/**
+	 * Returns the number of events of all shards that were dropped, because
+	 * the queue of a listener was full.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedEventCount() {
+		long count = 0;
+		for (int i = 0; i < shards.length; i++)
+			count += shards[i].getDroppedEventCount();
+		return count;
+	}
+
+	/**
+	 * Pauses all shards.
+	 *
+	 * @see INotifyService#pause()
+	 */
+	public void pause() {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].pause();
+	}
+
+	/**
+	 * Resumes all shards.
+	 *
+	 * @throws FileNotifyException
+	 *         if a shard could not be resumed
+	 * @see INotifyService#resume()
+	 */
+	public void resume() throws FileNotifyException {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].resume();
+	}
+
+	/**
+	 * Disposes all shards. All shards are disposed, even if one of them
+	 * fails.
+	 *
+	 * @throws FileNotifyException
+	 *         if not all resources could be freed, the exception of the first
+	 *         failed shard is thrown.
+	 */
+	public void dispose() throws FileNotifyException {
+		FileNotifyException failure = disposeShards();
+		if (failure != null)
+			throw failure;
+	}
+
+	private FileNotifyException disposeShards() {
+		if (registrars != null)
+			registrars.shutdown();
+		FileNotifyException failure = null;
+		for (int i = 0; i < shards.length; i++) {
+			if (shards[i] == null)
+				continue;
+			try {
+				shards[i].dispose();
+			} catch (FileNotifyException ex) {
+				if (failure == null)
+					failure = ex;
+			}
+		}
+		return failure;
+	}
+
+}
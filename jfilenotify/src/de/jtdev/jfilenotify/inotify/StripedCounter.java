@@ -0,0 +1,70 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is spread over several cells, so threads that increment it
+ * at the same time rarely touch the same cache line. A thread always uses the
+ * cell chosen by its id. Reading the counter sums up all cells, so it is
+ * more expensive than an increment.
+ */
+public class StripedCounter {
+
+	/**
+	 * The distance of two cells in longs, so every cell has its own cache
+	 * line.
+	 */
+	private static final int PADDING = 16;
+
+	/**
+	 * The maximal number of cells.
+	 */
+	private static final int MAX_STRIPES = 16;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * Creates a new counter with one cell per processor, but at most
+	 * {@value #MAX_STRIPES} cells.
+	 */
+	public StripedCounter() {
+		int stripes = 1;
+		int processors = Runtime.getRuntime().availableProcessors();
+		while (stripes < processors && stripes < MAX_STRIPES)
+			stripes <<= 1;
+		cells = new AtomicLongArray(stripes * PADDING);
+		mask = stripes - 1;
+	}
+
+	/**
+	 * Adds the given value.
+	 *
+	 * @param x
+	 *        the value to add
+	 */
+	public void add(long x) {
+		cells.addAndGet(((int) Thread.currentThread().getId() & mask) * PADDING, x);
+	}
+
+	/**
+	 * Adds one.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Returns the sum of all cells. Increments that happen concurrently may
+	 * or may not be included.
+	 *
+	 * @return the current value
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+}
@@ -0,0 +1,217 @@
+package de.jtdev.jfilenotify.inotify;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash table that maps watch descriptors to their {@link ListenerGroup}. It
+ * uses open addressing with linear probing, so a lookup neither allocates
+ * objects nor takes a lock. This makes it suitable for the reading thread,
+ * which has to find the group of every incomming event.
+ *
+ * <p>Modifications are synchronized on the table. They never change a slot
+ * array that could still be read by a concurrent lookup in a way that breaks
+ * the probing: removed groups are replaced by a marker and a grown table is
+ * published as a new array.</p>
+ */
+public class WatchDescriptorTable {
+
+	/**
+	 * Marks a slot whose group was removed. Lookups have to probe beyond it.
+	 */
+	private static final ListenerGroup REMOVED = new ListenerGroup(Long.MIN_VALUE);
+
+	/**
+	 * The initial number of slots, must be a power of two.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The slots of the table. The length is always a power of two and at most
+	 * the half of the slots is used, so every probe sequence ends at an empty
+	 * slot.
+	 */
+	private volatile AtomicReferenceArray<ListenerGroup> slots =
+			new AtomicReferenceArray<ListenerGroup>(INITIAL_CAPACITY);
+
+	/**
+	 * The number of stored groups.
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * The number of slots that are not empty, including removed ones.
+	 */
+	private int usedSlots = 0;
+
+	/**
+	 * Returns the group for the given watch descriptor. This method doesn't
+	 * lock.
+	 *
+	 * @param watchDescriptor
+	 *        the watch descriptor to search for
+	 * @return the group or {@code null} if no group is stored for the watch
+	 *         descriptor
+	 */
+	public ListenerGroup get(long watchDescriptor) {
+		AtomicReferenceArray<ListenerGroup> s = slots;
+		int m = s.length() - 1;
+		int i = indexFor(watchDescriptor, m);
+		while (true) {
+			ListenerGroup g = s.get(i);
+			if (g == null)
+				return null;
+			if (g != REMOVED && g.getWatchDescriptor() == watchDescriptor)
+				return g;
+			i = (i + 1) & m;
+		}
+	}
+
+	/**
+	 * Stores the group under its watch descriptor. A group previously stored
+	 * for the same watch descriptor is replaced.
+	 *
+	 * @param group
+	 *        the group to store
+	 */
+	public synchronized void put(ListenerGroup group) {
+		if ((usedSlots + 1) * 2 > slots.length())
+			rehash();
+
+		AtomicReferenceArray<ListenerGroup> s = slots;
+		int m = s.length() - 1;
+		long watchDescriptor = group.getWatchDescriptor();
+		int i = indexFor(watchDescriptor, m);
+		int free = -1;
+		while (true) {
+			ListenerGroup g = s.get(i);
+			if (g == null)
+				break;
+			if (g == REMOVED) {
+				if (free < 0)
+					free = i;
+			} else if (g.getWatchDescriptor() == watchDescriptor) {
+				s.set(i, group);
+				return;
+			}
+			i = (i + 1) & m;
+		}
+		if (free < 0) {
+			free = i;
+			usedSlots++;
+		}
+		s.set(free, group);
+		size++;
+	}
+
+	/**
+	 * Removes the group stored for the given watch descriptor.
+	 *
+	 * @param watchDescriptor
+	 *        the watch descriptor of the group
+	 * @return the removed group or {@code null} if no group was stored for the
+	 *         watch descriptor
+	 */
+	public synchronized ListenerGroup remove(long watchDescriptor) {
+		AtomicReferenceArray<ListenerGroup> s = slots;
+		int m = s.length() - 1;
+		int i = indexFor(watchDescriptor, m);
+		while (true) {
+			ListenerGroup g = s.get(i);
+			if (g == null)
+				return null;
+			if (g != REMOVED && g.getWatchDescriptor() == watchDescriptor) {
+				s.set(i, REMOVED);
+				size--;
+				return g;
+			}
+			i = (i + 1) & m;
+		}
+	}
+
+	/**
+	 * Removes all groups from this table.
+	 */
+	public synchronized void clear() {
+		slots = new AtomicReferenceArray<ListenerGroup>(INITIAL_CAPACITY);
+		size = 0;
+		usedSlots = 0;
+	}
+
+	/**
+	 * Returns true if no group is stored in this table.
+	 *
+	 * @return true if this table is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the number of groups stored in this table.
+	 *
+	 * @return the number of groups
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a snapshot of all groups stored in this table.
+	 *
+	 * @return an array containing all groups
+	 */
+	public synchronized ListenerGroup[] toArray() {
+		ListenerGroup[] groups = new ListenerGroup[size];
+		AtomicReferenceArray<ListenerGroup> s = slots;
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			ListenerGroup g = s.get(i);
+			if (g != null && g != REMOVED)
+				groups[n++] = g;
+		}
+		return groups;
+	}
+
+	/**
+	 * Copies all groups into a new slot array that is large enough to keep
+	 * the table at most half full and drops the removed markers. The new
+	 * array is published after it is filled.
+	 */
+	private void rehash() {
+		int capacity = INITIAL_CAPACITY;
+		while ((size + 1) * 4 > capacity)
+			capacity <<= 1;
+
+		AtomicReferenceArray<ListenerGroup> old = slots;
+		AtomicReferenceArray<ListenerGroup> s = new AtomicReferenceArray<ListenerGroup>(capacity);
+		int m = capacity - 1;
+		for (int j = 0; j < old.length(); j++) {
+			ListenerGroup g = old.get(j);
+			if (g == null || g == REMOVED)
+				continue;
+			int i = indexFor(g.getWatchDescriptor(), m);
+			while (s.get(i) != null)
+				i = (i + 1) & m;
+			s.set(i, g);
+		}
+		usedSlots = size;
+		slots = s;
+	}
+
+	/**
+	 * Computes the start slot for a watch descriptor. The kernel hands out
+	 * small increasing numbers, they are spread to avoid long probe sequences
+	 * after groups were removed.
+	 *
+	 * @param watchDescriptor
+	 *        the watch descriptor
+	 * @param mask
+	 *        the length of the slot array minus one
+	 * @return the index of the first slot to probe
+	 */
+	private static int indexFor(long watchDescriptor, int mask) {
+		int h = (int) (watchDescriptor ^ (watchDescriptor >>> 32)) * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+}
@@ -0,0 +1,24 @@
+package de.jtdev.jfilenotify.inotify;
+
+/**
+ * Signals that a watch could not be added, because the limit of watches was
+ * reached. Either the kernel refused the watch, because the user reached
+ * {@code /proc/sys/fs/inotify/max_user_watches}, or the service reached the
+ * limit set with {@link INotifyService.Builder#admission(AdmissionPolicy, int)}.
+ */
+public class WatchLimitException extends ErrnoException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructs a {@code WatchLimitException} with the specified detail
+	 * message.
+	 *
+	 * @param message
+	 *        the detail message
+	 */
+	public WatchLimitException(String message) {
+		super(message, ErrnoMessages.ENOSPC);
+	}
+
+}
@@ -0,0 +1,39 @@
+package de.jtdev.jfilenotify.polling;
+
+import de.jtdev.jfilenotify.FileNotifyEvent;
+
+/**
+ * An event found by comparing two states of a polled file.
+ */
+public class PollingEvent implements FileNotifyEvent {
+
+	private final int mask;
+	private final String fileName;
+
+	/**
+	 * Creates a new event.
+	 *
+	 * @param mask
+	 *        the mask of the event, see {@link de.jtdev.jfilenotify.FileNotifyConstants}
+	 * @param fileName
+	 *        the name of the changed entry or {@code null} if the polled file
+	 *        itself changed
+	 */
+	public PollingEvent(int mask, String fileName) {
+		this.mask = mask;
+		this.fileName = fileName;
+	}
+
+	public int getChangeMask() {
+		return mask;
+	}
+
+	public String getChangedFileName() {
+		return fileName;
+	}
+
+	public String toString() {
+		return "PollingEvent[mask=0x" + Integer.toHexString(mask) + ", name=" + fileName + "]";
+	}
+
+}
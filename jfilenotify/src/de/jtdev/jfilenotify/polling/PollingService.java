@@ -0,0 +1,520 @@
+package de.jtdev.jfilenotify.polling;
+
+import de.jtdev.jfilenotify.FileNotifyException;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import de.jtdev.jfilenotify.FileNotifyService;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a FileNotifyService that polls the watched files
+ * instead of relying on the operating system. It works on every file system,
+ * also on network and FUSE file systems that inotify can't see, but changes
+ * are only noticed at the next poll and a file that changes twice between
+ * two polls is reported once. It needs no native library.
+ *
+ * <p>A thread compares the state of every watched file with its state at the
+ * last poll and calls the listeners of the file with the differences, using
+ * the masks of {@link de.jtdev.jfilenotify.FileNotifyConstants}. For a
+ * directory the created, deleted and modified entries are reported, for a
+ * file that it was modified. A file that no longer exists is reported as
+ * deleted and its listeners are discarded. Moves are reported as deleted and
+ * created entries.</p>
+ *
+ * <p>The directories are read by {@link #DEFAULT_PARALLELISM} threads in
+ * parallel, which hides the latency of network file systems. The states of
+ * the directories are packed into shared slabs outside of the java heap. The
+ * interval between two polls shrinks while changes are found and grows while
+ * nothing changes. A service with other than the default options can be
+ * created with a {@link PollingService.Builder}.</p>
+ */
+public class PollingService implements FileNotifyService {
+
+	/**
+	 * The default interval of {@link #PollingService(long)}.
+	 */
+	public static final long DEFAULT_INTERVAL = 2000;
+
+	/**
+	 * The default shortest time between two polls in milliseconds.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 500;
+
+	/**
+	 * The default longest time between two polls in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL = 8000;
+
+	/**
+	 * The default number of threads that read the directories.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final Logger LOG = Logger.getLogger(PollingService.class.getName());
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final int parallelism;
+
+	/**
+	 * The time until the next poll in milliseconds.
+	 */
+	private volatile long interval;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The threads that help the polling thread to read the directories or
+	 * {@code null} if it reads them alone.
+	 */
+	private final ExecutorService scanners;
+
+	/**
+	 * The watched files by their normalized name. Modifications are
+	 * synchronized on the map.
+	 */
+	private final HashMap<String, PollingWatch> files = new HashMap<String, PollingWatch>();
+
+	/**
+	 * The watched directory trees by their listener. Modifications are
+	 * synchronized on {@link #files}.
+	 */
+	private final HashMap<FileNotifyListener, PollingWatch> trees = new HashMap<FileNotifyListener, PollingWatch>();
+
+	/**
+	 * The watches that were removed since the last poll. Their memory is
+	 * released by the polling thread, because a poll that is running may
+	 * still scan them. Synchronized on {@link #files}.
+	 */
+	private final List<PollingWatch> removed = new ArrayList<PollingWatch>();
+
+	/**
+	 * The direct memory of the states of all polled directories.
+	 */
+	private final SlabAllocator allocator = new SlabAllocator();
+
+	/**
+	 * The scratch arrays of the polling thread and of every scanner thread.
+	 * Only the polling thread hands them out.
+	 */
+	private final StatTable.Scratch[] scratches;
+
+	private volatile boolean isDisposed = false;
+
+	/**
+	 * Creates a service with the default options.
+	 */
+	public PollingService() {
+		this(new Builder());
+	}
+
+	/**
+	 * Creates a service that polls with a fixed interval.
+	 *
+	 * @param intervalMillis
+	 *        the time between two polls in milliseconds
+	 */
+	public PollingService(long intervalMillis) {
+		this(new Builder().interval(intervalMillis));
+	}
+
+	private PollingService(Builder builder) {
+		minInterval = builder.minInterval;
+		maxInterval = builder.maxInterval;
+		parallelism = builder.parallelism;
+		interval = minInterval;
+		scratches = new StatTable.Scratch[parallelism];
+		for (int i = 0; i < scratches.length; i++)
+			scratches[i] = new StatTable.Scratch();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PollingService");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scanners = parallelism < 2 ? null : Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PollingService-Scanner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		schedule();
+	}
+
+	public void addFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		File file = new File(listener.getFileName());
+		synchronized (files) {
+			PollingWatch w = files.get(file.getPath());
+			if (w == null) {
+				w = new PollingWatch(file, false, allocator);
+				if (!w.exists()) {
+					w.release();
+					throw new FileNotifyException("Listener could not be registered (No such file or directory)");
+				}
+				files.put(file.getPath(), w);
+			}
+			w.getListeners().addIfAbsent(listener);
+		}
+	}
+
+	/**
+	 * Adds many listeners at once. Listeners whose file does not exist are
+	 * skipped, all other listeners stay registered.
+	 *
+	 * @param listeners
+	 *        the listeners to add
+	 * @throws FileNotifyException
+	 *         if the file of at least one listener could not be registered
+	 */
+	public void addFileNotifyListeners(Collection<? extends FileNotifyListener> listeners) throws FileNotifyException {
+		int failed = 0;
+		for (FileNotifyListener l : listeners) {
+			try {
+				addFileNotifyListener(l);
+			} catch (FileNotifyException ex) {
+				if (isDisposed)
+					throw ex;
+				failed++;
+			}
+		}
+		if (failed > 0)
+			throw new FileNotifyException(failed + " of " + listeners.size() + " listeners could not be registered (No such file or directory)");
+	}
+
+	/**
+	 * Polls the directory of the listener and all of its subdirectories.
+	 * The file names of the events are relative to the directory of the
+	 * listener. Symbolic links to directories are not followed. The entries
+	 * of a new subdirectory are reported as created, a deleted subdirectory
+	 * is reported without its entries.
+	 *
+	 * @param listener
+	 *        the listener that receives the events of the tree
+	 * @throws FileNotifyException
+	 *         if the file of the listener is not a directory
+	 */
+	public void addRecursiveFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		if (isDisposed)
+			throw new FileNotifyException("Can't add listener to disposed service");
+		File root = new File(listener.getFileName());
+		if (!root.isDirectory())
+			throw new FileNotifyException("Not a directory: " + root);
+		synchronized (files) {
+			if (trees.containsKey(listener))
+				return;
+		}
+		// the tree is read without holding the lock
+		PollingWatch w = new PollingWatch(root, true, allocator);
+		w.getListeners().add(listener);
+		synchronized (files) {
+			if (!trees.containsKey(listener)) {
+				trees.put(listener, w);
+				return;
+			}
+		}
+		w.release();
+	}
+
+	public boolean removeFileNotifyListener(FileNotifyListener listener) throws FileNotifyException {
+		String key = new File(listener.getFileName()).getPath();
+		synchronized (files) {
+			PollingWatch tree = trees.remove(listener);
+			if (tree != null) {
+				removed.add(tree);
+				return true;
+			}
+			PollingWatch w = files.get(key);
+			if (w == null || !w.getListeners().remove(listener))
+				return false;
+			if (w.getListeners().isEmpty()) {
+				files.remove(key);
+				removed.add(w);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the number of polled files and directory trees.
+	 *
+	 * @return the number of watches
+	 */
+	public int getWatchCount() {
+		synchronized (files) {
+			return files.size() + trees.size();
+		}
+	}
+
+	/**
+	 * Returns the number of polled files and directories, the directories of
+	 * a tree are counted separately.
+	 *
+	 * @return the number of polled paths
+	 */
+	public int getPathCount() {
+		int count = 0;
+		for (PollingWatch w : getWatches())
+			count += w.getPathCount();
+		return count;
+	}
+
+	/**
+	 * Returns the current time between two polls.
+	 *
+	 * @return the interval in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Disposes this service. The threads stop polling, events of a poll that
+	 * is running may still be delivered.
+	 */
+	public void dispose() throws FileNotifyException {
+		isDisposed = true;
+		scheduler.shutdownNow();
+		if (scanners != null)
+			scanners.shutdownNow();
+		synchronized (files) {
+			files.clear();
+			trees.clear();
+		}
+	}
+
+	private PollingWatch[] getWatches() {
+		synchronized (files) {
+			List<PollingWatch> watches = new ArrayList<PollingWatch>(files.size() + trees.size());
+			watches.addAll(files.values());
+			watches.addAll(trees.values());
+			return watches.toArray(new PollingWatch[watches.size()]);
+		}
+	}
+
+	private void schedule() {
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					boolean changed = false;
+					try {
+						changed = poll();
+					} catch (RuntimeException ex) {
+						LOG.log(Level.SEVERE, "Poll failed", ex);
+					}
+					adaptInterval(changed);
+					if (!isDisposed)
+						schedule();
+				}
+			}, interval, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// disposed
+		}
+	}
+
+	/**
+	 * Halves the interval after a poll that found changes, otherwise lets it
+	 * grow by half.
+	 */
+	private void adaptInterval(boolean changed) {
+		long i = interval;
+		if (changed)
+			i = Math.max(minInterval, i / 2);
+		else
+			i = Math.min(maxInterval, i + Math.max(1, i / 2));
+		interval = i;
+	}
+
+	/**
+	 * Scans all watches and passes the differences to their listeners.
+	 *
+	 * @return true if something changed
+	 */
+	boolean poll() {
+		releaseRemoved();
+		PollingWatch[] watches = getWatches();
+		List<PollingWatch.PolledPath> paths = new ArrayList<PollingWatch.PolledPath>();
+		for (PollingWatch w : watches)
+			w.collectPaths(paths);
+		if (!scanAll(paths.toArray(new PollingWatch.PolledPath[paths.size()])))
+			return false;
+
+		boolean changed = false;
+		for (PollingWatch w : watches) {
+			if (isDisposed)
+				return changed;
+			changed |= w.update(scratches[0]);
+			if (w.getListeners().isEmpty())
+				remove(w); // the file was deleted
+		}
+		if (LOG.isLoggable(Level.FINEST))
+			LOG.finest("Polled " + paths.size() + " paths, changed=" + changed);
+		return changed;
+	}
+
+	private void remove(PollingWatch w) {
+		synchronized (files) {
+			if (files.get(w.getRoot().getPath()) == w)
+				files.remove(w.getRoot().getPath());
+			trees.values().remove(w);
+			removed.add(w);
+		}
+	}
+
+	/**
+	 * Releases the memory of the watches that were removed since the last
+	 * poll. Called by the polling thread before it scans.
+	 */
+	private void releaseRemoved() {
+		PollingWatch[] watches;
+		synchronized (files) {
+			if (removed.isEmpty())
+				return;
+			watches = removed.toArray(new PollingWatch[removed.size()]);
+			removed.clear();
+		}
+		for (PollingWatch w : watches)
+			w.release();
+	}
+
+	/**
+	 * Scans the paths with the polling thread and the scanner threads. Every
+	 * thread takes the next path that was not scanned yet.
+	 *
+	 * @return false if the polling thread was interrupted
+	 */
+	private boolean scanAll(final PollingWatch.PolledPath[] paths) {
+		final AtomicInteger next = new AtomicInteger();
+		int helpers = scanners == null ? 0 : Math.min(parallelism - 1, paths.length - 1);
+		final CountDownLatch done = new CountDownLatch(Math.max(0, helpers));
+		for (int h = 0; h < helpers; h++) {
+			final StatTable.Scratch scratch = scratches[h + 1];
+			try {
+				scanners.execute(new Runnable() {
+					public void run() {
+						try {
+							scan(paths, next, scratch);
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				done.countDown(); // disposed, the polling thread scans alone
+			}
+		}
+		scan(paths, next, scratches[0]);
+		try {
+			done.await();
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Scans the next path that was not scanned yet, until all paths are
+	 * scanned.
+	 */
+	private static void scan(PollingWatch.PolledPath[] paths, AtomicInteger next, StatTable.Scratch scratch) {
+		int i;
+		while ((i = next.getAndIncrement()) < paths.length)
+			paths[i].scan(scratch);
+	}
+
+	/**
+	 * Creates {@link PollingService} instances with non default options.
+	 * Options that are not set keep their default value.
+	 */
+	public static class Builder {
+
+		private long minInterval = DEFAULT_MIN_INTERVAL;
+		private long maxInterval = DEFAULT_MAX_INTERVAL;
+		private int parallelism = DEFAULT_PARALLELISM;
+
+		/**
+		 * Creates a builder with the default options.
+		 */
+		public Builder() {
+		}
+
+		/**
+		 * Sets a fixed time between two polls.
+		 *
+		 * @param intervalMillis
+		 *        the time in milliseconds
+		 * @return this builder
+		 */
+		public Builder interval(long intervalMillis) {
+			return interval(intervalMillis, intervalMillis);
+		}
+
+		/**
+		 * Sets the range of the time between two polls. The first poll waits
+		 * the shortest time. After a poll that found changes the time is
+		 * halved, after a poll without changes it grows by half. Defaults to
+		 * {@link PollingService#DEFAULT_MIN_INTERVAL} and
+		 * {@link PollingService#DEFAULT_MAX_INTERVAL}.
+		 *
+		 * @param minMillis
+		 *        the shortest time in milliseconds
+		 * @param maxMillis
+		 *        the longest time in milliseconds
+		 * @return this builder
+		 */
+		public Builder interval(long minMillis, long maxMillis) {
+			if (minMillis <= 0)
+				throw new IllegalArgumentException("Interval must be positive: " + minMillis);
+			if (maxMillis < minMillis)
+				throw new IllegalArgumentException("Longest interval is shorter than shortest: " + maxMillis);
+			this.minInterval = minMillis;
+			this.maxInterval = maxMillis;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads that read the directories. The polling
+		 * thread is one of them. Defaults to
+		 * {@link PollingService#DEFAULT_PARALLELISM}.
+		 *
+		 * @param threads
+		 *        the number of threads
+		 * @return this builder
+		 */
+		public Builder parallelism(int threads) {
+			if (threads < 1)
+				throw new IllegalArgumentException("At least one thread is needed: " + threads);
+			this.parallelism = threads;
+			return this;
+		}
+
+		/**
+		 * Creates a new service with the options of this builder and starts
+		 * its threads.
+		 *
+		 * @return the new service
+		 */
+		public PollingService build() {
+			return new PollingService(this);
+		}
+
+	}
+
+}
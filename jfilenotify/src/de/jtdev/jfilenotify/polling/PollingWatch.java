@@ -0,0 +1,375 @@
+package de.jtdev.jfilenotify.polling;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import de.jtdev.jfilenotify.FileNotifyListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A polled file or directory tree with its listeners. A plain watch polls a
+ * single file or directory, a recursive watch polls a directory and all of
+ * its subdirectories, symbolic links are not followed. The names of the
+ * events of a recursive watch are relative to its directory.
+ *
+ * <p>The paths are scanned by the threads of the {@link PollingService}, the
+ * differences are computed and delivered by its polling thread.</p>
+ */
+class PollingWatch {
+
+	/**
+	 * The time in milliseconds the modification time of a directory must be
+	 * older than its last scan, before the directory is trusted to be
+	 * unchanged while its modification time stays the same. It covers the
+	 * granularity of the time stamps of the file system and the difference
+	 * between the clocks of a network file system and this host.
+	 */
+	static final long STABLE_AGE = 10000;
+
+	private static final Logger LOG = Logger.getLogger(PollingWatch.class.getName());
+
+	private final File root;
+	private final boolean recursive;
+	private final SlabAllocator allocator;
+	private final CopyOnWriteArrayList<FileNotifyListener> listeners = new CopyOnWriteArrayList<FileNotifyListener>();
+
+	/**
+	 * The polled paths by their path relative to the root, so a directory is
+	 * always handled before its subdirectories. Only the polling thread
+	 * accesses it after the watch was added.
+	 */
+	private final TreeMap<String, PolledPath> paths = new TreeMap<String, PolledPath>();
+
+	/**
+	 * Creates a watch and scans its paths for the first time.
+	 *
+	 * @param root
+	 *        the polled file or directory
+	 * @param recursive
+	 *        true to poll all subdirectories of the directory
+	 * @param allocator
+	 *        the allocator of the states of the paths
+	 */
+	PollingWatch(File root, boolean recursive, SlabAllocator allocator) {
+		this.root = root;
+		this.recursive = recursive;
+		this.allocator = allocator;
+		StatTable.Scratch scratch = new StatTable.Scratch();
+		PolledPath p = new PolledPath(root, "", allocator, scratch);
+		paths.put("", p);
+		if (recursive)
+			addSubdirectories(p, scratch);
+	}
+
+	/**
+	 * Returns the polled file or directory.
+	 *
+	 * @return the root of the watch
+	 */
+	File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns true if the polled file existed at the last scan.
+	 *
+	 * @return true if the file existed
+	 */
+	boolean exists() {
+		return paths.get("").current.exists();
+	}
+
+	/**
+	 * Returns the listeners of this watch.
+	 *
+	 * @return the listeners
+	 */
+	CopyOnWriteArrayList<FileNotifyListener> getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * Adds the paths of this watch that are scanned by the next poll to the
+	 * collection.
+	 *
+	 * @param scans
+	 *        the collection that receives the paths
+	 */
+	void collectPaths(Collection<PolledPath> scans) {
+		boolean entryModifications = (getMask() & FileNotifyConstants.MODIFIED) != 0;
+		for (PolledPath p : paths.values()) {
+			p.entryModifications = entryModifications;
+			scans.add(p);
+		}
+	}
+
+	/**
+	 * Returns the number of polled paths.
+	 *
+	 * @return the number of paths
+	 */
+	int getPathCount() {
+		return paths.size();
+	}
+
+	private int getMask() {
+		int mask = 0;
+		for (FileNotifyListener l : listeners)
+			mask |= l.getMask();
+		return mask;
+	}
+
+	/**
+	 * Returns the memory of the states of all paths to the allocator. Must
+	 * not be called while the watch is scanned or updated.
+	 */
+	void release() {
+		for (PolledPath p : paths.values())
+			p.release();
+		paths.clear();
+	}
+
+	/**
+	 * Compares the scanned paths with their last state and passes the
+	 * differences to the listeners. New subdirectories of a recursive watch
+	 * are scanned immediately, so their entries are reported as created.
+	 *
+	 * @param scratch
+	 *        the scratch arrays of the polling thread
+	 * @return true if something changed
+	 */
+	boolean update(StatTable.Scratch scratch) {
+		List<PollingEvent> events = new ArrayList<PollingEvent>();
+		PollingEvent deleted = null;
+		for (PolledPath p : paths.values().toArray(new PolledPath[paths.size()])) {
+			if (!paths.containsKey(p.path))
+				continue; // a parent was deleted
+			if (!p.exists()) {
+				// a subdirectory is reported by its parent
+				if (p.path.length() == 0) {
+					p.diff(events);
+					deleted = events.get(events.size() - 1);
+				}
+				continue;
+			}
+			int start = events.size();
+			p.diff(events);
+			if (recursive)
+				followDirectories(events, start, scratch);
+		}
+		for (PollingEvent e : events)
+			notifyAllListeners(e);
+		if (deleted != null)
+			discardAllListeners(deleted);
+		return !events.isEmpty();
+	}
+
+	/**
+	 * Adds and removes the subdirectories reported by the events from the
+	 * given index on.
+	 */
+	private void followDirectories(List<PollingEvent> events, int start, StatTable.Scratch scratch) {
+		int end = events.size();
+		for (int i = start; i < end; i++) {
+			PollingEvent e = events.get(i);
+			int mask = e.getChangeMask();
+			if ((mask & FileNotifyConstants.IS_DIRECTORY) == 0)
+				continue;
+			String path = e.getChangedFileName();
+			if ((mask & FileNotifyConstants.SUBFILE_DELETED) != 0) {
+				PolledPath p = paths.remove(path);
+				if (p != null)
+					p.release();
+				SortedMap<String, PolledPath> subdirectories = paths.subMap(path + File.separatorChar, path + (char) (File.separatorChar + 1));
+				for (PolledPath sub : subdirectories.values())
+					sub.release();
+				subdirectories.clear();
+			} else if ((mask & FileNotifyConstants.SUBFILE_CREATED) != 0) {
+				addDirectory(path, events, scratch);
+			}
+		}
+	}
+
+	/**
+	 * Adds a new subdirectory, whose entries are all reported as created.
+	 */
+	private void addDirectory(String path, List<PollingEvent> events, StatTable.Scratch scratch) {
+		File dir = new File(root, path);
+		if (paths.containsKey(path) || isSymbolicLink(dir))
+			return;
+		PolledPath p = new PolledPath(dir, path, allocator, null);
+		paths.put(path, p);
+		p.entryModifications = true;
+		p.scan(scratch);
+		if (!p.exists())
+			return; // deleted in the meantime
+		int start = events.size();
+		p.diff(events);
+		followDirectories(events, start, scratch);
+	}
+
+	/**
+	 * Adds the subdirectories of a scanned directory without reporting them.
+	 */
+	private void addSubdirectories(PolledPath parent, StatTable.Scratch scratch) {
+		File[] children = parent.file.listFiles();
+		if (children == null)
+			return;
+		for (File f : children) {
+			if (!f.isDirectory() || isSymbolicLink(f))
+				continue;
+			PolledPath p = new PolledPath(f, relativePath(parent.path, f.getName()), allocator, scratch);
+			paths.put(p.path, p);
+			addSubdirectories(p, scratch);
+		}
+	}
+
+	private static String relativePath(String parent, String name) {
+		return parent.length() == 0 ? name : parent + File.separatorChar + name;
+	}
+
+	private static boolean isSymbolicLink(File f) {
+		try {
+			File parent = f.getParentFile().getCanonicalFile();
+			return !new File(parent, f.getName()).getCanonicalFile().equals(new File(parent, f.getName()));
+		} catch (IOException ex) {
+			return true;
+		}
+	}
+
+	private void notifyAllListeners(PollingEvent event) {
+		for (FileNotifyListener l : listeners) {
+			if ((l.getMask() & event.getChangeMask()) == 0)
+				continue;
+			try {
+				l.notificationRecieved(event);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Listener failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Discards all listeners, because the polled file was deleted.
+	 *
+	 * @param event
+	 *        the event that reported the deletion
+	 */
+	void discardAllListeners(PollingEvent event) {
+		for (FileNotifyListener l : listeners) {
+			try {
+				l.discarded(event);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Listener failed", ex);
+			}
+		}
+		listeners.clear();
+	}
+
+	/**
+	 * A single polled file or directory with its last two states. The newer
+	 * state is scanned by any thread, the difference is computed by the
+	 * polling thread, after which the states change their roles.
+	 */
+	static final class PolledPath {
+
+		final File file;
+		final String path;
+		private final String prefix;
+		private StatTable current;
+		private StatTable scanned;
+		private boolean unchanged = false;
+
+		/**
+		 * True if the listeners want to know about modified entries, set by
+		 * the polling thread before the path is scanned.
+		 */
+		boolean entryModifications = true;
+
+		/**
+		 * Creates a path and scans it with the given scratch arrays. Without
+		 * scratch arrays the path is an empty directory until it is scanned.
+		 */
+		PolledPath(File file, String path, SlabAllocator allocator, StatTable.Scratch scratch) {
+			this.file = file;
+			this.path = path;
+			this.prefix = path.length() == 0 ? "" : path + File.separatorChar;
+			this.current = new StatTable(allocator);
+			this.scanned = new StatTable(allocator);
+			if (scratch != null)
+				current.scan(file, entryModifications, scratch);
+			else
+				current.clear();
+		}
+
+		/**
+		 * Scans the file. A directory whose modification time didn't change
+		 * is not read again, if no modified entries are needed. Entries can't
+		 * be added or removed without changing it.
+		 *
+		 * @param scratch
+		 *        the scratch arrays of the scanning thread
+		 */
+		void scan(StatTable.Scratch scratch) {
+			try {
+				if (!entryModifications && current.isDirectory()) {
+					long modified = file.lastModified();
+					if (modified != 0 && modified == current.getModified()
+							&& current.getScanTime() - modified > STABLE_AGE) {
+						unchanged = true;
+						return;
+					}
+				}
+				unchanged = false;
+				scanned.scan(file, entryModifications, scratch);
+			} catch (RuntimeException ex) {
+				// for example a SecurityException, the last state is kept
+				LOG.log(Level.WARNING, "Path could not be scanned: " + file, ex);
+				unchanged = true;
+			}
+		}
+
+		/**
+		 * Returns true if the file existed at the last scan.
+		 */
+		boolean exists() {
+			return unchanged || scanned.exists();
+		}
+
+		/**
+		 * Adds the differences between the last two scans to the list.
+		 */
+		void diff(List<PollingEvent> events) {
+			if (unchanged)
+				return;
+			current.diff(scanned, prefix, events);
+			StatTable t = current;
+			current = scanned;
+			scanned = t;
+		}
+
+		/**
+		 * Returns the direct memory used by the states of this path.
+		 */
+		int getCapacity() {
+			return current.getCapacity() + scanned.getCapacity();
+		}
+
+		/**
+		 * Returns the memory of both states to their allocator.
+		 */
+		void release() {
+			current.release();
+			scanned.release();
+		}
+
+	}
+
+}
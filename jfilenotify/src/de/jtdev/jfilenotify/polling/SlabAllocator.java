@@ -0,0 +1,115 @@
+package de.jtdev.jfilenotify.polling;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Hands out the direct memory of the {@link StatTable}s of a polling service.
+ * The memory is handed out in chunks whose size is a power of two. Chunks up
+ * to {@value #SLAB_SIZE} bytes are cut out of shared slabs of that size, so
+ * a directory doesn't need a direct buffer of its own, and a released chunk
+ * is reused by the next table that needs a chunk of the same size. A larger
+ * chunk gets its own buffer and is left to the garbage collector when it is
+ * released.
+ *
+ * <p>All methods may be called by any thread.</p>
+ */
+final class SlabAllocator {
+
+	/**
+	 * The size of a slab in bytes.
+	 */
+	static final int SLAB_SIZE = 1 << 20;
+
+	/**
+	 * The size of the smallest chunk in bytes.
+	 */
+	private static final int MIN_CHUNK = 1 << 8;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CHUNK);
+
+	/**
+	 * An empty buffer for tables that need no memory. It is shared and must
+	 * not be modified.
+	 */
+	static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+
+	/**
+	 * The released chunks by the binary logarithm of their size minus
+	 * {@link #MIN_SHIFT}.
+	 */
+	private final ArrayList<ArrayList<ByteBuffer>> free = new ArrayList<ArrayList<ByteBuffer>>();
+
+	private ByteBuffer slab = null;
+	private int slabUsed = 0;
+
+	SlabAllocator() {
+		for (int size = MIN_CHUNK; size <= SLAB_SIZE; size <<= 1)
+			free.add(new ArrayList<ByteBuffer>());
+	}
+
+	/**
+	 * Returns a chunk with at least the given capacity in native byte order.
+	 *
+	 * @param capacity
+	 *        the needed size in bytes
+	 * @return the chunk, its capacity is a power of two
+	 */
+	synchronized ByteBuffer allocate(int capacity) {
+		if (capacity <= 0)
+			return EMPTY;
+		int size = Math.max(MIN_CHUNK, Integer.highestOneBit(capacity - 1) << 1);
+		if (size > SLAB_SIZE || size <= 0)
+			return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+
+		ArrayList<ByteBuffer> chunks = free.get(sizeClass(size));
+		if (!chunks.isEmpty())
+			return chunks.remove(chunks.size() - 1);
+
+		if (slab == null || SLAB_SIZE - slabUsed < size) {
+			// the rest of the old slab is split into released chunks, all
+			// chunks are multiples of the smallest one
+			if (slab != null)
+				releaseRest();
+			slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+			slabUsed = 0;
+		}
+		return cut(size);
+	}
+
+	/**
+	 * Returns a chunk that is no longer used. The chunk must not be accessed
+	 * afterwards.
+	 *
+	 * @param chunk
+	 *        a chunk returned by {@link #allocate(int)}
+	 */
+	synchronized void release(ByteBuffer chunk) {
+		int size = chunk.capacity();
+		if (size < MIN_CHUNK || size > SLAB_SIZE || Integer.bitCount(size) != 1)
+			return; // empty or an own buffer
+		chunk.clear();
+		free.get(sizeClass(size)).add(chunk);
+	}
+
+	private ByteBuffer cut(int size) {
+		slab.limit(slabUsed + size);
+		slab.position(slabUsed);
+		ByteBuffer chunk = slab.slice().order(ByteOrder.nativeOrder());
+		slab.clear();
+		slabUsed += size;
+		return chunk;
+	}
+
+	private void releaseRest() {
+		int rest;
+		while ((rest = SLAB_SIZE - slabUsed) >= MIN_CHUNK)
+			free.get(sizeClass(Integer.highestOneBit(rest))).add(cut(Integer.highestOneBit(rest)));
+	}
+
+	private static int sizeClass(int size) {
+		return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+	}
+
+}
@@ -0,0 +1,400 @@
+package de.jtdev.jfilenotify.polling;
+
+import de.jtdev.jfilenotify.FileNotifyConstants;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The state of a polled file at the time it was scanned. For a directory the
+ * modification time, size and type of every entry is stored in a table
+ * outside of the java heap. Every entry is a record of {@value #RECORD_SIZE}
+ * bytes, the records are sorted by name and followed by the UTF-8 encoded
+ * names. So the state of a large directory costs the garbage collector
+ * nothing and two states can be compared in linear time without decoding a
+ * name that didn't change.
+ *
+ * <p>The tables of a service share the slabs of a {@link SlabAllocator}. A
+ * table is rescanned in place and its chunk is only replaced if it is too
+ * small, so polling a directory that doesn't grow allocates no direct
+ * memory. The names are encoded into the {@link Scratch} arrays of the
+ * scanning thread.</p>
+ */
+final class StatTable {
+
+	/**
+	 * The size of the record of an entry: the offset and length of its name,
+	 * its modification time, its size and its flags.
+	 */
+	static final int RECORD_SIZE = 32;
+
+	private static final int NAME_OFFSET = 0;
+	private static final int NAME_LENGTH = 4;
+	private static final int MODIFIED = 8;
+	private static final int SIZE = 16;
+	private static final int FLAGS = 24;
+
+	private static final int FLAG_DIRECTORY = 0x1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Sorts names by their code points, which is the order of their UTF-8
+	 * encoding.
+	 */
+	private static final Comparator<String> ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int n = Math.min(a.length(), b.length());
+			for (int i = 0; i < n; i++) {
+				char x = a.charAt(i);
+				char y = b.charAt(i);
+				if (x != y)
+					return fixup(x) - fixup(y);
+			}
+			return a.length() - b.length();
+		}
+
+		// surrogates sort behind all other chars in code point order
+		private int fixup(char c) {
+			if (c >= 0xe000)
+				return c - 0x800;
+			if (c >= 0xd800)
+				return c + 0x2000;
+			return c;
+		}
+	};
+
+	private final SlabAllocator allocator;
+	private ByteBuffer buffer = SlabAllocator.EMPTY;
+	private int count = 0;
+	private boolean exists = false;
+	private boolean directory = false;
+	private long modified = 0;
+	private long size = 0;
+	private long scanTime = 0;
+
+	/**
+	 * True if the modification time and size of the entries were read.
+	 */
+	private boolean entryStats = false;
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param allocator
+	 *        the allocator of the direct memory of the table
+	 */
+	StatTable(SlabAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Sets this table to an existing, empty directory. Compared with it, every
+	 * entry of a scanned directory is reported as created.
+	 */
+	void clear() {
+		count = 0;
+		exists = true;
+		directory = true;
+		modified = 0;
+		size = 0;
+		scanTime = 0;
+	}
+
+	/**
+	 * Reads the state of a file and of the entries of a directory into this
+	 * table. Every entry is checked once for being a directory, only files
+	 * are checked again for their modification time and size and only if
+	 * they are needed.
+	 *
+	 * @param file
+	 *        the file or directory
+	 * @param entryModifications
+	 *        true to read the modification time and size of the entries
+	 * @param scratch
+	 *        the scratch arrays of the scanning thread
+	 */
+	void scan(File file, boolean entryModifications, Scratch scratch) {
+		scanTime = System.currentTimeMillis();
+		modified = file.lastModified();
+		directory = file.isDirectory();
+		size = directory ? 0 : file.length();
+		exists = directory || file.exists();
+		entryStats = entryModifications;
+		count = 0;
+		if (!directory)
+			return;
+		String[] names = file.list();
+		if (names == null || names.length == 0)
+			return;
+		Arrays.sort(names, ORDER);
+
+		int[] ends = scratch.ends(names.length);
+		int nameBytes = 0;
+		for (int i = 0; i < names.length; i++) {
+			nameBytes = scratch.encode(names[i], nameBytes);
+			ends[i] = nameBytes;
+		}
+		int namesStart = names.length * RECORD_SIZE;
+		ensureCapacity(namesStart + nameBytes);
+
+		int start = 0;
+		for (int i = 0; i < names.length; i++) {
+			File entry = new File(file, names[i]);
+			int record = i * RECORD_SIZE;
+			boolean isDirectory = entry.isDirectory();
+			buffer.putInt(record + NAME_OFFSET, namesStart + start);
+			buffer.putInt(record + NAME_LENGTH, ends[i] - start);
+			buffer.putLong(record + MODIFIED, entryModifications && !isDirectory ? entry.lastModified() : 0);
+			buffer.putLong(record + SIZE, entryModifications && !isDirectory ? entry.length() : 0);
+			buffer.putInt(record + FLAGS, isDirectory ? FLAG_DIRECTORY : 0);
+			start = ends[i];
+		}
+		buffer.position(namesStart);
+		buffer.put(scratch.names, 0, nameBytes);
+		buffer.clear();
+		count = names.length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.capacity() >= capacity)
+			return;
+		allocator.release(buffer);
+		buffer = allocator.allocate(capacity);
+	}
+
+	/**
+	 * Returns the memory of this table to its allocator. The table is empty
+	 * afterwards.
+	 */
+	void release() {
+		allocator.release(buffer);
+		buffer = SlabAllocator.EMPTY;
+		count = 0;
+	}
+
+	/**
+	 * Returns true if the file existed.
+	 *
+	 * @return true if the file existed
+	 */
+	boolean exists() {
+		return exists;
+	}
+
+	/**
+	 * Returns true if the file was a directory.
+	 *
+	 * @return true if the file was a directory
+	 */
+	boolean isDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the modification time of the file.
+	 *
+	 * @return the modification time in milliseconds
+	 */
+	long getModified() {
+		return modified;
+	}
+
+	/**
+	 * Returns the time the file was scanned.
+	 *
+	 * @return the time in milliseconds
+	 */
+	long getScanTime() {
+		return scanTime;
+	}
+
+	/**
+	 * Returns the number of entries of the directory.
+	 *
+	 * @return the number of entries
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the direct memory reserved for this table.
+	 *
+	 * @return the size of the buffer in bytes
+	 */
+	int getCapacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Compares this state with a newer state of the same file and adds an
+	 * event for every difference to the list. An entry that only exists in
+	 * the newer state is reported as created, an entry that only exists in
+	 * this state as deleted and a file whose modification time or size
+	 * changed as modified. Like inotify, a changed subdirectory is not
+	 * reported as modified. An entry that changed between file and directory
+	 * is reported as deleted and created. A file that no longer exists is
+	 * reported as deleted itself.
+	 *
+	 * @param newer
+	 *        the newer state
+	 * @param prefix
+	 *        the prefix of the names of the entries
+	 * @param events
+	 *        the list that receives the events
+	 */
+	void diff(StatTable newer, String prefix, List<PollingEvent> events) {
+		if (!newer.exists) {
+			events.add(new PollingEvent(FileNotifyConstants.SELF_DELETED | dirFlag(directory), null));
+			return;
+		}
+		if (!directory || !newer.directory) {
+			if (directory != newer.directory || modified != newer.modified || size != newer.size)
+				events.add(new PollingEvent(FileNotifyConstants.MODIFIED, null));
+			return;
+		}
+		int i = 0;
+		int j = 0;
+		while (i < count || j < newer.count) {
+			int c;
+			if (i == count)
+				c = 1;
+			else if (j == newer.count)
+				c = -1;
+			else
+				c = compareNames(i, newer, j);
+
+			if (c < 0) {
+				events.add(new PollingEvent(FileNotifyConstants.SUBFILE_DELETED | flags(i), prefix + name(i)));
+				i++;
+			} else if (c > 0) {
+				events.add(new PollingEvent(FileNotifyConstants.SUBFILE_CREATED | newer.flags(j), prefix + newer.name(j)));
+				j++;
+			} else {
+				int ri = i * RECORD_SIZE;
+				int rj = j * RECORD_SIZE;
+				if (flags(i) != newer.flags(j)) {
+					events.add(new PollingEvent(FileNotifyConstants.SUBFILE_DELETED | flags(i), prefix + name(i)));
+					events.add(new PollingEvent(FileNotifyConstants.SUBFILE_CREATED | newer.flags(j), prefix + newer.name(j)));
+				} else if (newer.flags(j) == 0 && entryStats && newer.entryStats
+						&& (buffer.getLong(ri + MODIFIED) != newer.buffer.getLong(rj + MODIFIED)
+						|| buffer.getLong(ri + SIZE) != newer.buffer.getLong(rj + SIZE))) {
+					events.add(new PollingEvent(FileNotifyConstants.MODIFIED, prefix + newer.name(j)));
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Compares the names of two entries byte by byte.
+	 */
+	private int compareNames(int i, StatTable other, int j) {
+		int ri = i * RECORD_SIZE;
+		int rj = j * RECORD_SIZE;
+		int oi = buffer.getInt(ri + NAME_OFFSET);
+		int li = buffer.getInt(ri + NAME_LENGTH);
+		int oj = other.buffer.getInt(rj + NAME_OFFSET);
+		int lj = other.buffer.getInt(rj + NAME_LENGTH);
+		int n = Math.min(li, lj);
+		for (int k = 0; k < n; k++) {
+			int x = buffer.get(oi + k) & 0xff;
+			int y = other.buffer.get(oj + k) & 0xff;
+			if (x != y)
+				return x - y;
+		}
+		return li - lj;
+	}
+
+	/**
+	 * Decodes the name of an entry.
+	 */
+	private String name(int i) {
+		int record = i * RECORD_SIZE;
+		ByteBuffer b = buffer.duplicate();
+		int offset = buffer.getInt(record + NAME_OFFSET);
+		b.limit(offset + buffer.getInt(record + NAME_LENGTH));
+		b.position(offset);
+		return UTF8.decode(b).toString();
+	}
+
+	/**
+	 * Returns the {@link FileNotifyConstants#IS_DIRECTORY} flag of an entry.
+	 */
+	private int flags(int i) {
+		return dirFlag((buffer.getInt(i * RECORD_SIZE + FLAGS) & FLAG_DIRECTORY) != 0);
+	}
+
+	private static int dirFlag(boolean directory) {
+		return directory ? FileNotifyConstants.IS_DIRECTORY : 0;
+	}
+
+	/**
+	 * The arrays a thread needs to scan a directory. They grow with the
+	 * largest directory and are reused for every scan of the thread, so a
+	 * scan allocates nothing on the java heap but what {@link File#list()}
+	 * returns and the {@link File} of every entry.
+	 */
+	static final class Scratch {
+
+		/**
+		 * The UTF-8 encoded names of the entries.
+		 */
+		byte[] names = new byte[4096];
+
+		private int[] ends = new int[256];
+
+		/**
+		 * Returns an array for the end offsets of the encoded names.
+		 */
+		int[] ends(int count) {
+			if (ends.length < count)
+				ends = new int[Math.max(count, ends.length * 2)];
+			return ends;
+		}
+
+		/**
+		 * Appends the UTF-8 encoding of a name to {@link #names}. An unpaired
+		 * surrogate is encoded as '?', like {@link Charset} does.
+		 *
+		 * @return the end of the encoded name
+		 */
+		int encode(String name, int offset) {
+			int n = name.length();
+			if (names.length - offset < n * 3) {
+				byte[] grown = new byte[Math.max(offset + n * 3, names.length * 2)];
+				System.arraycopy(names, 0, grown, 0, offset);
+				names = grown;
+			}
+			byte[] b = names;
+			for (int i = 0; i < n; i++) {
+				char c = name.charAt(i);
+				if (c < 0x80) {
+					b[offset++] = (byte) c;
+				} else if (c < 0x800) {
+					b[offset++] = (byte) (0xc0 | (c >> 6));
+					b[offset++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(name.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, name.charAt(++i));
+					b[offset++] = (byte) (0xf0 | (cp >> 18));
+					b[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[offset++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+					b[offset++] = (byte) '?';
+				} else {
+					b[offset++] = (byte) (0xe0 | (c >> 12));
+					b[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					b[offset++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return offset;
+		}
+	}
+
+}
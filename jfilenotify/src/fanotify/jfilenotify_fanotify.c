@@ -0,0 +1,178 @@
+#define _GNU_SOURCE
+#include <sys/fanotify.h>
+#include <sys/eventfd.h>
+#include <sys/statfs.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include "jfilenotify_fanotify.h"
+
+#ifndef FAN_REPORT_DFID_NAME
+#define FAN_REPORT_DIR_FID 0x00000400
+#define FAN_REPORT_NAME    0x00000800
+#define FAN_REPORT_DFID_NAME (FAN_REPORT_DIR_FID | FAN_REPORT_NAME)
+#endif
+#ifndef FAN_MARK_FILESYSTEM
+#define FAN_MARK_FILESYSTEM 0x00000100
+#endif
+
+// the handle of a file is passed to java as its file system id, the type of
+// the handle and the bytes of the handle, in the layout the events use
+#define FSID_SIZE sizeof(((struct statfs *) 0)->f_fsid)
+#define HANDLE_HEADER (FSID_SIZE + sizeof(int))
+
+struct handle_buffer {
+	struct file_handle handle;
+	unsigned char bytes[MAX_HANDLE_SZ];
+};
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_createFANotifyInstance
+(JNIEnv *env, jclass caller) {
+	int fd = fanotify_init(FAN_CLASS_NOTIF | FAN_REPORT_DFID_NAME | FAN_REPORT_FID | FAN_NONBLOCK | FAN_CLOEXEC,
+			O_RDONLY | O_LARGEFILE);
+	if (fd < 0) return (jlong) -errno;
+	return (jlong) fd;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_closeDescriptor
+(JNIEnv *env, jclass caller, jlong fd) {
+	int ret = close((int) fd);
+	if (ret < 0) return (jlong) -errno;
+	return (jlong) ret;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_markFileSystem
+(JNIEnv *env, jclass caller, jlong fd, jstring fileName, jint mask, jboolean remove) {
+	if (fileName == NULL) return (jlong) -EINVAL;
+	const char *path = (*env)->GetStringUTFChars(env, fileName, NULL);
+	if (path == NULL) return (jlong) -ENOMEM;
+
+	unsigned int flags = (remove ? FAN_MARK_REMOVE : FAN_MARK_ADD) | FAN_MARK_FILESYSTEM;
+	int ret = fanotify_mark((int) fd, flags, (uint64_t) (uint32_t) mask, AT_FDCWD, path);
+	int error = errno;
+
+	(*env)->ReleaseStringUTFChars(env, fileName, path);
+	if (ret < 0) return (jlong) -error;
+	return (jlong) ret;
+}
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_getFileHandle
+(JNIEnv *env, jclass caller, jstring fileName, jbyteArray result) {
+	if (fileName == NULL || result == NULL) return (jint) -EINVAL;
+	if ((*env)->GetArrayLength(env, result) < (jsize) (HANDLE_HEADER + MAX_HANDLE_SZ)) return (jint) -EINVAL;
+	const char *path = (*env)->GetStringUTFChars(env, fileName, NULL);
+	if (path == NULL) return (jint) -ENOMEM;
+
+	// symbolic links are followed, like inotify does
+	struct handle_buffer h;
+	struct statfs fs;
+	int mountId;
+	h.handle.handle_bytes = MAX_HANDLE_SZ;
+	int ret = name_to_handle_at(AT_FDCWD, path, &h.handle, &mountId, AT_SYMLINK_FOLLOW);
+	if (ret == 0) ret = statfs(path, &fs);
+	int error = errno;
+
+	(*env)->ReleaseStringUTFChars(env, fileName, path);
+	if (ret < 0) return (jint) -error;
+
+	(*env)->SetByteArrayRegion(env, result, 0, FSID_SIZE, (const jbyte *) &fs.f_fsid);
+	(*env)->SetByteArrayRegion(env, result, FSID_SIZE, sizeof(int), (const jbyte *) &h.handle.handle_type);
+	(*env)->SetByteArrayRegion(env, result, HANDLE_HEADER, h.handle.handle_bytes, (const jbyte *) h.handle.f_handle);
+	return (jint) (HANDLE_HEADER + h.handle.handle_bytes);
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_openMount
+(JNIEnv *env, jclass caller, jstring mountPoint) {
+	if (mountPoint == NULL) return (jlong) -EINVAL;
+	const char *mount = (*env)->GetStringUTFChars(env, mountPoint, NULL);
+	if (mount == NULL) return (jlong) -ENOMEM;
+
+	// open_by_handle_at() does not accept O_PATH descriptors
+	int fd = open(mount, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+	int error = errno;
+
+	(*env)->ReleaseStringUTFChars(env, mountPoint, mount);
+	if (fd < 0) return (jlong) -error;
+	return (jlong) fd;
+}
+
+JNIEXPORT jstring JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_resolveHandle
+(JNIEnv *env, jclass caller, jlong mountFd, jbyteArray key, jint length) {
+	if (key == NULL || (*env)->GetArrayLength(env, key) < length) return NULL;
+	if (length < (jint) HANDLE_HEADER || length > (jint) (HANDLE_HEADER + MAX_HANDLE_SZ)) return NULL;
+
+	struct handle_buffer h;
+	h.handle.handle_bytes = (unsigned int) length - HANDLE_HEADER;
+	(*env)->GetByteArrayRegion(env, key, FSID_SIZE, sizeof(int), (jbyte *) &h.handle.handle_type);
+	(*env)->GetByteArrayRegion(env, key, HANDLE_HEADER, h.handle.handle_bytes, (jbyte *) h.handle.f_handle);
+
+	int fd = open_by_handle_at((int) mountFd, &h.handle, O_PATH | O_CLOEXEC);
+	if (fd < 0) return NULL;
+
+	char link[32];
+	char path[PATH_MAX];
+	snprintf(link, sizeof(link), "/proc/self/fd/%i", fd);
+	ssize_t len = readlink(link, path, sizeof(path) - 1);
+	close(fd);
+	if (len <= 0) return NULL;
+	path[len] = 0;
+	return (*env)->NewStringUTF(env, path);
+}
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_readEventBuffer
+(JNIEnv *env, jclass caller, jlong fd, jobject buffer) {
+	void *address = (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	if (address == NULL || capacity <= 0) return (jint) -EINVAL;
+
+	// the kernel returns only whole events
+	ssize_t bytesRead = read((int) fd, address, (size_t) capacity);
+	if (bytesRead < 0) return (jint) (errno == EAGAIN ? 0 : -errno);
+	return (jint) bytesRead;
+}
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_waitForEvents
+(JNIEnv *env, jclass caller, jlong fd, jlong wakeupFd, jint timeout) {
+	struct pollfd fds[2];
+	fds[0].fd = (int) fd;
+	fds[0].events = POLLIN;
+	fds[0].revents = 0;
+	fds[1].fd = (int) wakeupFd;
+	fds[1].events = POLLIN;
+	fds[1].revents = 0;
+
+	int ret = poll(fds, 2, (int) timeout);
+	if (ret < 0) return (jint) (errno == EINTR ? 0 : -errno);
+	if ((fds[0].revents | fds[1].revents) & POLLNVAL) return (jint) -EBADF;
+
+	jint ready = 0;
+	if (fds[0].revents & POLLIN) ready |= de_jtdev_jfilenotify_fanotify_FANotifyService_EVENTS_READY;
+	if (fds[1].revents & POLLIN) ready |= de_jtdev_jfilenotify_fanotify_FANotifyService_WAKEUP_READY;
+	return ready;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_createWakeupDescriptor
+(JNIEnv *env, jclass caller) {
+	int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+	if (fd < 0) return (jlong) -errno;
+	return (jlong) fd;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_wakeup
+(JNIEnv *env, jclass caller, jlong wakeupFd) {
+	uint64_t one = 1;
+	if (write((int) wakeupFd, &one, sizeof(one)) < 0) return (jlong) -errno;
+	return 0;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_clearWakeup
+(JNIEnv *env, jclass caller, jlong wakeupFd) {
+	uint64_t value;
+	if (read((int) wakeupFd, &value, sizeof(value)) < 0 && errno != EAGAIN) return (jlong) -errno;
+	return 0;
+}
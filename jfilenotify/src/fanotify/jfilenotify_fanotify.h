@@ -0,0 +1,115 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class de_jtdev_jfilenotify_fanotify_FANotifyService */
+
+#ifndef _Included_de_jtdev_jfilenotify_fanotify_FANotifyService
+#define _Included_de_jtdev_jfilenotify_fanotify_FANotifyService
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_DEFAULT_EVENT_BUFFER_SIZE
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_DEFAULT_EVENT_BUFFER_SIZE 65536L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_EVENTS_READY
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_EVENTS_READY 1L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_WAKEUP_READY
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_WAKEUP_READY 2L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_BASE_MASK
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_BASE_MASK 1073742848L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_TREE_MASK
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_TREE_MASK 2752L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_PATH_EVENTS
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_PATH_EVENTS 3776L
+#undef de_jtdev_jfilenotify_fanotify_FANotifyService_DEFAULT_PATH_CACHE_SIZE
+#define de_jtdev_jfilenotify_fanotify_FANotifyService_DEFAULT_PATH_CACHE_SIZE 16384L
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    createFANotifyInstance
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_createFANotifyInstance
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    closeDescriptor
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_closeDescriptor
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    markFileSystem
+ * Signature: (JLjava/lang/String;IZ)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_markFileSystem
+  (JNIEnv *, jclass, jlong, jstring, jint, jboolean);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    getFileHandle
+ * Signature: (Ljava/lang/String;[B)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_getFileHandle
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    openMount
+ * Signature: (Ljava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_openMount
+  (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    resolveHandle
+ * Signature: (J[BI)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_resolveHandle
+  (JNIEnv *, jclass, jlong, jbyteArray, jint);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    readEventBuffer
+ * Signature: (JLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_readEventBuffer
+  (JNIEnv *, jclass, jlong, jobject);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    waitForEvents
+ * Signature: (JJI)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_waitForEvents
+  (JNIEnv *, jclass, jlong, jlong, jint);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    createWakeupDescriptor
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_createWakeupDescriptor
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    wakeup
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_wakeup
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_fanotify_FANotifyService
+ * Method:    clearWakeup
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_fanotify_FANotifyService_clearWakeup
+  (JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -1,17 +1,31 @@
 #include <sys/inotify.h>
 #include <errno.h>
 #include <unistd.h>
+#include <sys/ioctl.h>
+#include <poll.h>
 #include "jfilenotify.h"
 
-#define DEBUG_ENABLED
+// The debug output is compiled in with -DDEBUG_ENABLED (inotify.debug=true)
+// and printed to stderr if the environment variable JFILENOTIFY_DEBUG is set.
+#ifdef DEBUG_ENABLED
+#include <stdio.h>
+#include <stdlib.h>
+
+static int debugOutput = -1;
+
+#define DEBUG(...) do { \
+		if (debugOutput < 0) debugOutput = getenv("JFILENOTIFY_DEBUG") != NULL; \
+		if (debugOutput) fprintf(stderr, __VA_ARGS__); \
+	} while (0)
+#else
+#define DEBUG(...) do { } while (0)
+#endif
 
 JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_createINotifyInstance
 (JNIEnv *env, jobject caller) {
-	int fd = inotify_init();
+	int fd = inotify_init1(IN_NONBLOCK);
 
-#ifdef DEBUG_ENABLED
-	printf("createINotifyInstance: fd=%i\n", fd);
-#endif
+	DEBUG("createINotifyInstance: fd=%i\n", fd);
 
 	if (fd < 0) return (jlong) -errno;
 	return (jlong) fd;
@@ -19,28 +33,75 @@ JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_createI
 
 JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_releaseINotifyInstance
 (JNIEnv *env, jobject caller, jlong fd) {
-	int ret = close(fd);
+	int ret = close((int) fd);
 
-#ifdef DEBUG_ENABLED
-	printf("releaseINotifyInstance: fd=%i, result=%i", fd, ret);
-#endif
+	DEBUG("releaseINotifyInstance: fd=%i, result=%i\n", (int) fd, ret);
 
 	if (ret < 0) return (jlong) -errno;
 	return (jlong) ret;
 }
 
 JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_addWatch
-(JNIEnv *env, jobject caller, jlong fd, jstring fileName, jint mask) {
-	jboolean iscopy;
-	const char *path = (*env)->GetStringUTFChars(env, fileName, &iscopy);
+(JNIEnv *env, jobject caller, jlong fd, jbyteArray fileName, jint mask) {
+	// the name is UTF-8 encoded like the names of addWatches()
+	jsize size = (*env)->GetArrayLength(env, fileName);
+	jbyte *path = (*env)->GetByteArrayElements(env, fileName, NULL);
+	if (path == NULL) return (jlong) -ENOMEM;
+	if (size == 0 || path[size - 1] != 0) { // missing terminator
+		(*env)->ReleaseByteArrayElements(env, fileName, path, JNI_ABORT);
+		return (jlong) -EINVAL;
+	}
 	
-	int ret = inotify_add_watch((int) fd, path, (uint32_t) mask);
+	int ret = inotify_add_watch((int) fd, (const char *) path, (uint32_t) mask);
+	int error = errno;
 	
-	(*env)->ReleaseStringUTFChars(env, fileName, path);
-	if (ret < 0) return (jlong) -errno;
+	(*env)->ReleaseByteArrayElements(env, fileName, path, JNI_ABORT);
+	if (ret < 0) return (jlong) -error;
 	return (jlong) ret;
 }
 
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_addWatches
+(JNIEnv *env, jobject caller, jlong fd, jbyteArray paths, jintArray masks, jlongArray results) {
+	jsize count = (*env)->GetArrayLength(env, masks);
+	jsize size = (*env)->GetArrayLength(env, paths);
+	if ((*env)->GetArrayLength(env, results) < count) return (jint) -EINVAL;
+	
+	jbyte *names = (*env)->GetByteArrayElements(env, paths, NULL);
+	if (names == NULL) return (jint) -ENOMEM;
+	jint *m = (*env)->GetIntArrayElements(env, masks, NULL);
+	if (m == NULL) {
+		(*env)->ReleaseByteArrayElements(env, paths, names, JNI_ABORT);
+		return (jint) -ENOMEM;
+	}
+	jlong *r = (*env)->GetLongArrayElements(env, results, NULL);
+	if (r == NULL) {
+		(*env)->ReleaseIntArrayElements(env, masks, m, JNI_ABORT);
+		(*env)->ReleaseByteArrayElements(env, paths, names, JNI_ABORT);
+		return (jint) -ENOMEM;
+	}
+	
+	jsize offset = 0;
+	jsize i;
+	for (i = 0; i < count; i++) {
+		const char *path = (const char *) names + offset;
+		jsize end = offset;
+		while (end < size && names[end] != 0) end++;
+		if (end >= size) { // missing terminator
+			r[i] = (jlong) -EINVAL;
+			offset = size;
+			continue;
+		}
+		int ret = inotify_add_watch((int) fd, path, (uint32_t) m[i]);
+		r[i] = ret < 0 ? (jlong) -errno : (jlong) ret;
+		offset = end + 1;
+	}
+	
+	(*env)->ReleaseLongArrayElements(env, results, r, 0);
+	(*env)->ReleaseIntArrayElements(env, masks, m, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, paths, names, JNI_ABORT);
+	return (jint) count;
+}
+
 JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_removeWatch
 (JNIEnv *env, jobject caller, jlong fd, jlong wd) {
 	int ret = inotify_rm_watch((int) fd, (int) wd);
@@ -48,22 +109,52 @@ JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_removeW
 	return (jlong) ret;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_readEventData
-(JNIEnv *env, jobject caller, jlong fd) {
-	size_t eventSize = sizeof(struct inotify_event) + 16;
-	size_t bufferSize = eventSize * 1000;
-    char buffer[bufferSize];
-    
-	ssize_t bytesRead = read((int) fd, &buffer, bufferSize);
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_readEventBuffer
+(JNIEnv *env, jobject caller, jlong fd, jobject buffer) {
+	void *address = (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	if (address == NULL || capacity <= 0) return (jint) -EINVAL;
+	
+	char *data = (char *) address;
+	size_t bufferSize = (size_t) capacity;
+	
+	ssize_t bytesRead = read((int) fd, data, bufferSize);
+	if (bytesRead < 0) return (jint) (errno == EAGAIN ? 0 : -errno);
 	
-	jbyteArray array = NULL;
-	if (bytesRead > 0) {
-		array = (*env)->NewByteArray(env, (jsize) bytesRead);
-		(*env)->SetByteArrayRegion(env, array, (jsize) 0, (jsize) bytesRead, (jbyte*) buffer);
-	} else if (bytesRead == 0) {
-		array = (*env)->NewByteArray(env, (jsize) 0);
+	// drain events that were queued in the meantime, as long as they fit
+	size_t total = (size_t) bytesRead;
+	int pending;
+	while (total < bufferSize
+			&& ioctl((int) fd, FIONREAD, &pending) == 0
+			&& pending > 0 && (size_t) pending <= bufferSize - total) {
+		bytesRead = read((int) fd, data + total, bufferSize - total);
+		if (bytesRead <= 0) break;
+		total += (size_t) bytesRead;
 	}
-	return array;
+	
+	DEBUG("readEventBuffer: fd=%i, bytes=%i\n", (int) fd, (int) total);
+	
+	return (jint) total;
+}
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_waitForEvents
+(JNIEnv *env, jobject caller, jlong fd, jlong wakeupFd, jint timeout) {
+	struct pollfd fds[2];
+	fds[0].fd = (int) fd; // ignored by poll if negative
+	fds[0].events = POLLIN;
+	fds[0].revents = 0;
+	fds[1].fd = (int) wakeupFd;
+	fds[1].events = POLLIN;
+	fds[1].revents = 0;
+	
+	int ret = poll(fds, 2, (int) timeout);
+	if (ret < 0) return (jint) (errno == EINTR ? 0 : -errno);
+	if ((fds[0].revents | fds[1].revents) & POLLNVAL) return (jint) -EBADF;
+	
+	jint ready = 0;
+	if (fds[0].revents & POLLIN) ready |= de_jtdev_jfilenotify_inotify_INotifyService_EVENTS_READY;
+	if (fds[1].revents & POLLIN) ready |= de_jtdev_jfilenotify_inotify_INotifyService_WAKEUP_READY;
+	return ready;
 }
 
 JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_getIntegerSize
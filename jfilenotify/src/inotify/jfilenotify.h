@@ -7,18 +7,18 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
-/* Inaccessible static: threadInitNumber */
-/* Inaccessible static: threadSeqNumber */
-#undef de_jtdev_jfilenotify_inotify_INotifyService_MIN_PRIORITY
-#define de_jtdev_jfilenotify_inotify_INotifyService_MIN_PRIORITY 1L
-#undef de_jtdev_jfilenotify_inotify_INotifyService_NORM_PRIORITY
-#define de_jtdev_jfilenotify_inotify_INotifyService_NORM_PRIORITY 5L
-#undef de_jtdev_jfilenotify_inotify_INotifyService_MAX_PRIORITY
-#define de_jtdev_jfilenotify_inotify_INotifyService_MAX_PRIORITY 10L
-/* Inaccessible static: EMPTY_STACK_TRACE */
-/* Inaccessible static: SUBCLASS_IMPLEMENTATION_PERMISSION */
-/* Inaccessible static: subclassAudits */
-/* Inaccessible static: defaultUncaughtExceptionHandler */
+#undef de_jtdev_jfilenotify_inotify_INotifyService_DEFAULT_EVENT_BUFFER_SIZE
+#define de_jtdev_jfilenotify_inotify_INotifyService_DEFAULT_EVENT_BUFFER_SIZE 32000L
+#undef de_jtdev_jfilenotify_inotify_INotifyService_MIN_EVENT_BUFFER_SIZE
+#define de_jtdev_jfilenotify_inotify_INotifyService_MIN_EVENT_BUFFER_SIZE 272L
+#undef de_jtdev_jfilenotify_inotify_INotifyService_DEFAULT_WALK_PARALLELISM
+#define de_jtdev_jfilenotify_inotify_INotifyService_DEFAULT_WALK_PARALLELISM 4L
+#undef de_jtdev_jfilenotify_inotify_INotifyService_EVICTION_CANDIDATES
+#define de_jtdev_jfilenotify_inotify_INotifyService_EVICTION_CANDIDATES 64L
+#undef de_jtdev_jfilenotify_inotify_INotifyService_EVENTS_READY
+#define de_jtdev_jfilenotify_inotify_INotifyService_EVENTS_READY 1L
+#undef de_jtdev_jfilenotify_inotify_INotifyService_WAKEUP_READY
+#define de_jtdev_jfilenotify_inotify_INotifyService_WAKEUP_READY 2L
 /*
  * Class:     de_jtdev_jfilenotify_inotify_INotifyService
  * Method:    createINotifyInstance
@@ -38,10 +38,18 @@ JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_release
 /*
  * Class:     de_jtdev_jfilenotify_inotify_INotifyService
  * Method:    addWatch
- * Signature: (JLjava/lang/String;I)J
+ * Signature: (J[BI)J
  */
 JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_addWatch
-  (JNIEnv *, jobject, jlong, jstring, jint);
+  (JNIEnv *, jobject, jlong, jbyteArray, jint);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyService
+ * Method:    addWatches
+ * Signature: (J[B[I[J)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_addWatches
+  (JNIEnv *, jobject, jlong, jbyteArray, jintArray, jlongArray);
 
 /*
  * Class:     de_jtdev_jfilenotify_inotify_INotifyService
@@ -53,11 +61,19 @@ JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_removeW
 
 /*
  * Class:     de_jtdev_jfilenotify_inotify_INotifyService
- * Method:    readEventData
- * Signature: (J)[B
+ * Method:    readEventBuffer
+ * Signature: (JLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jbyteArray JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_readEventData
-  (JNIEnv *, jobject, jlong);
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_readEventBuffer
+  (JNIEnv *, jobject, jlong, jobject);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyService
+ * Method:    waitForEvents
+ * Signature: (JJI)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_waitForEvents
+  (JNIEnv *, jobject, jlong, jlong, jint);
 
 /*
  * Class:     de_jtdev_jfilenotify_inotify_INotifyService
@@ -71,3 +87,124 @@ JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyService_getInteg
 }
 #endif
 #endif
+/* Header for class de_jtdev_jfilenotify_inotify_INotifyReactor */
+
+#ifndef _Included_de_jtdev_jfilenotify_inotify_INotifyReactor
+#define _Included_de_jtdev_jfilenotify_inotify_INotifyReactor
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef de_jtdev_jfilenotify_inotify_INotifyReactor_MIN_PRIORITY
+#define de_jtdev_jfilenotify_inotify_INotifyReactor_MIN_PRIORITY 1L
+#undef de_jtdev_jfilenotify_inotify_INotifyReactor_NORM_PRIORITY
+#define de_jtdev_jfilenotify_inotify_INotifyReactor_NORM_PRIORITY 5L
+#undef de_jtdev_jfilenotify_inotify_INotifyReactor_MAX_PRIORITY
+#define de_jtdev_jfilenotify_inotify_INotifyReactor_MAX_PRIORITY 10L
+#undef de_jtdev_jfilenotify_inotify_INotifyReactor_MAX_READY_DESCRIPTORS
+#define de_jtdev_jfilenotify_inotify_INotifyReactor_MAX_READY_DESCRIPTORS 64L
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    createEpollInstance
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_createEpollInstance
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    addDescriptor
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_addDescriptor
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    removeDescriptor
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_removeDescriptor
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    waitForDescriptors
+ * Signature: (J[II)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_waitForDescriptors
+  (JNIEnv *, jclass, jlong, jintArray, jint);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    createWakeupDescriptor
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_createWakeupDescriptor
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    wakeup
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_wakeup
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    clearWakeup
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_clearWakeup
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_INotifyReactor
+ * Method:    closeDescriptor
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_closeDescriptor
+  (JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
+/* Header for class de_jtdev_jfilenotify_inotify_DirectorySnapshot */
+
+#ifndef _Included_de_jtdev_jfilenotify_inotify_DirectorySnapshot
+#define _Included_de_jtdev_jfilenotify_inotify_DirectorySnapshot
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_DirectorySnapshot
+ * Method:    scan
+ * Signature: ([B)Lde/jtdev/jfilenotify/inotify/DirectorySnapshot;
+ */
+JNIEXPORT jobject JNICALL Java_de_jtdev_jfilenotify_inotify_DirectorySnapshot_scan
+  (JNIEnv *, jclass, jbyteArray);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
+/* Header for class de_jtdev_jfilenotify_inotify_MountTable */
+
+#ifndef _Included_de_jtdev_jfilenotify_inotify_MountTable
+#define _Included_de_jtdev_jfilenotify_inotify_MountTable
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     de_jtdev_jfilenotify_inotify_MountTable
+ * Method:    statFileSystem
+ * Signature: (Ljava/lang/String;[J)I
+ */
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_MountTable_statFileSystem
+  (JNIEnv *, jclass, jstring, jlongArray);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,30 @@
+#include <sys/types.h>
+#include <sys/stat.h>
+#include <sys/statfs.h>
+#include <sys/sysmacros.h>
+#include <errno.h>
+#include "jfilenotify.h"
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_MountTable_statFileSystem
+(JNIEnv *env, jclass caller, jstring fileName, jlongArray result) {
+	if ((*env)->GetArrayLength(env, result) < 3) return (jint) -EINVAL;
+	const char *path = (*env)->GetStringUTFChars(env, fileName, NULL);
+	if (path == NULL) return (jint) -ENOMEM;
+
+	struct stat st;
+	struct statfs fs;
+	int ret = stat(path, &st);
+	if (ret == 0) ret = statfs(path, &fs);
+	int error = errno;
+
+	(*env)->ReleaseStringUTFChars(env, fileName, path);
+	if (ret < 0) return (jint) -error;
+
+	// the magic numbers of all file systems fit into 32 bits
+	jlong values[3];
+	values[0] = (jlong) major(st.st_dev);
+	values[1] = (jlong) minor(st.st_dev);
+	values[2] = (jlong) (unsigned int) fs.f_type;
+	(*env)->SetLongArrayRegion(env, result, 0, 3, values);
+	return 0;
+}
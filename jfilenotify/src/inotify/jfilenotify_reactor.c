@@ -0,0 +1,88 @@
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <errno.h>
+#include <stdint.h>
+#include <unistd.h>
+#include "jfilenotify.h"
+
+#define MAX_READY_DESCRIPTORS 64
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_createEpollInstance
+(JNIEnv *env, jclass caller) {
+	int fd = epoll_create1(EPOLL_CLOEXEC);
+	if (fd < 0) return (jlong) -errno;
+	return (jlong) fd;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_addDescriptor
+(JNIEnv *env, jclass caller, jlong epfd, jlong fd) {
+	struct epoll_event event;
+	event.events = EPOLLIN;
+	event.data.u64 = 0;
+	event.data.fd = (int) fd;
+
+	int ret = epoll_ctl((int) epfd, EPOLL_CTL_ADD, (int) fd, &event);
+	if (ret < 0) return (jlong) -errno;
+	return (jlong) ret;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_removeDescriptor
+(JNIEnv *env, jclass caller, jlong epfd, jlong fd) {
+	struct epoll_event event; // ignored, but must not be NULL before linux 2.6.9
+
+	int ret = epoll_ctl((int) epfd, EPOLL_CTL_DEL, (int) fd, &event);
+	if (ret < 0) return (jlong) -errno;
+	return (jlong) ret;
+}
+
+JNIEXPORT jint JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_waitForDescriptors
+(JNIEnv *env, jclass caller, jlong epfd, jintArray ready, jint timeout) {
+	struct epoll_event events[MAX_READY_DESCRIPTORS];
+	jint fds[MAX_READY_DESCRIPTORS];
+
+	jsize max = (*env)->GetArrayLength(env, ready);
+	if (max > MAX_READY_DESCRIPTORS) max = MAX_READY_DESCRIPTORS;
+	if (max <= 0) return (jint) -EINVAL;
+
+	int count = epoll_wait((int) epfd, events, (int) max, (int) timeout);
+	if (count < 0) return (jint) (errno == EINTR ? 0 : -errno);
+
+	int i;
+	for (i = 0; i < count; i++) {
+		fds[i] = (jint) events[i].data.fd;
+	}
+	(*env)->SetIntArrayRegion(env, ready, (jsize) 0, (jsize) count, fds);
+	return (jint) count;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_createWakeupDescriptor
+(JNIEnv *env, jclass caller) {
+	int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+	if (fd < 0) return (jlong) -errno;
+	return (jlong) fd;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_wakeup
+(JNIEnv *env, jclass caller, jlong efd) {
+	uint64_t value = 1;
+	ssize_t ret = write((int) efd, &value, sizeof(value));
+	// EAGAIN means the counter is saturated, the eventfd is readable anyway
+	if (ret < 0 && errno != EAGAIN) return (jlong) -errno;
+	return (jlong) 0;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_clearWakeup
+(JNIEnv *env, jclass caller, jlong efd) {
+	uint64_t value;
+	ssize_t ret = read((int) efd, &value, sizeof(value));
+	// EAGAIN means the eventfd was allready cleared
+	if (ret < 0 && errno != EAGAIN) return (jlong) -errno;
+	return (jlong) 0;
+}
+
+JNIEXPORT jlong JNICALL Java_de_jtdev_jfilenotify_inotify_INotifyReactor_closeDescriptor
+(JNIEnv *env, jclass caller, jlong fd) {
+	int ret = close((int) fd);
+	if (ret < 0) return (jlong) -errno;
+	return (jlong) ret;
+}
@@ -0,0 +1,109 @@
+#include <sys/types.h>
+#include <sys/stat.h>
+#include <dirent.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include "jfilenotify.h"
+
+#define INITIAL_ENTRIES 64
+
+struct entry {
+	char *name;
+	jsize length;
+	jlong inode;
+	jlong modified;
+	jlong size;
+	jboolean directory;
+};
+
+static void freeEntries(struct entry *entries, int count) {
+	int i;
+	for (i = 0; i < count; i++) free(entries[i].name);
+	free(entries);
+}
+
+JNIEXPORT jobject JNICALL Java_de_jtdev_jfilenotify_inotify_DirectorySnapshot_scan
+(JNIEnv *env, jclass caller, jbyteArray directoryName) {
+	// the name is UTF-8 encoded like the names of addWatch()
+	if (directoryName == NULL) return NULL;
+	jsize size = (*env)->GetArrayLength(env, directoryName);
+	jbyte *path = (*env)->GetByteArrayElements(env, directoryName, NULL);
+	if (path == NULL) return NULL;
+	if (size == 0 || path[size - 1] != 0) { // missing terminator
+		(*env)->ReleaseByteArrayElements(env, directoryName, path, JNI_ABORT);
+		return NULL;
+	}
+	DIR *dir = opendir((const char *) path);
+	(*env)->ReleaseByteArrayElements(env, directoryName, path, JNI_ABORT);
+	if (dir == NULL) return NULL;
+
+	int capacity = INITIAL_ENTRIES;
+	int count = 0;
+	struct entry *entries = malloc(capacity * sizeof(struct entry));
+	if (entries == NULL) {
+		closedir(dir);
+		return NULL;
+	}
+
+	struct dirent *d;
+	struct stat st;
+	while ((d = readdir(dir)) != NULL) {
+		if (strcmp(d->d_name, ".") == 0 || strcmp(d->d_name, "..") == 0) continue;
+		// the entry was deleted in the meantime
+		if (fstatat(dirfd(dir), d->d_name, &st, AT_SYMLINK_NOFOLLOW) < 0) continue;
+		if (count == capacity) {
+			struct entry *e = realloc(entries, 2 * capacity * sizeof(struct entry));
+			if (e == NULL) {
+				freeEntries(entries, count);
+				closedir(dir);
+				return NULL;
+			}
+			entries = e;
+			capacity *= 2;
+		}
+		entries[count].name = strdup(d->d_name);
+		if (entries[count].name == NULL) {
+			freeEntries(entries, count);
+			closedir(dir);
+			return NULL;
+		}
+		entries[count].length = (jsize) strlen(d->d_name);
+		entries[count].inode = (jlong) st.st_ino;
+		entries[count].modified = (jlong) st.st_mtim.tv_sec * 1000000000LL + (jlong) st.st_mtim.tv_nsec;
+		entries[count].size = (jlong) st.st_size;
+		entries[count].directory = S_ISDIR(st.st_mode) ? JNI_TRUE : JNI_FALSE;
+		count++;
+	}
+	closedir(dir);
+
+	jobject snapshot = NULL;
+	jclass byteArrayClass = (*env)->FindClass(env, "[B");
+	jobjectArray names = byteArrayClass == NULL ? NULL : (*env)->NewObjectArray(env, count, byteArrayClass, NULL);
+	jlongArray inodes = (*env)->NewLongArray(env, count);
+	jlongArray modified = (*env)->NewLongArray(env, count);
+	jlongArray sizes = (*env)->NewLongArray(env, count);
+	jbooleanArray directories = (*env)->NewBooleanArray(env, count);
+	if (names != NULL && inodes != NULL && modified != NULL && sizes != NULL && directories != NULL) {
+		int i;
+		for (i = 0; i < count; i++) {
+			// the names are decoded as UTF-8 by the caller, not as modified UTF-8
+			jbyteArray name = (*env)->NewByteArray(env, entries[i].length);
+			if (name == NULL) break;
+			(*env)->SetByteArrayRegion(env, name, 0, entries[i].length, (const jbyte *) entries[i].name);
+			(*env)->SetObjectArrayElement(env, names, i, name);
+			(*env)->DeleteLocalRef(env, name);
+			(*env)->SetLongArrayRegion(env, inodes, i, 1, &entries[i].inode);
+			(*env)->SetLongArrayRegion(env, modified, i, 1, &entries[i].modified);
+			(*env)->SetLongArrayRegion(env, sizes, i, 1, &entries[i].size);
+			(*env)->SetBooleanArrayRegion(env, directories, i, 1, &entries[i].directory);
+		}
+		if (i == count) {
+			jmethodID init = (*env)->GetMethodID(env, caller, "<init>", "([[B[J[J[J[Z)V");
+			if (init != NULL)
+				snapshot = (*env)->NewObject(env, caller, init, names, inodes, modified, sizes, directories);
+		}
+	}
+	freeEntries(entries, count);
+	return snapshot;
+}